@@ -0,0 +1,119 @@
+// ----- IMPORT STATEMENTS -----
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/** Class that holds a broadcast line of the form <code>user: message</code>
+ * encoded once and shared by every receiver. The text protocol,
+ * {@link WireProtocol WireProtocol} and compressed forms are each built
+ * the first time a receiver of that kind asks for them, and every later receiver gets its
+ * own view of the same read-only bytes. The room shard that fans out the
+ * broadcast builds the forms, but a {@link MessageHistory MessageHistory}
+ * replay may ask for them from another thread later, so each form is
+ * built once under a lock and then read without one. */
+class BroadcastPayload {
+
+    // ----- FIELDS ----- //
+    /** The UTF-8 bytes of the broadcast line without a line terminator. */
+    private final byte[] BODY;
+
+    /** The text protocol form, or null until first asked for. */
+    private volatile ByteBuffer text;
+
+    /** The binary protocol form, or null until first asked for. */
+    private volatile ByteBuffer binary;
+
+    /** The binary protocol form compressed on its own, or null until
+     * first asked for. */
+    private volatile ByteBuffer deflated;
+
+    /** Number of forms that have been built. */
+    private volatile int encodes;
+
+    /** Constructor to encode a broadcast line.
+     * @param usrName - username of the sender.
+     * @param msg - the message. */
+    public BroadcastPayload(String usrName, String msg){
+        this.BODY = (usrName + ": " + msg).getBytes(StandardCharsets.UTF_8);
+    } // end of CONSTRUCTOR
+
+    /** Constructor to wrap a broadcast line that is already encoded, such
+     * as one read back from the {@link MessageJournal MessageJournal}.
+     * @param body - the UTF-8 bytes of the line, which must not be
+     * changed afterwards. */
+    public BroadcastPayload(byte[] body){
+        this.BODY = body;
+    } // end of CONSTRUCTOR
+
+    /** Method to get a view of the text protocol form, which ends with
+     * the platform line separator like {@link java.io.PrintWriter#println()
+     * println}.
+     * @return A read-only buffer in read mode. */
+    public ByteBuffer forText(){
+        ByteBuffer form = text;
+        if(form == null){
+            synchronized(this){
+                form = text;
+                if(form == null){
+                    byte[] sep = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+                    ByteBuffer buf = ByteBuffer.allocate(BODY.length + sep.length);
+                    buf.put(BODY).put(sep).flip();
+                    form = buf.asReadOnlyBuffer();
+                    text = form;
+                    encodes++;
+                } // end of if statement
+            } // end of synchronized block
+        } // end of if statement
+        return form.duplicate();
+    } // end of forText() method
+
+    /** Method to get a view of the binary protocol form, a
+     * {@link WireProtocol#BROADCAST BROADCAST} frame.
+     * @return A read-only buffer in read mode. */
+    public ByteBuffer forBinary(){
+        ByteBuffer form = binary;
+        if(form == null){
+            synchronized(this){
+                form = binary;
+                if(form == null){
+                    form = WireProtocol.frame(WireProtocol.BROADCAST, BODY, 0, BODY.length).asReadOnlyBuffer();
+                    binary = form;
+                    encodes++;
+                } // end of if statement
+            } // end of synchronized block
+        } // end of if statement
+        return form.duplicate();
+    } // end of forBinary() method
+
+    /** Method to get a view of the binary protocol form compressed on its
+     * own by {@link FrameDeflater#deflateOnce(ByteBuffer) deflateOnce}, a
+     * {@link WireProtocol#DEFLATED DEFLATED} frame that any client that
+     * asked for compression can read.
+     * @return A read-only buffer in read mode. */
+    public ByteBuffer forDeflated(){
+        ByteBuffer form = deflated;
+        if(form == null){
+            synchronized(this){
+                form = deflated;
+                if(form == null){
+                    form = FrameDeflater.deflateOnce(forBinary()).asReadOnlyBuffer();
+                    deflated = form;
+                    encodes++;
+                } // end of if statement
+            } // end of synchronized block
+        } // end of if statement
+        return form.duplicate();
+    } // end of forDeflated() method
+
+    /** Method to get the UTF-8 bytes of the broadcast line. The array is
+     * shared and must not be changed.
+     * @return The line without a line terminator. */
+    byte[] body(){
+        return BODY;
+    } // end of body() method
+
+    /** Method to get the number of forms that have been built.
+     * @return 0 to 3. */
+    public int getEncodes(){
+        return encodes;
+    } // end of getEncodes() method
+} // end of BroadcastPayload Class
@@ -0,0 +1,67 @@
+// ----- IMPORT STATEMENTS -----
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Class that lends out direct {@link ByteBuffer ByteBuffers} of one size
+ * to many connections. A connection that only needs a large buffer while
+ * bytes are passing through it, such as a {@link TlsChannel TlsChannel},
+ * takes one when it has something to hold and gives it back once it is
+ * empty again, so idle connections hold none and a Server with many
+ * connections needs only as many buffers as are busy at once.
+ * <p>Buffers given back beyond the pool's limit are left to the garbage
+ * collector, so a burst of busy connections does not keep its memory for
+ * good.</p> */
+class BufferPool {
+
+    // ----- FIELDS ----- //
+    /** Queue of buffers ready to be lent out. */
+    private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<ByteBuffer>();
+
+    /** Number of buffers in the {@link #free free} queue. */
+    private final AtomicInteger freeCount = new AtomicInteger();
+
+    /** Int constant that stores the capacity of every pooled buffer. */
+    private final int BUFFER_BYTES;
+
+    /** Int constant that stores the most buffers kept for reuse. */
+    private final int MAX_FREE;
+
+    /** Constructor to create an empty BufferPool.
+     * @param bufferBytes - the capacity of each buffer.
+     * @param maxFree - the most buffers kept for reuse. */
+    public BufferPool(int bufferBytes, int maxFree){
+        this.BUFFER_BYTES = bufferBytes;
+        this.MAX_FREE = maxFree;
+    } // end of CONSTRUCTOR
+
+    /** Method to borrow a buffer. A request larger than the pool's buffers
+     * gets a heap buffer of its own, which is never pooled.
+     * @param size - the fewest bytes the buffer must hold.
+     * @return An empty buffer ready to be filled. */
+    public ByteBuffer acquire(int size){
+        if(size > BUFFER_BYTES){
+            return ByteBuffer.allocate(size);
+        } // end of if statement
+        ByteBuffer buf = free.poll();
+        if(buf == null){
+            return ByteBuffer.allocateDirect(BUFFER_BYTES);
+        } // end of if statement
+        freeCount.decrementAndGet();
+        return buf.clear();
+    } // end of acquire() method
+
+    /** Method to give back a buffer that is no longer used. Buffers that
+     * did not come from this pool are ignored.
+     * @param buf - the buffer, which the caller must not touch again. */
+    public void release(ByteBuffer buf){
+        if(!buf.isDirect() || buf.capacity() != BUFFER_BYTES){
+            return;
+        } // end of if statement
+        if(freeCount.incrementAndGet() > MAX_FREE){
+            freeCount.decrementAndGet();
+            return;
+        } // end of if statement
+        free.offer(buf);
+    } // end of release() method
+} // end of BufferPool Class
@@ -0,0 +1,36 @@
+// ----- IMPORT STATEMENTS -----
+import java.io.IOException;
+
+/** Interface of a headless client that a program, such as the
+ * {@link LoadGenerator LoadGenerator}, drives from code rather than from
+ * standard input. Output from the {@link Server Server} is handed to a
+ * {@link ClientInstance.Listener Listener}. It is implemented by
+ * {@link ClientInstance ClientInstance}, which reads on a thread of its
+ * own and writes each message straight away, and by
+ * {@link NioClient NioClient}, which shares one event loop thread with
+ * many other clients and sends messages in batches. */
+interface ChatClient {
+
+    /** Method to ask the {@link Server Server} to compress the frames it
+     * sends. Only used in binary mode, and must be called before
+     * {@link #connect() connect}.
+     * @param shared - false for one deflate stream for the connection, or
+     * true for each frame compressed on its own. */
+    void requestCompression(boolean shared);
+
+    /** Method to connect to the {@link Server Server}.
+     * @throws IOException if the Server cannot be reached. */
+    void connect() throws IOException;
+
+    /** Method to send one message or command. It may be called from any
+     * thread once {@link #connect() connect} has returned.
+     * @param msg - the message or command to send.
+     * @throws IOException if the message cannot be sent.
+     * @throws InterruptedException if interrupted while waiting to send. */
+    void send(String msg) throws IOException, InterruptedException;
+
+    /** Method to close the connection. The Listener is told once it has
+     * closed.
+     * @throws IOException if the connection cannot be closed. */
+    void close() throws IOException;
+} // end of ChatClient interface
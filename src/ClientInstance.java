@@ -1,11 +1,47 @@
 // ----- IMPORT STATEMENTS -----
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.zip.Inflater;
+import javax.net.ssl.SSLSocketFactory;
 
 /** Class that implements {@link Runnable Runnable} and
  * connects the Client to the {@link Server Server} before
- * handling the sending of messages. */
-class ClientInstance implements Runnable {
+ * handling the sending of messages. Messages are sent as lines of text,
+ * or as frames of the binary {@link WireProtocol WireProtocol} if the
+ * client was created in binary mode.
+ * <p>When run as a thread the client reads messages from standard input
+ * and prints output from the Server to standard output. A client created
+ * with a {@link Listener Listener} is headless instead: it is started with
+ * {@link #connect() connect}, sends with {@link #send(String) send} and
+ * hands output to the Listener, so that many clients can run in one
+ * program such as the {@link LoadGenerator LoadGenerator}. Neither kind
+ * exits the JVM itself; only the {@link ConsoleListener ConsoleListener}
+ * does. A program running thousands of clients should use
+ * {@link NioClient NioClient}, which needs no thread per client.</p>
+ * <p>A client given an {@link SSLSocketFactory SSLSocketFactory} connects
+ * with TLS. Clients sharing a factory resume each other's TLS sessions, so
+ * a program that reconnects should keep one factory for every
+ * connection.</p>
+ * <p>In binary mode the client may ask with
+ * {@link #requestCompression(boolean) requestCompression} for the frames
+ * it is sent to be compressed, which the Server may or may not agree
+ * to.</p> */
+class ClientInstance implements Runnable, ChatClient {
+
+    /** Interface implemented by code that handles the output of the
+     * {@link Server Server}. */
+    interface Listener {
+        /** Method called for each line of text from the Server. In binary
+         * mode each {@link WireProtocol#BROADCAST BROADCAST} frame is one
+         * line and an {@link WireProtocol#ACK ACK} frame is a tick.
+         * @param line - the line without its terminator. */
+        void onLine(String line);
+
+        /** Method called once when the connection to the Server ends. */
+        void onClose();
+    } // end of Listener interface
 
     // ----- FIELDS ----- //
     /** {@link PrintWriter PrintWriter} to print output from the
@@ -22,13 +58,54 @@ class ClientInstance implements Runnable {
     /** Int field to store the port number of the {@link Server Server}. */
     private int portNum;
 
+    /** {@link String String} field to store the host name or IP address
+     * of the {@link Server Server}, looked up on connecting. */
+    private final String HOST;
+
     /** {@link InetAddress InetAddress} field to store the IP address of
      * the {@link Server Server}. */
     private InetAddress ipAddr;
 
+    /** {@link Socket Socket} connected to the {@link Server Server}. */
+    private Socket socketConnect;
+
     /** Boolean field that is set to true when {@link Server Server} or Client
      * disconnects. */
-    private boolean stop = false;
+    private volatile boolean stop = false;
+
+    /** {@link Listener Listener} that output from the {@link Server Server}
+     * is handed to. */
+    private final Listener listener;
+
+    /** Boolean field that is true if the client uses the binary
+     * {@link WireProtocol WireProtocol}. */
+    private final boolean binary;
+
+    /** {@link DataOutputStream DataOutputStream} to send frames to the
+     * {@link Server Server} in binary mode. */
+    private DataOutputStream frameWriter;
+
+    /** {@link DataInputStream DataInputStream} to read text and then
+     * frames from the {@link Server Server} in binary mode. */
+    private DataInputStream frameReader;
+
+    /** {@link CountDownLatch CountDownLatch} released once the
+     * {@link Server Server} has accepted the binary protocol. No frame may
+     * be sent before then. */
+    private final CountDownLatch binaryReady = new CountDownLatch(1);
+
+    /** {@link SSLSocketFactory SSLSocketFactory} that TLS connections are
+     * made with, or null to connect in cleartext. */
+    private final SSLSocketFactory tlsFactory;
+
+    /** {@link String String} field to store the compression option added
+     * to the {@link WireProtocol#PREAMBLE PREAMBLE}, or an empty String
+     * to not ask for compression. */
+    private String compression = "";
+
+    /** {@link Inflater Inflater} that decompresses frames once the
+     * {@link Server Server} has agreed to compression, or null. */
+    private Inflater inflater;
 
     /** Constructor to call within ClientMain class
      * and allows for thread to be started upon object
@@ -36,39 +113,60 @@ class ClientInstance implements Runnable {
      * @param ipAddr - a String containing the IP address of the Server.
      * @param portNum - a String containing the port number of the Server */
     public ClientInstance(String ipAddr, String portNum){
+        this(ipAddr, portNum, false);
+    } // end of CONSTRUCTOR
+
+    /** Constructor to call within ClientMain class that can choose the
+     * binary {@link WireProtocol WireProtocol}.
+     * @param ipAddr - a String containing the IP address of the Server.
+     * @param portNum - a String containing the port number of the Server
+     * @param binary - true to use the binary protocol. */
+    public ClientInstance(String ipAddr, String portNum, boolean binary){
+        this(ipAddr, portNum, binary, new ConsoleListener());
+    } // end of CONSTRUCTOR
+
+    /** Constructor to create a headless client whose output is handed to
+     * a {@link Listener Listener} rather than printed.
+     * @param ipAddr - a String containing the IP address of the Server.
+     * @param portNum - a String containing the port number of the Server
+     * @param binary - true to use the binary protocol.
+     * @param listener - the Listener that handles output from the Server. */
+    public ClientInstance(String ipAddr, String portNum, boolean binary, Listener listener){
+        this(ipAddr, portNum, binary, listener, null);
+    } // end of CONSTRUCTOR
+
+    /** Constructor to create a client that may connect with TLS.
+     * @param ipAddr - a String containing the IP address of the Server.
+     * @param portNum - a String containing the port number of the Server
+     * @param binary - true to use the binary protocol.
+     * @param listener - the Listener that handles output from the Server.
+     * @param tlsFactory - the factory TLS connections are made with, from
+     * {@link TlsContexts#forClient(File, String) forClient}, or null to
+     * connect in cleartext. */
+    public ClientInstance(String ipAddr, String portNum, boolean binary, Listener listener,
+                SSLSocketFactory tlsFactory){
+        this.binary = binary;
+        this.tlsFactory = tlsFactory;
         this.portNum = Integer.parseInt(portNum);
-        try{
-            this.ipAddr = InetAddress.getByName(ipAddr);
-        } catch (UnknownHostException e){
-            System.err.println("Unknown Host");
-            System.exit(-1);
-        } // end of UnknownHostException catch
+        this.HOST = ipAddr;
+        this.listener = listener;
     } // end of CONSTRUCTOR
 
-    /** Method override that connects to {@link Server Server} via a
-     * {@link Socket Socket}. Method then starts a
-     * {@link ServerListener ServerListener} thread and calls the
-     * {@link #sendMessage() sendMessage} method. */
+    /** Method override that connects to {@link Server Server} via the
+     * {@link #connect() connect} method and then calls the
+     * {@link #sendMessage() sendMessage} method to send what is typed on
+     * standard input. The connection is closed when standard input ends,
+     * which tells the {@link Listener Listener}. */
     public void run(){
         try{
-            Socket socketConnect = new Socket(ipAddr, portNum);
-
-            // add I/O streams
-            clientWriter = new PrintWriter(socketConnect.getOutputStream(), true);
-            clientStreamReader = new InputStreamReader(socketConnect.getInputStream()); // used in ServerListener Class
+            connect();
             clientInputReader = new BufferedReader(new InputStreamReader(System.in));
 
-            // start the ServerListener to listen for messages
-            // from the Server
-            ServerListener sListener = new ServerListener();
-            sListener.start();
-
             sendMessage();
 
-            socketConnect.close();
+            close();
         } catch (UnknownHostException e){
-            System.err.println("Unknown Host: " + portNum);
-            System.exit(-1);
+            System.err.println("Unknown Host: " + HOST);
         } catch (IOException e){ // end of UnknownHostException catch
             System.err.println("Connection refused");
             e.printStackTrace();
@@ -76,9 +174,95 @@ class ClientInstance implements Runnable {
 
     } // end of run() method
 
+    /** Method to connect to the {@link Server Server} via a
+     * {@link Socket Socket}, making the TLS handshake if the client has a
+     * TLS factory, ask for the binary protocol if needed and then
+     * start a {@link ServerListener ServerListener} thread.
+     * @throws UnknownHostException if the Server's address cannot be found.
+     * @throws IOException if the Server cannot be reached. */
+    public void connect() throws IOException {
+        ipAddr = InetAddress.getByName(HOST);
+        if(tlsFactory != null){
+            socketConnect = TlsContexts.connect(tlsFactory, HOST, portNum);
+        }else{
+            socketConnect = new Socket(ipAddr, portNum);
+        } // end of if statement
+
+        // add I/O streams
+        clientWriter = new PrintWriter(new OutputStreamWriter(
+                socketConnect.getOutputStream(), StandardCharsets.UTF_8), true);
+        clientStreamReader = new InputStreamReader(
+                socketConnect.getInputStream(), StandardCharsets.UTF_8); // used in ServerListener Class
+
+        // ask for the binary protocol before anything else is sent
+        if(binary){
+            frameReader = new DataInputStream(new BufferedInputStream(socketConnect.getInputStream()));
+            frameWriter = new DataOutputStream(new BufferedOutputStream(socketConnect.getOutputStream()));
+            frameWriter.write((WireProtocol.PREAMBLE + compression + "\n").getBytes(StandardCharsets.UTF_8));
+            frameWriter.flush();
+        } // end of if statement
+
+        // start the ServerListener to listen for messages
+        // from the Server
+        ServerListener sListener = new ServerListener();
+        // the listener never keeps the program running by itself
+        sListener.setDaemon(true);
+        sListener.start();
+    } // end of connect() method
+
+    /** Method to ask the {@link Server Server} to compress the frames it
+     * sends. Only used in binary mode, and must be called before
+     * {@link #connect() connect}.
+     * @param shared - false for one deflate stream for the connection,
+     * which compresses best, or true for each frame compressed on its own,
+     * which lets the Server compress a broadcast once for every receiver. */
+    public void requestCompression(boolean shared){
+        compression = shared ? WireProtocol.DEFLATE_SHARED : WireProtocol.DEFLATE_STREAM;
+    } // end of requestCompression() method
+
+    /** Method to send one message to the {@link Server Server}, as a line
+     * or in binary mode as a frame. It may be called from any thread once
+     * {@link #connect() connect} has returned.
+     * @param msg - the message or command to send.
+     * @throws IOException if the message cannot be sent.
+     * @throws InterruptedException if interrupted while waiting for the
+     * binary protocol to be accepted. */
+    public synchronized void send(String msg) throws IOException, InterruptedException {
+        if(binary){
+            sendFrame(msg);
+        }else{
+            clientWriter.println(msg);
+            if(clientWriter.checkError()){
+                throw new IOException("Connection to server lost");
+            } // end of if statement
+        } // end of if statement
+    } // end of send() method
+
+    /** Method to answer a heartbeat ping from the {@link Server Server}.
+     * @throws IOException if the reply cannot be sent. */
+    private synchronized void sendPong() throws IOException {
+        if(binary){
+            WireProtocol.writeFrame(frameWriter, WireProtocol.PONG, "");
+            frameWriter.flush();
+        }else{
+            clientWriter.println(WireProtocol.PONG_LINE);
+        } // end of if statement
+    } // end of sendPong() method
+
+    /** Method to close the connection to the {@link Server Server}. The
+     * {@link Listener Listener} is told once the ServerListener stops.
+     * @throws IOException if the socket cannot be closed. */
+    public void close() throws IOException {
+        stop = true;
+        if(socketConnect != null){
+            socketConnect.close();
+        } // end of if statement
+    } // end of close() method
+
     /** Method to send message to the server.
      * Method reads from Standard Input and writes to the {@link Socket Socket}
-     * where the Client is connected to the {@link Server Server}.
+     * where the Client is connected to the {@link Server Server} until
+     * standard input ends or the connection is closed.
      * Methd then flushes the buffers of {@link #clientWriter clientWriter}
      * to ensure message is sent to the {@link Server Server}. */
     private void sendMessage(){
@@ -87,20 +271,73 @@ class ClientInstance implements Runnable {
         try{
             // --- while loop to ask for user input and send message to server
             while((msg = clientInputReader.readLine()) != null && stop == false){
-                clientWriter.println(msg);
-                clientWriter.flush();
+                send(msg);
             }
         } catch (IOException e){
             System.err.println("I/O Error whilst sending message");
             e.printStackTrace();
-        } // end of IOException catch
-
-        System.exit(0);
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        } // end of InterruptedException catch
     } // end of sendMessage() method
 
+    /** Method to send a line typed by the user as a frame. Lines starting
+     * with ';' are sent as {@link WireProtocol#CMD CMD} frames and all
+     * others as {@link WireProtocol#CHAT CHAT} frames. Method waits until
+     * the {@link Server Server} has accepted the binary protocol.
+     * @param msg - the line typed by the user.
+     * @throws IOException if the frame cannot be sent.
+     * @throws InterruptedException if interrupted while waiting. */
+    private void sendFrame(String msg) throws IOException, InterruptedException {
+        binaryReady.await();
+        byte type = msg.startsWith(";") ? WireProtocol.CMD : WireProtocol.CHAT;
+        WireProtocol.writeFrame(frameWriter, type, msg);
+        frameWriter.flush();
+    } // end of sendFrame() method
+
+    /** Method to hand a frame from the {@link Server Server} to a
+     * {@link Listener Listener} as one or more lines by type. An
+     * {@link WireProtocol#ACK ACK} frame is a tick, a
+     * {@link WireProtocol#BROADCAST BROADCAST} frame is one line and a
+     * {@link WireProtocol#TEXT TEXT} frame is split into its lines.
+     * @param listener - the Listener.
+     * @param type - the frame type.
+     * @param payload - the decoded payload. */
+    static void passOn(Listener listener, byte type, String payload){
+        if(type == WireProtocol.ACK){
+            listener.onLine("\u2713");
+        }else if(type == WireProtocol.BROADCAST){
+            listener.onLine(payload);
+        }else{
+            // a text frame holds whole lines of command output
+            String[] lines = payload.split("\\R", -1);
+            for(int i = 0; i < lines.length; i++){
+                if(i < lines.length - 1 || !lines[i].isEmpty()){
+                    listener.onLine(lines[i]);
+                } // end of if statement
+            } // end of for loop
+        } // end of if statement
+    } // end of passOn() method
+
+    /** Class that implements the {@link Listener Listener} interface for
+     * an interactive client. Output is printed to standard output and the
+     * program exits when the connection ends. */
+    static class ConsoleListener implements Listener {
+
+        public void onLine(String line){
+            System.out.println(line);
+        } // end of onLine() method
+
+        public void onClose(){
+            System.err.println("System exiting...");
+            System.exit(0);
+        } // end of onClose() method
+    } // end of ConsoleListener Class
+
     /** Class that extends the {@link Thread Thread} class and uses
      * a {@link BufferedReader BufferedReader} to listen for messages
-     * from the {@link Server Server}. */
+     * from the {@link Server Server} and hand them to the
+     * {@link ClientInstance#listener listener}. */
     class ServerListener extends Thread {
 
         // ----- FIELDS ----- //
@@ -114,34 +351,103 @@ class ClientInstance implements Runnable {
 
         /** Method override that uses the {@link #clientReader clientReader}
          * to continually listen for output from the {@link Server Server}
-         * and display it on standard output. */
+         * and hand each line to the {@link ClientInstance#listener listener}.
+         * The listener is told when the connection ends. */
         public void run(){
             String serverMsg;
 
             try{
-                clientReader = new BufferedReader(clientStreamReader);
-
-                // --- while loop to read output from the server
-                // and display on standard output
-                while(!stop){
-                    serverMsg = clientReader.readLine();
-
-                    if(serverMsg != null){
-                        System.out.println(serverMsg);
-                    }else if(serverMsg == null){
-                        System.err.println("System exiting...");
-                        stop = true;
-                    } // end of if statement
+                if(binary){
+                    listenForFrames();
+                }else{
+                    clientReader = new BufferedReader(clientStreamReader);
 
-                } // end of while loop
+                    // --- while loop to read output from the server
+                    // and pass it to the listener
+                    while(!stop){
+                        serverMsg = clientReader.readLine();
 
-                System.exit(0);
+                        if(serverMsg != null){
+                            // answer a heartbeat, which may follow other output
+                            if(serverMsg.endsWith(WireProtocol.PING_LINE)){
+                                sendPong();
+                                serverMsg = serverMsg.substring(0,
+                                        serverMsg.length() - WireProtocol.PING_LINE.length());
+                                if(serverMsg.isEmpty()){
+                                    continue;
+                                } // end of if statement
+                            } // end of if statement
+                            listener.onLine(serverMsg);
+                        }else{
+                            stop = true;
+                        } // end of if statement
+                    } // end of while loop
+                } // end of if statement
             } catch (IOException e){
-                e.printStackTrace();
-                System.err.println("Error when listening to server");
-            } // end of IOException lncatch
+                // a headless client closing its own socket is not an error
+                if(!stop){
+                    e.printStackTrace();
+                    System.err.println("Error when listening to server");
+                } // end of if statement
+            } // end of IOException catch
+
+            stop = true;
+            listener.onClose();
         } // end of run() method
 
+        /** Method to listen to a {@link Server Server} in binary mode.
+         * Text lines are passed on until the {@link WireProtocol#ACCEPT
+         * ACCEPT} line arrives, after which each frame is passed on as one
+         * or more lines by type. Compressed frames are decompressed if the
+         * ACCEPT line agreed to compression.
+         * @throws IOException if the connection fails. */
+        private void listenForFrames() throws IOException {
+            String line;
+
+            // --- while loop to show the greeting until the server
+            // switches to frames
+            while((line = WireProtocol.readTextLine(frameReader)) != null){
+                if(line.startsWith(WireProtocol.ACCEPT)){
+                    if(!compression.isEmpty() && line.equals(WireProtocol.ACCEPT + compression)){
+                        inflater = new Inflater(true);
+                    } // end of if statement
+                    binaryReady.countDown();
+                    break;
+                } // end of if statement
+                // frames cannot be sent yet, so a heartbeat is left unanswered
+                if(line.endsWith(WireProtocol.PING_LINE)){
+                    continue;
+                } // end of if statement
+                listener.onLine(line);
+            } // end of while loop
+
+            try{
+                readFrames();
+            } finally {
+                if(inflater != null){
+                    inflater.end();
+                } // end of if statement
+            } // end of try-finally statement
+        } // end of listenForFrames() method
+
+        /** Method to pass on each frame from the {@link Server Server}
+         * until the connection ends.
+         * @throws IOException if the connection fails. */
+        private void readFrames() throws IOException {
+            // --- while loop to pass on each frame from the server
+            while(!stop){
+                WireProtocol.Frame frame = WireProtocol.readFrame(frameReader, inflater);
+
+                if(frame == null){
+                    stop = true;
+                }else if(frame.TYPE == WireProtocol.PING){
+                    sendPong();
+                }else{
+                    passOn(listener, frame.TYPE, frame.PAYLOAD);
+                } // end of if statement
+            } // end of while loop
+        } // end of readFrames() method
+
     } // end of ServerListener Class
 
 } // end of ClientInstance Class
@@ -1,6 +1,9 @@
 
 // ----- IMPORT STATEMENTS -----
+import java.io.File;
+import java.io.IOException;
 import java.util.Scanner;
+import javax.net.ssl.SSLSocketFactory;
 
 /** Class containing a main method to take user input
  * for the IP address and port number of the {@link Server Server}
@@ -12,7 +15,15 @@ public class ClientMain {
      * starts its thread. The method also uses the {@link Scanner Scanner}
      * class to take user input for the IP address and port number of the
      * {@link Server Server} and passes this to the
-     * {@link ClientInstance ClientInstance} constructor.
+     * {@link ClientInstance ClientInstance} constructor. Options may follow
+     * the port: <code>--binary</code> selects the binary
+     * {@link WireProtocol WireProtocol}, and <code>--tls</code> connects
+     * with TLS, trusting the JVM's usual certificates, or with
+     * <code>--tls=FILE</code> the certificates in a PKCS12 store such as
+     * the Server's test key store. <code>--tls-password=PASS</code> gives
+     * the password of that store. <code>--deflate</code> asks for the
+     * frames sent in binary mode to be compressed with one stream for the
+     * connection, or with <code>--deflate=shared</code> each on its own.
      * @param args - command line aguments passed upon program start. */
     public static void main(String[] args){
         Scanner scan = new Scanner(System.in);
@@ -28,7 +39,43 @@ public class ClientMain {
             args[1] = scan.nextLine();
         } // end of while loop
 
-        ClientInstance client = new ClientInstance(args[0], args[1]);
+        boolean binary = false;
+        boolean tls = false;
+        String deflate = null;
+        String trustStore = null;
+        String password = "changeit";
+        // --- for loop to read each option after the port number
+        for(int i = 2; i < args.length; i++){
+            if(args[i].equals("--binary")){
+                binary = true;
+            }else if(args[i].equals("--tls")){
+                tls = true;
+            }else if(args[i].startsWith("--tls=")){
+                tls = true;
+                trustStore = args[i].substring("--tls=".length());
+            }else if(args[i].startsWith("--tls-password=")){
+                password = args[i].substring("--tls-password=".length());
+            }else if(args[i].equals("--deflate") || args[i].startsWith("--deflate=")){
+                deflate = args[i].substring("--deflate".length());
+            } // end of if statement
+        } // end of for loop
+
+        SSLSocketFactory tlsFactory = null;
+        if(tls){
+            try{
+                tlsFactory = TlsContexts.forClient(trustStore == null ? null : new File(trustStore), password)
+                        .getSocketFactory();
+            } catch (IOException e){
+                System.err.println(e.getMessage());
+                System.exit(-1);
+            } // end of IOException catch
+        } // end of if statement
+
+        ClientInstance client = new ClientInstance(args[0], args[1], binary,
+                new ClientInstance.ConsoleListener(), tlsFactory);
+        if(deflate != null){
+            client.requestCompression(deflate.equals("=shared"));
+        } // end of if statement
         Thread clientThread = new Thread(client);
         clientThread.start();
 
@@ -0,0 +1,113 @@
+// ----- IMPORT STATEMENTS -----
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/** Class that stores one message sent between the {@link Server Server}
+ * nodes of a cluster. Every message carries the id of the node that sent
+ * it and a sequence number counting up from 1 on that node, which
+ * together identify it so copies that arrive twice can be dropped.
+ * <p>A message is written as a type byte, the origin and sequence number
+ * as longs, the key as modified UTF-8 and then the body as an int length
+ * and bytes.</p> */
+final class ClusterMessage {
+
+    /** Byte constant for a chat message; the key is the room and the body
+     * the encoded broadcast line. */
+    static final byte CHAT = 1;
+
+    /** Byte constant for a notice such as "has logged off"; laid out like
+     * {@link #CHAT CHAT} but not kept in history. */
+    static final byte NOTICE = 2;
+
+    /** Byte constant for a private message; the key is the receiver's
+     * username and the body the encoded line. */
+    static final byte DIRECT = 3;
+
+    /** Byte constant for a node taking a username; the key is the name. */
+    static final byte CLAIM = 4;
+
+    /** Byte constant for a node giving up a username; the key is the name. */
+    static final byte RELEASE = 5;
+
+    /** Int constant that stores the largest body accepted. */
+    static final int MAX_BODY = 1 << 20;
+
+    /** Int constant that stores the largest key that can be written, in
+     * bytes of modified UTF-8. */
+    static final int MAX_KEY_BYTES = 65535;
+
+    // ----- FIELDS ----- //
+    /** The type of message. */
+    final byte TYPE;
+
+    /** The id of the node that sent the message. */
+    final long ORIGIN;
+
+    /** The sequence number of the message on its origin node. */
+    final long SEQ;
+
+    /** The room or username the message is about. */
+    final String KEY;
+
+    /** The encoded line, or an empty array. */
+    final byte[] BODY;
+
+    /** Constructor to create a ClusterMessage.
+     * @param type - the type of message.
+     * @param origin - the sending node.
+     * @param seq - the sequence number on the sending node.
+     * @param key - the room or username.
+     * @param body - the encoded line, or an empty array. */
+    ClusterMessage(byte type, long origin, long seq, String key, byte[] body){
+        this.TYPE = type;
+        this.ORIGIN = origin;
+        this.SEQ = seq;
+        this.KEY = key;
+        this.BODY = body;
+    } // end of CONSTRUCTOR
+
+    /** Method to check if a key is short enough to be written, without
+     * encoding it.
+     * @param key - the room or username.
+     * @return True if its modified UTF-8 form fits. */
+    static boolean keyFits(String key){
+        long length = 0;
+        // --- for loop to add the encoded size of each character
+        for(int i = 0; i < key.length(); i++){
+            final char C = key.charAt(i);
+            length += C >= 0x0001 && C <= 0x007F ? 1 : C <= 0x07FF ? 2 : 3;
+        } // end of for loop
+        return length <= MAX_KEY_BYTES;
+    } // end of keyFits() method
+
+    /** Method to write the message to a stream.
+     * @param out - the stream.
+     * @throws IOException if the write fails. */
+    void write(DataOutputStream out) throws IOException {
+        out.writeByte(TYPE);
+        out.writeLong(ORIGIN);
+        out.writeLong(SEQ);
+        out.writeUTF(KEY);
+        out.writeInt(BODY.length);
+        out.write(BODY);
+    } // end of write() method
+
+    /** Method to read a message from a stream.
+     * @param in - the stream.
+     * @return The message read.
+     * @throws IOException if the read fails or the body is too large. */
+    static ClusterMessage read(DataInputStream in) throws IOException {
+        final byte TYPE = in.readByte();
+        final long ORIGIN = in.readLong();
+        final long SEQ = in.readLong();
+        final String KEY = in.readUTF();
+        final int LENGTH = in.readInt();
+        if(LENGTH < 0 || LENGTH > MAX_BODY){
+            throw new IOException("Bad cluster message length " + LENGTH);
+        } // end of if statement
+        byte[] body = new byte[LENGTH];
+        in.readFully(body);
+        return new ClusterMessage(TYPE, ORIGIN, SEQ, KEY, body);
+    } // end of read() method
+} // end of ClusterMessage Class
@@ -0,0 +1,304 @@
+// ----- IMPORT STATEMENTS -----
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Class that joins a {@link Server Server} to a cluster of nodes through
+ * a {@link ClusterRelay ClusterRelay}. It sends this node's broadcasts,
+ * private messages and username changes to the other nodes, and passes
+ * theirs to a {@link Delivery Delivery} after dropping any message it has
+ * already seen.
+ * <p>Each node keeps a map of the usernames held on other nodes, learnt
+ * from their claims and dropped when a node goes away. A name held
+ * anywhere in the cluster cannot be claimed again. If two nodes claim the
+ * same name before hearing of each other, the node with the lower id
+ * keeps it and the other drops its user.</p>
+ * <p>Every message is numbered on the node that sends it. A relay keeps
+ * each node's messages in order on a link, but two links between the same
+ * nodes can deliver them interleaved, and a message missing from the
+ * faster link can arrive on the slower one after later numbers. So each
+ * node keeps a {@link SeenWindow SeenWindow} of which of the latest
+ * {@link #WINDOW WINDOW} numbers from every other node it has seen, and
+ * only a message older than that is taken for a copy unseen.</p> */
+class ClusterNode implements ClusterRelay.Listener {
+
+    /** Interface for the Server code that acts on messages from other
+     * nodes. Its methods are called from the relay's threads. */
+    interface Delivery {
+
+        /** Method to fan out a broadcast to this node's members of a room.
+         * @param room - the room.
+         * @param body - the encoded broadcast line.
+         * @param keep - true for chat that is kept in history. */
+        void broadcast(String room, byte[] body, boolean keep);
+
+        /** Method to pass a private message to a user on this node.
+         * @param usrName - the receiver.
+         * @param body - the encoded line. */
+        void direct(String usrName, byte[] body);
+
+        /** Method to drop a user on this node whose name another node won.
+         * @param usrName - the username.
+         * @return True if a user on this node had the name. */
+        boolean nameLost(String usrName);
+
+        /** Method to check if a user on this node has a username.
+         * @param usrName - the username.
+         * @return True if the name is held on this node. */
+        boolean holds(String usrName);
+
+        /** Method to list the usernames held on this node.
+         * @return The names. */
+        Iterable<String> localNames();
+    } // end of Delivery interface
+
+    // ----- FIELDS ----- //
+    /** Int constant that stores how many of the latest message numbers
+     * from each node are remembered. It is a power of two. */
+    static final int WINDOW = 4096;
+
+    /** Long constant that stores this node's id, chosen at random on each
+     * start so a restarted node's messages are never taken for old ones. */
+    private final long NODE_ID;
+
+    /** {@link ClusterRelay ClusterRelay} linking this node to the others. */
+    private final ClusterRelay RELAY;
+
+    /** {@link Delivery Delivery} that acts on messages from other nodes. */
+    private final Delivery DELIVERY;
+
+    /** {@link ServerMetrics ServerMetrics} that cluster traffic is counted in. */
+    private final ServerMetrics METRICS;
+
+    /** Counter used to number this node's messages. */
+    private final AtomicLong seq = new AtomicLong();
+
+    /** {@link ConcurrentHashMap ConcurrentHashMap} of the message numbers
+     * seen from each other node. */
+    private final ConcurrentHashMap<Long, SeenWindow> lastSeen = new ConcurrentHashMap<Long, SeenWindow>();
+
+    /** {@link ConcurrentHashMap ConcurrentHashMap} of each username held on
+     * another node to the id of that node. */
+    private final ConcurrentHashMap<String, Long> remoteNames = new ConcurrentHashMap<String, Long>();
+
+    /** Constructor to create a ClusterNode with a random id.
+     * @param relay - the relay linking the nodes.
+     * @param delivery - what acts on messages from other nodes.
+     * @param metrics - where cluster traffic is counted. */
+    public ClusterNode(ClusterRelay relay, Delivery delivery, ServerMetrics metrics){
+        long id = 0;
+        while(id == 0){
+            id = ThreadLocalRandom.current().nextLong();
+        } // end of while loop
+        this.NODE_ID = id;
+        this.RELAY = relay;
+        this.DELIVERY = delivery;
+        this.METRICS = metrics;
+    } // end of CONSTRUCTOR
+
+    /** Method to start the relay.
+     * @throws IOException if the relay cannot start. */
+    public void start() throws IOException {
+        RELAY.start(NODE_ID, this);
+        ServerLog.info("Cluster node " + Long.toHexString(NODE_ID) + " started");
+    } // end of start() method
+
+    /** Method to leave the cluster by closing the relay. The other nodes
+     * see this node go down and forget its usernames. */
+    public void close(){
+        RELAY.close();
+        ServerLog.info("Cluster node " + Long.toHexString(NODE_ID) + " stopped");
+    } // end of close() method
+
+    // ----------------
+    //     SENDING
+    // ----------------
+
+    /** Method to send a room broadcast to the other nodes.
+     * @param room - the room.
+     * @param payload - the encoded broadcast.
+     * @param keep - true for chat that is kept in history. */
+    public void publishBroadcast(String room, BroadcastPayload payload, boolean keep){
+        publish(keep ? ClusterMessage.CHAT : ClusterMessage.NOTICE, room, payload.body());
+    } // end of publishBroadcast() method
+
+    /** Method to send a private message to the node holding a username.
+     * It is sent to every node and only the holder delivers it.
+     * @param usrName - the receiver.
+     * @param payload - the encoded line. */
+    public void publishDirect(String usrName, BroadcastPayload payload){
+        publish(ClusterMessage.DIRECT, usrName, payload.body());
+    } // end of publishDirect() method
+
+    /** Method to tell the other nodes this node now holds a username.
+     * @param usrName - the username. */
+    public void claim(String usrName){
+        publish(ClusterMessage.CLAIM, usrName, new byte[0]);
+    } // end of claim() method
+
+    /** Method to tell the other nodes this node no longer holds a username.
+     * @param usrName - the username. */
+    public void release(String usrName){
+        publish(ClusterMessage.RELEASE, usrName, new byte[0]);
+    } // end of release() method
+
+    /** Method to check if a username is held on another node.
+     * @param usrName - the username.
+     * @return True if another node holds it. */
+    public boolean isRemoteUsr(String usrName){
+        return remoteNames.containsKey(usrName);
+    } // end of isRemoteUsr() method
+
+    /** Method to get the number of usernames held on other nodes.
+     * @return The number of remote users. */
+    public int remoteUsrCount(){
+        return remoteNames.size();
+    } // end of remoteUsrCount() method
+
+    /** Method to number a message and hand it to the relay. Numbering
+     * and handing over happen under one lock so the relay is given this
+     * node's messages in number order, which the duplicate check needs.
+     * @param type - the type of message.
+     * @param key - the room or username.
+     * @param body - the encoded line, or an empty array. */
+    private synchronized void publish(byte type, String key, byte[] body){
+        // a key too long to write would break the link it was sent on
+        if(!ClusterMessage.keyFits(key)){
+            ServerLog.warn("Cluster message key too long, not sent");
+            return;
+        } // end of if statement
+        RELAY.publish(new ClusterMessage(type, NODE_ID, seq.incrementAndGet(), key, body));
+        METRICS.clusterOut.increment();
+    } // end of publish() method
+
+    // ----------------
+    //    RECEIVING
+    // ----------------
+
+    public void onMessage(ClusterMessage msg){
+        if(!firstSeen(msg)){
+            METRICS.clusterDuplicates.increment();
+            return;
+        } // end of if statement
+        METRICS.clusterIn.increment();
+
+        switch(msg.TYPE){
+            case ClusterMessage.CHAT:
+            case ClusterMessage.NOTICE:
+                DELIVERY.broadcast(msg.KEY, msg.BODY, msg.TYPE == ClusterMessage.CHAT);
+                break;
+            case ClusterMessage.DIRECT:
+                DELIVERY.direct(msg.KEY, msg.BODY);
+                break;
+            case ClusterMessage.CLAIM:
+                onClaim(msg.KEY, msg.ORIGIN);
+                break;
+            case ClusterMessage.RELEASE:
+                remoteNames.remove(msg.KEY, msg.ORIGIN);
+                break;
+            default:
+                ServerLog.warn("Unknown cluster message type " + msg.TYPE);
+        } // end of switch statement
+    } // end of onMessage() method
+
+    public void onPeerUp(long nodeId){
+        // --- for loop to tell every node, including the new one, which
+        // names this node holds
+        for(String name : DELIVERY.localNames()){
+            claim(name);
+        } // end of for loop
+    } // end of onPeerUp() method
+
+    public void onPeerDown(long nodeId){
+        remoteNames.values().removeIf(owner -> owner == nodeId);
+        lastSeen.remove(nodeId);
+    } // end of onPeerDown() method
+
+    /** Method to record another node's claim to a username. If a user on
+     * this node has the name too, the node with the lower id keeps it;
+     * when that is this node, the other node drops its user on seeing this
+     * node's own claim.
+     * @param usrName - the username.
+     * @param owner - the node that claimed it. */
+    private void onClaim(String usrName, long owner){
+        if(owner < NODE_ID){
+            remoteNames.put(usrName, owner);
+            if(DELIVERY.nameLost(usrName)){
+                ServerLog.warn("Username " + usrName + " taken by cluster node " + Long.toHexString(owner));
+            } // end of if statement
+        }else if(!DELIVERY.holds(usrName)){
+            remoteNames.put(usrName, owner);
+        } // end of if statement
+    } // end of onClaim() method
+
+    /** Method to check if a message is the first copy seen, recording its
+     * number if so.
+     * @param msg - the message.
+     * @return True if no message with this number has been seen from its
+     * node. */
+    private boolean firstSeen(ClusterMessage msg){
+        return lastSeen.computeIfAbsent(msg.ORIGIN, origin -> new SeenWindow()).firstSeen(msg.SEQ);
+    } // end of firstSeen() method
+
+    /** Class that stores which message numbers from one node have been
+     * seen: the highest, and one bit for each of the
+     * {@link ClusterNode#WINDOW WINDOW} numbers up to it. */
+    static final class SeenWindow {
+
+        /** The highest number seen, or 0 if none. */
+        private long highest = 0;
+
+        /** Bits of the numbers seen, each number at its remainder by the
+         * {@link ClusterNode#WINDOW WINDOW}. */
+        private final long[] bits = new long[WINDOW / Long.SIZE];
+
+        /** Method to record a number, checking if it was seen before.
+         * @param seq - the message number.
+         * @return True if the number is new; false if it was seen, or is
+         * too far below the highest to tell. */
+        synchronized boolean firstSeen(long seq){
+            if(seq > highest){
+                // forget the numbers the window moves past
+                if(seq - highest >= WINDOW){
+                    Arrays.fill(bits, 0L);
+                }else{
+                    for(long n = highest + 1; n < seq; n++){
+                        clear(n);
+                    } // end of for loop
+                } // end of if statement
+                highest = seq;
+                mark(seq);
+                return true;
+            } // end of if statement
+            if(seq <= highest - WINDOW || isMarked(seq)){
+                return false;
+            } // end of if statement
+            mark(seq);
+            return true;
+        } // end of firstSeen() method
+
+        /** Method to check a number's bit.
+         * @param seq - the message number.
+         * @return True if its bit is set. */
+        private boolean isMarked(long seq){
+            final int BIT = (int) (seq & (WINDOW - 1));
+            return (bits[BIT >>> 6] & 1L << BIT) != 0;
+        } // end of isMarked() method
+
+        /** Method to set a number's bit.
+         * @param seq - the message number. */
+        private void mark(long seq){
+            final int BIT = (int) (seq & (WINDOW - 1));
+            bits[BIT >>> 6] |= 1L << BIT;
+        } // end of mark() method
+
+        /** Method to clear a number's bit.
+         * @param seq - the message number. */
+        private void clear(long seq){
+            final int BIT = (int) (seq & (WINDOW - 1));
+            bits[BIT >>> 6] &= ~(1L << BIT);
+        } // end of clear() method
+    } // end of SeenWindow Class
+} // end of ClusterNode Class
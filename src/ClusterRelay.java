@@ -0,0 +1,42 @@
+/** Interface for the link between the {@link Server Server} nodes of a
+ * cluster. A relay carries {@link ClusterMessage ClusterMessages} from one
+ * node to every other node and says when other nodes come and go. It does
+ * not need to stop a message arriving twice, or keep messages in order
+ * between different senders; the {@link ClusterNode ClusterNode} above it
+ * throws away duplicates. Messages from one sender over one link must
+ * arrive in the order they were sent.
+ * <p>{@link TcpMeshRelay TcpMeshRelay} links nodes over TCP and
+ * {@link LocalRelay LocalRelay} links nodes in the same JVM.</p> */
+interface ClusterRelay {
+
+    /** Interface for the code that handles what a relay receives. Its
+     * methods are called from the relay's own threads. */
+    interface Listener {
+
+        /** Method called for each message from another node.
+         * @param msg - the message. */
+        void onMessage(ClusterMessage msg);
+
+        /** Method called when a link to another node opens.
+         * @param nodeId - the other node. */
+        void onPeerUp(long nodeId);
+
+        /** Method called when the last link to another node closes.
+         * @param nodeId - the other node. */
+        void onPeerDown(long nodeId);
+    } // end of Listener interface
+
+    /** Method to start linking to the other nodes.
+     * @param nodeId - the id of this node.
+     * @param listener - where received messages are passed.
+     * @throws java.io.IOException if the relay cannot start. */
+    void start(long nodeId, Listener listener) throws java.io.IOException;
+
+    /** Method to send a message to every other node. It may be called from
+     * any thread and must not wait on the network.
+     * @param msg - the message. */
+    void publish(ClusterMessage msg);
+
+    /** Method to close every link. */
+    void close();
+} // end of ClusterRelay interface
@@ -0,0 +1,219 @@
+// ----- IMPORT STATEMENTS -----
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Class that maps client commands such as <code>;join lobby</code> to the
+ * handlers that answer them. Each command has a short alias and a long
+ * name, both looked up in a trie by walking the characters of the line
+ * after the <code>;</code>, so dispatch makes no substrings and no
+ * allocations whatever the number of commands. Handlers are given the
+ * whole line and where its argument starts, and can read the argument
+ * in place with the static helpers here, only making a
+ * {@link String String} when they need to keep it.
+ * <p>New commands are added with {@link #register register}; the help
+ * text is built from the same registrations. Commands must all be
+ * registered before the first dispatch.</p>
+ * @param <S> - the type of session that runs commands. */
+class CommandRegistry<S> {
+
+    /** Interface for the code that answers one command.
+     * @param <S> - the type of session that runs commands. */
+    @FunctionalInterface
+    interface Handler<S> {
+
+        /** Method to answer a command.
+         * @param session - the session that sent it.
+         * @param line - the whole command line.
+         * @param arg - index of the first character of the argument, or
+         * the line length if there is none. */
+        void handle(S session, String line, int arg);
+    } // end of Handler interface
+
+    // ----- FIELDS ----- //
+    /** Char constant that stores the lowest character allowed in a
+     * command name. */
+    private static final char FIRST = '_';
+
+    /** Char constant that stores the highest character allowed in a
+     * command name. */
+    private static final char LAST = 'z';
+
+    /** Root of the trie of command names. */
+    private final Node<S> root = new Node<S>();
+
+    /** {@link List List} of the registered commands in the order they
+     * were added, for the help text. */
+    private final List<Command<S>> registered = new ArrayList<Command<S>>();
+
+    /** Method to add a command under its alias and its name.
+     * @param alias - the short form, without the <code>;</code>.
+     * @param name - the long form, without the <code>;</code>.
+     * @param usage - the arguments shown in the help text, or "".
+     * @param help - what the command does, for the help text.
+     * @param handler - the code that answers the command.
+     * @throws IllegalArgumentException if either form is taken or has a
+     * character other than a lower case letter or underscore. */
+    public void register(String alias, String name, String usage, String help, Handler<S> handler){
+        Command<S> command = new Command<S>(alias, name, usage, help, handler);
+        insert(alias, command);
+        insert(name, command);
+        registered.add(command);
+    } // end of register() method
+
+    /** Method to run the command at the start of a line.
+     * @param session - the session that sent the line.
+     * @param line - the line, starting with <code>;</code>.
+     * @return False if the line does not start with a known command. */
+    public boolean dispatch(S session, String line){
+        final int LENGTH = line.length();
+        Node<S> node = root;
+        int i = 1;
+
+        // --- while loop to follow the trie to the end of the command name
+        while(i < LENGTH && line.charAt(i) != ' '){
+            final char C = line.charAt(i);
+            if(C < FIRST || C > LAST || (node = node.children[C - FIRST]) == null){
+                return false;
+            } // end of if statement
+            i++;
+        } // end of while loop
+
+        if(node.command == null){
+            return false;
+        } // end of if statement
+        node.command.HANDLER.handle(session, line, skipSpaces(line, i));
+        return true;
+    } // end of dispatch() method
+
+    /** Method to print one help line for each command, in the order they
+     * were registered.
+     * @param out - where to print the help. */
+    public void printHelp(PrintWriter out){
+        // --- for loop to print each command's forms and description
+        for(Command<S> command : registered){
+            final String LONG = ";" + command.NAME + (command.USAGE.isEmpty() ? "" : " " + command.USAGE);
+            out.println(";" + command.ALIAS + " \t" + LONG + (LONG.length() < 7 ? " \t\t " : " \t ") + command.HELP);
+        } // end of for loop
+    } // end of printHelp() method
+
+    // ----------------
+    //    ARGUMENTS
+    // ----------------
+
+    /** Method to find the end of the word starting at an index.
+     * @param line - the command line.
+     * @param from - where the word starts.
+     * @return The index just after the word. */
+    static int wordEnd(String line, int from){
+        int end = from;
+        while(end < line.length() && line.charAt(end) != ' '){
+            end++;
+        } // end of while loop
+        return end;
+    } // end of wordEnd() method
+
+    /** Method to skip spaces from an index.
+     * @param line - the command line.
+     * @param from - where to start.
+     * @return The index of the next character that is not a space. */
+    static int skipSpaces(String line, int from){
+        int next = from;
+        while(next < line.length() && line.charAt(next) == ' '){
+            next++;
+        } // end of while loop
+        return next;
+    } // end of skipSpaces() method
+
+    /** Method to read a whole number argument in place.
+     * @param line - the command line.
+     * @param from - where the argument starts.
+     * @param fallback - the value if there is no argument.
+     * @return The number read.
+     * @throws NumberFormatException if the argument is not a number. */
+    static long parseLong(String line, int from, long fallback){
+        if(from >= line.length()){
+            return fallback;
+        } // end of if statement
+        return Long.parseLong(line, from, wordEnd(line, from), 10);
+    } // end of parseLong() method
+
+    /** Method to get the rest of a line as a string without trailing
+     * spaces.
+     * @param line - the command line.
+     * @param from - where the argument starts.
+     * @return The argument, or "" if there is none. */
+    static String rest(String line, int from){
+        return from >= line.length() ? "" : line.substring(from).stripTrailing();
+    } // end of rest() method
+
+    /** Method to add one form of a command to the trie.
+     * @param key - the form, without the <code>;</code>.
+     * @param command - the command it runs. */
+    private void insert(String key, Command<S> command){
+        Node<S> node = root;
+        // --- for loop to walk or grow the trie one character at a time
+        for(int i = 0; i < key.length(); i++){
+            final char C = key.charAt(i);
+            if(C < FIRST || C > LAST || C == '`'){
+                throw new IllegalArgumentException("bad command name: " + key);
+            } // end of if statement
+            if(node.children[C - FIRST] == null){
+                node.children[C - FIRST] = new Node<S>();
+            } // end of if statement
+            node = node.children[C - FIRST];
+        } // end of for loop
+
+        if(key.isEmpty() || node.command != null){
+            throw new IllegalArgumentException("command already registered: " + key);
+        } // end of if statement
+        node.command = command;
+    } // end of insert() method
+
+    /** Class that stores one registered command.
+     * @param <S> - the type of session that runs commands. */
+    private static final class Command<S> {
+
+        /** The short form. */
+        private final String ALIAS;
+
+        /** The long form. */
+        private final String NAME;
+
+        /** The arguments shown in the help text. */
+        private final String USAGE;
+
+        /** What the command does. */
+        private final String HELP;
+
+        /** The code that answers the command. */
+        private final Handler<S> HANDLER;
+
+        /** Constructor to create a Command.
+         * @param alias - the short form.
+         * @param name - the long form.
+         * @param usage - the arguments shown in the help text.
+         * @param help - what the command does.
+         * @param handler - the code that answers the command. */
+        Command(String alias, String name, String usage, String help, Handler<S> handler){
+            this.ALIAS = alias;
+            this.NAME = name;
+            this.USAGE = usage;
+            this.HELP = help;
+            this.HANDLER = handler;
+        } // end of CONSTRUCTOR
+    } // end of Command Class
+
+    /** Class that stores one node of the trie, with a child for each
+     * character from {@link #FIRST FIRST} to {@link #LAST LAST}.
+     * @param <S> - the type of session that runs commands. */
+    private static final class Node<S> {
+
+        /** The child for each next character, or null. */
+        @SuppressWarnings("unchecked")
+        private final Node<S>[] children = (Node<S>[]) new Node<?>[LAST - FIRST + 1];
+
+        /** The command whose name ends at this node, or null. */
+        private Command<S> command;
+    } // end of Node Class
+} // end of CommandRegistry Class
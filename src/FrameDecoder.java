@@ -0,0 +1,101 @@
+// ----- IMPORT STATEMENTS -----
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Inflater;
+
+/** Class that splits the bytes read from a non-blocking channel into
+ * {@link WireProtocol WireProtocol} frames. It is the binary protocol's
+ * counterpart to {@link LineFramer LineFramer}: bytes are collected across
+ * reads until a whole frame has arrived, at which point the payload is
+ * decoded and passed on. A client that has agreed compression with the
+ * Server gives the decoder an {@link Inflater Inflater}, and
+ * {@link WireProtocol#DEFLATED DEFLATED} frames are then passed on as the
+ * frames they hold. */
+class FrameDecoder {
+
+    // ----- FIELDS ----- //
+    /** {@link ByteBuffer ByteBuffer} that collects a frame header split
+     * across reads, or null. A header that arrives whole is read straight
+     * from the read buffer, so most connections never need one. */
+    private ByteBuffer header;
+
+    /** Array that collects the payload of the current frame, or null
+     * while the header is still being read. */
+    private byte[] body;
+
+    /** Number of payload bytes collected so far. */
+    private int bodyFilled;
+
+    /** Type of the current frame. */
+    private byte type;
+
+    /** {@link Inflater Inflater} that compressed frames are decompressed
+     * with, or null if compression has not been agreed. */
+    private Inflater inflater;
+
+    /** Method to have {@link WireProtocol#DEFLATED DEFLATED} frames
+     * decompressed from now on.
+     * @param inflater - the connection's inflater for raw deflate data. */
+    public void setInflater(Inflater inflater){
+        this.inflater = inflater;
+    } // end of setInflater() method
+
+    /** Method to take the bytes that have just been read and pass on each
+     * complete frame. Method consumes all remaining bytes in the buffer
+     * and keeps any partial frame for the next call.
+     * @param buf - buffer in read mode holding the newly read bytes.
+     * @param handler - called once for each complete frame.
+     * @throws IOException if a frame is larger than
+     * {@link WireProtocol#MAX_PAYLOAD MAX_PAYLOAD} or a compressed frame
+     * cannot be read. */
+    public void feed(ByteBuffer buf, WireProtocol.FrameHandler handler) throws IOException {
+        // --- while loop to read headers and payloads in turn
+        while(buf.hasRemaining()){
+            if(body == null){
+                int len;
+                if(header == null && buf.remaining() >= WireProtocol.HEADER_BYTES){
+                    type = buf.get();
+                    len = buf.getInt();
+                }else{
+                    if(header == null){
+                        header = ByteBuffer.allocate(WireProtocol.HEADER_BYTES);
+                    } // end of if statement
+                    // copy as much of the header as has arrived
+                    while(header.hasRemaining() && buf.hasRemaining()){
+                        header.put(buf.get());
+                    } // end of while loop
+                    if(header.hasRemaining()){
+                        return;
+                    } // end of if statement
+
+                    header.flip();
+                    type = header.get();
+                    len = header.getInt();
+                    header = null;
+                } // end of if statement
+                if(len < 0 || len > WireProtocol.MAX_PAYLOAD){
+                    throw new IOException("Frame too large: " + len);
+                } // end of if statement
+                body = new byte[len];
+                bodyFilled = 0;
+            } // end of if statement
+
+            int n = Math.min(body.length - bodyFilled, buf.remaining());
+            buf.get(body, bodyFilled, n);
+            bodyFilled += n;
+
+            if(bodyFilled == body.length){
+                if(type == WireProtocol.DEFLATED && inflater != null){
+                    WireProtocol.Frame frame = FrameDeflater.inflate(inflater, body);
+                    body = null;
+                    handler.onFrame(frame.TYPE, frame.PAYLOAD);
+                    continue;
+                } // end of if statement
+                String payload = new String(body, StandardCharsets.UTF_8);
+                body = null;
+                handler.onFrame(type, payload);
+            } // end of if statement
+        } // end of while loop
+    } // end of feed() method
+} // end of FrameDecoder Class
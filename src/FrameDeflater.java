@@ -0,0 +1,176 @@
+// ----- IMPORT STATEMENTS -----
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/** Class that compresses the frames the {@link Server Server} sends to a
+ * binary {@link WireProtocol WireProtocol} client that asked for
+ * compression. A compressed frame is a {@link WireProtocol#DEFLATED
+ * DEFLATED} frame whose payload is the whole original frame, header
+ * included, as raw deflate data ending in a sync flush. Frames smaller
+ * than a threshold are sent as they are, as compressing them costs more
+ * time than it saves bytes.
+ * <p>A client asks for one of two kinds of compression:</p>
+ * <ul>
+ * <li>{@link WireProtocol#DEFLATE_STREAM DEFLATE_STREAM} keeps one
+ * deflate stream for the whole connection, so each frame can refer back to
+ * earlier ones and repeated names and phrases cost almost nothing. Every
+ * receiver has its own stream, so each broadcast is compressed once per
+ * receiver.</li>
+ * <li>{@link WireProtocol#DEFLATE_SHARED DEFLATE_SHARED} compresses each
+ * frame on its own. The result does not depend on the receiver, so a
+ * {@link BroadcastPayload BroadcastPayload} compresses a broadcast once and
+ * every receiver of that kind shares it.</li>
+ * </ul>
+ * <p>An instance is not thread-safe: a session compresses and queues each
+ * frame under one lock, so frames reach the client in the order the
+ * stream made them.</p> */
+class FrameDeflater {
+
+    // ----- FIELDS ----- //
+    /** {@link ThreadLocal ThreadLocal} of the {@link Deflater Deflater}
+     * each thread uses for frames compressed on their own. It is reset
+     * before each frame. */
+    private static final ThreadLocal<Deflater> ONE_SHOT =
+            ThreadLocal.withInitial(() -> new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+
+    /** {@link Deflater Deflater} of the connection's stream, or null if
+     * each frame is compressed on its own. */
+    private final Deflater STREAM;
+
+    /** Int constant that stores the smallest frame that is compressed. */
+    private final int MIN_BYTES;
+
+    /** Boolean set once {@link #end() end} has released the stream. */
+    private boolean ended = false;
+
+    /** Constructor to create a FrameDeflater for one connection.
+     * @param stream - true to keep one deflate stream across frames, false
+     * to compress each frame on its own.
+     * @param minBytes - the smallest frame that is compressed. */
+    public FrameDeflater(boolean stream, int minBytes){
+        this.STREAM = stream ? new Deflater(Deflater.DEFAULT_COMPRESSION, true) : null;
+        this.MIN_BYTES = minBytes;
+    } // end of CONSTRUCTOR
+
+    /** Method to check if frames are compressed on their own, so shared
+     * compressed broadcasts can be sent.
+     * @return True if there is no stream. */
+    public boolean isShared(){
+        return STREAM == null;
+    } // end of isShared() method
+
+    /** Method to check if a frame is large enough to be compressed.
+     * @param frame - the frame in read mode.
+     * @return True if it should be compressed. */
+    public boolean wants(ByteBuffer frame){
+        return frame.remaining() >= MIN_BYTES;
+    } // end of wants() method
+
+    /** Method to compress a frame if it is large enough. Once the stream
+     * has been released every frame is passed through as it is.
+     * @param frame - the frame in read mode, which is read to the end if
+     * compressed.
+     * @return The {@link WireProtocol#DEFLATED DEFLATED} frame, or the
+     * same frame. */
+    public ByteBuffer compress(ByteBuffer frame){
+        if(ended || !wants(frame)){
+            return frame;
+        } // end of if statement
+        return STREAM != null ? deflate(STREAM, frame) : deflateOnce(frame);
+    } // end of compress() method
+
+    /** Method to release the stream's native memory. Later frames are
+     * not compressed. */
+    public void end(){
+        ended = true;
+        if(STREAM != null){
+            STREAM.end();
+        } // end of if statement
+    } // end of end() method
+
+    /** Method to compress a frame on its own, so that any client that
+     * asked for compression can read it.
+     * @param frame - the frame in read mode, which is not moved.
+     * @return The {@link WireProtocol#DEFLATED DEFLATED} frame. */
+    static ByteBuffer deflateOnce(ByteBuffer frame){
+        Deflater deflater = ONE_SHOT.get();
+        deflater.reset();
+        return deflate(deflater, frame.duplicate());
+    } // end of deflateOnce() method
+
+    /** Method to run a frame through a deflater and sync flush it, so the
+     * client can read the frame without waiting for later ones. The
+     * {@link WireProtocol#DEFLATED DEFLATED} header is written in front of
+     * the output without copying it.
+     * @param deflater - the deflater.
+     * @param frame - the frame in read mode, which is read to the end.
+     * @return The DEFLATED frame in read mode. */
+    private static ByteBuffer deflate(Deflater deflater, ByteBuffer frame){
+        byte[] out = new byte[WireProtocol.HEADER_BYTES + frame.remaining() / 2 + 64];
+        int len = WireProtocol.HEADER_BYTES;
+        deflater.setInput(frame);
+        // --- while loop to deflate until the flush leaves room to spare,
+        // which is how zlib shows it has written everything
+        while(true){
+            len += deflater.deflate(out, len, out.length - len, Deflater.SYNC_FLUSH);
+            if(len < out.length){
+                break;
+            } // end of if statement
+            out = Arrays.copyOf(out, out.length * 2);
+        } // end of while loop
+
+        ByteBuffer buf = ByteBuffer.wrap(out, 0, len);
+        buf.put(WireProtocol.DEFLATED).putInt(len - WireProtocol.HEADER_BYTES).rewind();
+        return buf;
+    } // end of deflate() method
+
+    /** Method used by a client to decompress the payload of a
+     * {@link WireProtocol#DEFLATED DEFLATED} frame back into the frame it
+     * holds. The client keeps one {@link Inflater Inflater} for the whole
+     * connection whichever kind of compression it asked for: a frame
+     * compressed on its own never refers back past its start, so it reads
+     * the same after earlier frames as on its own.
+     * @param inflater - an inflater for raw deflate data.
+     * @param payload - the DEFLATED payload.
+     * @return The frame it holds.
+     * @throws IOException if the payload is not valid, or the frame it
+     * holds is cut short or too large. */
+    static WireProtocol.Frame inflate(Inflater inflater, byte[] payload) throws IOException {
+        byte[] out = new byte[Math.max(256, payload.length * 4)];
+        int len = 0;
+        inflater.setInput(payload);
+        try{
+            // --- while loop to inflate until every input byte is used and
+            // the output was not filled
+            while(true){
+                final int COUNT = inflater.inflate(out, len, out.length - len);
+                len += COUNT;
+                if(len < out.length && inflater.needsInput()){
+                    break;
+                } // end of if statement
+                if(len == out.length){
+                    if(out.length > WireProtocol.MAX_PAYLOAD + WireProtocol.HEADER_BYTES){
+                        throw new IOException("Compressed frame too large");
+                    } // end of if statement
+                    out = Arrays.copyOf(out, out.length * 2);
+                }else if(COUNT == 0){
+                    throw new IOException("Compressed frame cannot be read");
+                } // end of if statement
+            } // end of while loop
+        } catch (DataFormatException e){
+            throw new IOException("Invalid compressed frame: " + e.getMessage(), e);
+        } // end of DataFormatException catch
+
+        ByteBuffer frame = ByteBuffer.wrap(out, 0, len);
+        if(len < WireProtocol.HEADER_BYTES || frame.getInt(1) != len - WireProtocol.HEADER_BYTES){
+            throw new IOException("Compressed frame is not a whole frame");
+        } // end of if statement
+        return new WireProtocol.Frame(out[0], new String(out, WireProtocol.HEADER_BYTES,
+                len - WireProtocol.HEADER_BYTES, StandardCharsets.UTF_8));
+    } // end of inflate() method
+} // end of FrameDeflater Class
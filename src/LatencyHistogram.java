@@ -0,0 +1,137 @@
+// ----- IMPORT STATEMENTS -----
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Class that records latencies into log-linear buckets so percentiles can
+ * be read without keeping every sample. Values are stored in microseconds.
+ * Values under 64 have a bucket each; above that each power of two is
+ * split into 32 buckets, so a percentile is within about 3% of the true
+ * value. Recording is lock-free and may be done from any thread. */
+class LatencyHistogram {
+
+    // ----- FIELDS ----- //
+    /** Int constant that stores the number of values with a bucket each. */
+    private static final int LINEAR = 64;
+
+    /** Int constant that stores the number of buckets per power of two
+     * above {@link #LINEAR LINEAR}. */
+    private static final int SUB_BUCKETS = 32;
+
+    /** Count of values recorded in each bucket. */
+    private final AtomicLongArray counts =
+            new AtomicLongArray(LINEAR + (63 - 6) * SUB_BUCKETS);
+
+    /** Total of every value recorded, used for the mean. */
+    private final LongAdder total = new LongAdder();
+
+    /** Number of values recorded. */
+    private final LongAdder count = new LongAdder();
+
+    /** Largest value recorded. */
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /** Method to record one latency.
+     * @param nanos - the latency in nanoseconds. */
+    public void record(long nanos){
+        final long MICROS = Math.max(0, nanos / 1000);
+        counts.incrementAndGet(indexOf(MICROS));
+        total.add(MICROS);
+        count.increment();
+        max.accumulate(MICROS);
+    } // end of record() method
+
+    /** Method to get the bucket that a value is counted in.
+     * @param micros - the value.
+     * @return The bucket index. */
+    private static int indexOf(long micros){
+        if(micros < LINEAR){
+            return (int) micros;
+        } // end of if statement
+        // exponent of the highest bit, then the next five bits
+        int exp = 63 - Long.numberOfLeadingZeros(micros);
+        int sub = (int) (micros >>> (exp - 5)) & (SUB_BUCKETS - 1);
+        return LINEAR + (exp - 6) * SUB_BUCKETS + sub;
+    } // end of indexOf() method
+
+    /** Method to get the smallest value counted in a bucket.
+     * @param index - the bucket index.
+     * @return The lowest value in microseconds. */
+    private static long lowestOf(int index){
+        if(index < LINEAR){
+            return index;
+        } // end of if statement
+        int exp = (index - LINEAR) / SUB_BUCKETS + 6;
+        int sub = (index - LINEAR) % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + sub) << (exp - 5);
+    } // end of lowestOf() method
+
+    /** Method to get the number of values recorded.
+     * @return The count. */
+    public long getCount(){
+        return count.sum();
+    } // end of getCount() method
+
+    /** Method to get the mean of the values recorded.
+     * @return The mean in microseconds, or 0 if nothing was recorded. */
+    public double getMean(){
+        final long N = count.sum();
+        return N == 0 ? 0 : (double) total.sum() / N;
+    } // end of getMean() method
+
+    /** Method to get the largest value recorded.
+     * @return The maximum in microseconds. */
+    public long getMax(){
+        return max.get();
+    } // end of getMax() method
+
+    /** Method to get a percentile of the values recorded.
+     * @param p - the percentile as a fraction, such as 0.999.
+     * @return The lowest value of the bucket holding that percentile, in
+     * microseconds, or 0 if nothing was recorded. */
+    public long getPercentile(double p){
+        final long N = count.sum();
+        if(N == 0){
+            return 0;
+        } // end of if statement
+
+        final long RANK = Math.max(1, (long) Math.ceil(p * N));
+        long seen = 0;
+        // --- for loop to find the bucket holding the rank
+        for(int i = 0; i < counts.length(); i++){
+            seen += counts.get(i);
+            if(seen >= RANK){
+                return Math.min(lowestOf(i), getMax());
+            } // end of if statement
+        } // end of for loop
+        return getMax();
+    } // end of getPercentile() method
+
+    /** Method to print the counts grouped by powers of two, one row per
+     * group that holds any values, with a bar scaled to the largest row.
+     * @param out - the stream to print to. */
+    public void print(PrintStream out){
+        final int ROWS = 64;
+        long[] rows = new long[ROWS];
+        long biggest = 0;
+        // --- for loop to add each bucket to its power of two
+        for(int i = 0; i < counts.length(); i++){
+            long c = counts.get(i);
+            if(c > 0){
+                int row = 64 - Long.numberOfLeadingZeros(lowestOf(i));
+                rows[row] += c;
+                biggest = Math.max(biggest, rows[row]);
+            } // end of if statement
+        } // end of for loop
+
+        // --- for loop to print each row that holds values
+        for(int row = 0; row < ROWS; row++){
+            if(rows[row] > 0){
+                final long BELOW = 1L << row;
+                final int BAR = (int) Math.max(1, rows[row] * 40 / biggest);
+                out.printf("  < %10d us %12d  %s%n", BELOW, rows[row], "#".repeat(BAR));
+            } // end of if statement
+        } // end of for loop
+    } // end of print() method
+} // end of LatencyHistogram Class
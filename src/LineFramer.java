@@ -0,0 +1,95 @@
+// ----- IMPORT STATEMENTS -----
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.function.Consumer;
+
+/** Class that splits the bytes read from a non-blocking channel into
+ * lines of text. Bytes are collected across reads until a line feed is
+ * found, at which point the line is decoded and passed on. A trailing
+ * carriage return is removed so that the lines match those returned by
+ * {@link java.io.BufferedReader#readLine() readLine}.
+ * <p>Each line is copied out of the read buffer into an array of its
+ * own and decoded from there. A line split across reads is first
+ * collected in a buffer, which is dropped again once the line is
+ * complete, so a connection that is not part way through a line holds
+ * no buffer at all. A line longer than the framer's limit is refused, so
+ * a peer that never sends a line feed cannot use up the heap.</p> */
+class LineFramer {
+
+    // ----- FIELDS ----- //
+    /** {@link ByteArrayOutputStream ByteArrayOutputStream} that stores the
+     * bytes of a line that has not yet been terminated, or null if the
+     * last read ended with a whole line. */
+    private ByteArrayOutputStream partialLine;
+
+    /** {@link Charset Charset} used to decode each line. */
+    private final Charset CHARSET;
+
+    /** Int constant that stores the longest line accepted, in bytes. */
+    private final int MAX_LINE_BYTES;
+
+    /** Constructor to create a LineFramer for a single connection.
+     * @param charset - the charset used to decode each line.
+     * @param maxLineBytes - the longest line accepted, in bytes. */
+    public LineFramer(Charset charset, int maxLineBytes){
+        this.CHARSET = charset;
+        this.MAX_LINE_BYTES = maxLineBytes;
+    } // end of CONSTRUCTOR
+
+    /** Method to take the bytes that have just been read and pass on each
+     * complete line. Method consumes all remaining bytes in the buffer and
+     * keeps any unterminated line for the next call.
+     * @param buf - buffer in read mode holding the newly read bytes.
+     * @param lineHandler - called once for each complete line.
+     * @throws IOException if a line is longer than the framer's limit. */
+    public void feed(ByteBuffer buf, Consumer<String> lineHandler) throws IOException {
+        // --- while loop to pass on each line that ends in the buffer
+        while(buf.hasRemaining()){
+            int end = buf.position();
+            while(end < buf.limit() && buf.get(end) != '\n'){
+                end++;
+            } // end of while loop
+
+            final long LENGTH = (partialLine == null ? 0 : partialLine.size()) + end - buf.position();
+            if(LENGTH > MAX_LINE_BYTES){
+                partialLine = null;
+                throw new IOException("Line too long: over " + MAX_LINE_BYTES + " bytes");
+            } // end of if statement
+
+            byte[] bytes = new byte[end - buf.position()];
+            buf.get(bytes);
+            if(end == buf.limit()){
+                // keep the unterminated line for the next read
+                if(partialLine == null){
+                    partialLine = new ByteArrayOutputStream(Math.max(128, bytes.length));
+                } // end of if statement
+                partialLine.write(bytes, 0, bytes.length);
+                return;
+            } // end of if statement
+            buf.get(); // the line feed
+
+            if(partialLine != null){
+                partialLine.write(bytes, 0, bytes.length);
+                bytes = partialLine.toByteArray();
+                partialLine = null;
+            } // end of if statement
+            lineHandler.accept(decode(bytes));
+        } // end of while loop
+    } // end of feed() method
+
+    /** Method to decode the bytes of a line.
+     * @param bytes - the bytes of the line without its line feed.
+     * @return The decoded line without its line terminator. */
+    private String decode(byte[] bytes){
+        int len = bytes.length;
+
+        // strip carriage return sent by telnet style clients
+        if(len > 0 && bytes[len - 1] == '\r'){
+            len--;
+        } // end of if statement
+
+        return new String(bytes, 0, len, CHARSET);
+    } // end of decode() method
+} // end of LineFramer Class
@@ -0,0 +1,357 @@
+// ----- IMPORT STATEMENTS -----
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Class containing a main method that load tests a {@link Server Server}
+ * by running many headless {@link ClientInstance Clients} in one program.
+ * <p>Run with <code>java LoadGenerator &lt;ip&gt; &lt;port&gt;
+ * [--option=value...]</code>. Each simulated session logs in with its own
+ * username, joins a room shared with <code>--room-size</code> other
+ * sessions and then sends chat messages at <code>--rate</code> messages a
+ * second. Each message carries the time it was sent, so every member of
+ * the room that receives the broadcast records the send-to-receive
+ * latency. At the end the throughput and latency percentiles are
+ * printed along with a histogram.</p>
+ * <ul>
+ * <li>--sessions=N - number of sessions, default 100</li>
+ * <li>--rate=N - messages a second sent by each session, default 1</li>
+ * <li>--duration=S - seconds to send for, default 10</li>
+ * <li>--room-size=N - sessions in each room, default 10</li>
+ * <li>--send-threads=N - threads sending messages, default the number of
+ * cores</li>
+ * <li>--binary - use the binary {@link WireProtocol WireProtocol}</li>
+ * <li>--nio - run the sessions as {@link NioClient NioClients} on one
+ * event loop thread a core, rather than a thread a session</li>
+ * </ul> */
+class LoadGenerator {
+
+    // ----- FIELDS ----- //
+    /** {@link String String} constant that starts every message sent, and
+     * is followed by the send time in nanoseconds. */
+    private static final String MARKER = "load ";
+
+    /** {@link String String} constant found in a broadcast line between
+     * the sender's username and a load message. */
+    private static final String BROADCAST_MARKER = ": " + MARKER;
+
+    /** {@link String String} field to store the IP address of the Server. */
+    private String host;
+
+    /** {@link String String} field to store the port number of the Server. */
+    private String port;
+
+    /** Int field to store the number of sessions to run. */
+    private int sessions = 100;
+
+    /** Double field to store the messages sent a second by each session. */
+    private double rate = 1;
+
+    /** Int field to store the number of seconds to send for. */
+    private int durationSec = 10;
+
+    /** Int field to store the number of sessions in each room. */
+    private int roomSize = 10;
+
+    /** Int field to store the number of threads that send messages. */
+    private int sendThreads = Runtime.getRuntime().availableProcessors();
+
+    /** Boolean field that is true if sessions use the binary protocol. */
+    private boolean binary = false;
+
+    /** Boolean field that is true if sessions are run as
+     * {@link NioClient NioClients}. */
+    private boolean nio = false;
+
+    /** List of the {@link NioClient.EventLoop EventLoops} that run the
+     * sessions when {@link #nio nio} is set. */
+    private final List<NioClient.EventLoop> loops = new ArrayList<NioClient.EventLoop>();
+
+    /** {@link LatencyHistogram LatencyHistogram} of send-to-receive times. */
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    /** Counter of messages sent. */
+    private final LongAdder sent = new LongAdder();
+
+    /** Counter of broadcasts that should be received for the messages
+     * sent, one for each other member of the sender's room. */
+    private final LongAdder expected = new LongAdder();
+
+    /** Counter of broadcasts received. */
+    private final LongAdder received = new LongAdder();
+
+    /** Counter of sends that failed. */
+    private final LongAdder sendErrors = new LongAdder();
+
+    /** Main method that parses the options and runs the load test.
+     * @param args - the IP address and port of the Server, then options.
+     * @throws InterruptedException if interrupted while running.
+     * @throws IOException if an event loop cannot be started. */
+    public static void main(String[] args) throws InterruptedException, IOException {
+        if(args.length < 2){
+            System.err.println("usage: java LoadGenerator <ip> <port> [--sessions=N]"
+                    + " [--rate=N] [--duration=S] [--room-size=N] [--send-threads=N] [--binary] [--nio]");
+            return;
+        } // end of if statement
+
+        LoadGenerator generator = new LoadGenerator();
+        generator.host = args[0];
+        generator.port = args[1];
+
+        // --- for loop to read each option after the port number
+        for(int i = 2; i < args.length; i++){
+            String arg = args[i];
+            int eq = arg.indexOf('=');
+            String name = eq < 0 ? arg : arg.substring(0, eq);
+            String value = eq < 0 ? "" : arg.substring(eq + 1);
+
+            switch(name){
+                case "--sessions":
+                    generator.sessions = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "--rate":
+                    generator.rate = Double.parseDouble(value);
+                    break;
+                case "--duration":
+                    generator.durationSec = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "--room-size":
+                    generator.roomSize = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "--send-threads":
+                    generator.sendThreads = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "--binary":
+                    generator.binary = true;
+                    break;
+                case "--nio":
+                    generator.nio = true;
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown option: " + arg);
+            } // end of switch statement
+        } // end of for loop
+
+        generator.run();
+    } // end of main() method
+
+    /** Method to run the load test: log every session in, send for the
+     * chosen duration, wait briefly for broadcasts still in flight and then
+     * print the report and log every session out.
+     * @throws InterruptedException if interrupted while running.
+     * @throws IOException if an event loop cannot be started. */
+    private void run() throws InterruptedException, IOException {
+        final String RUN_ID = Long.toString(ThreadLocalRandom.current().nextLong(1L << 32), 36);
+        final CountDownLatch READY = new CountDownLatch(sessions);
+        final List<SimSession> opened = new ArrayList<SimSession>();
+        if(nio){
+            // --- for loop to start one event loop for each core
+            for(int i = 0; i < Runtime.getRuntime().availableProcessors(); i++){
+                loops.add(new NioClient.EventLoop("load-loop-" + i));
+            } // end of for loop
+        } // end of if statement
+
+        System.out.println("Connecting " + sessions + " sessions...");
+        // --- for loop to connect and log in each session
+        for(int i = 0; i < sessions; i++){
+            final int ROOM = i / roomSize;
+            final int MEMBERS = Math.min(roomSize, sessions - ROOM * roomSize);
+            SimSession session = new SimSession("load-" + RUN_ID + "-" + i,
+                    "load-" + RUN_ID + "-room-" + ROOM, MEMBERS, READY, i);
+            try{
+                session.open();
+                opened.add(session);
+            } catch (IOException e){
+                System.err.println("Session " + i + " failed to connect: " + e.getMessage());
+                READY.countDown();
+            } // end of IOException catch
+        } // end of for loop
+
+        if(!READY.await(60, TimeUnit.SECONDS)){
+            System.err.println((READY.getCount()) + " sessions did not join their room in time");
+        } // end of if statement
+
+        // --- send at a fixed rate from each session, starting at random
+        // offsets so that sends are spread out
+        final long PERIOD_NANOS = (long) (1e9 / rate);
+        ScheduledExecutorService senders = Executors.newScheduledThreadPool(sendThreads);
+        List<ScheduledFuture<?>> tasks = new ArrayList<ScheduledFuture<?>>();
+        System.out.println("Sending for " + durationSec + " seconds...");
+        final long START = System.nanoTime();
+        for(SimSession session : opened){
+            tasks.add(senders.scheduleAtFixedRate(session::sendOne,
+                    ThreadLocalRandom.current().nextLong(PERIOD_NANOS), PERIOD_NANOS, TimeUnit.NANOSECONDS));
+        } // end of for loop
+
+        Thread.sleep(durationSec * 1000L);
+        for(ScheduledFuture<?> task : tasks){
+            task.cancel(false);
+        } // end of for loop
+        senders.shutdown();
+        senders.awaitTermination(5, TimeUnit.SECONDS);
+        final long SEND_NANOS = System.nanoTime() - START;
+
+        // give broadcasts still in flight time to arrive
+        final long GRACE_END = System.currentTimeMillis() + 2000;
+        while(received.sum() < expected.sum() && System.currentTimeMillis() < GRACE_END){
+            Thread.sleep(10);
+        } // end of while loop
+
+        report(opened.size(), SEND_NANOS);
+
+        // --- for loop to log out each session
+        for(SimSession session : opened){
+            session.close();
+        } // end of for loop
+
+        // give the logouts time to be written before the program exits
+        final long CLOSE_END = System.currentTimeMillis() + 2000;
+        for(SimSession session : opened){
+            while(!session.closed && System.currentTimeMillis() < CLOSE_END){
+                Thread.sleep(10);
+            } // end of while loop
+        } // end of for loop
+    } // end of run() method
+
+    /** Method to print the throughput, latency percentiles and histogram.
+     * @param connected - the number of sessions that connected.
+     * @param sendNanos - how long messages were sent for. */
+    private void report(int connected, long sendNanos){
+        final double SECONDS = sendNanos / 1e9;
+        System.out.println();
+        System.out.println("sessions:  " + connected + " connected of " + sessions
+                + ", " + ((sessions + roomSize - 1) / roomSize) + " rooms of up to " + roomSize);
+        System.out.printf("sent:      %d messages, %.1f/s, %d errors%n",
+                sent.sum(), sent.sum() / SECONDS, sendErrors.sum());
+        System.out.printf("received:  %d of %d broadcasts, %.1f/s%n",
+                received.sum(), expected.sum(), received.sum() / SECONDS);
+        System.out.printf("latency:   p50 %d us, p99 %d us, p999 %d us, max %d us, mean %.1f us%n",
+                latency.getPercentile(0.50), latency.getPercentile(0.99),
+                latency.getPercentile(0.999), latency.getMax(), latency.getMean());
+        System.out.println("histogram:");
+        latency.print(System.out);
+    } // end of report() method
+
+    /** Class that implements the {@link ClientInstance.Listener Listener}
+     * interface and runs one simulated session over a headless
+     * {@link ChatClient ChatClient}. */
+    private class SimSession implements ClientInstance.Listener {
+
+        /** {@link String String} constant that stores the username. */
+        private final String USR_NAME;
+
+        /** {@link String String} constant that stores the room to join. */
+        private final String ROOM;
+
+        /** Int constant that stores the number of sessions in the room. */
+        private final int MEMBERS;
+
+        /** {@link CountDownLatch CountDownLatch} counted down once the
+         * session has joined its room. */
+        private final CountDownLatch READY;
+
+        /** The headless client of this session. */
+        private final ChatClient CLIENT;
+
+        /** Boolean set once the session has joined its room. */
+        private volatile boolean joined = false;
+
+        /** Boolean set once the connection has ended. */
+        private volatile boolean closed = false;
+
+        /** Constructor to create a SimSession.
+         * @param usrName - the username to log in with.
+         * @param room - the room to join.
+         * @param members - the number of sessions in the room.
+         * @param ready - counted down once the room is joined.
+         * @param index - the number of the session, which picks its event
+         * loop. */
+        public SimSession(String usrName, String room, int members, CountDownLatch ready, int index){
+            this.USR_NAME = usrName;
+            this.ROOM = room;
+            this.MEMBERS = members;
+            this.READY = ready;
+            if(nio){
+                this.CLIENT = new NioClient(host, port, binary, this, loops.get(index % loops.size()));
+            }else{
+                this.CLIENT = new ClientInstance(host, port, binary, this);
+            } // end of if statement
+        } // end of CONSTRUCTOR
+
+        /** Method to connect, send the username and ask to join the room.
+         * Both are sent straight away; the Server reads them in order.
+         * @throws IOException if the Server cannot be reached. */
+        public void open() throws IOException {
+            CLIENT.connect();
+            try{
+                CLIENT.send(USR_NAME);
+                CLIENT.send(";join " + ROOM);
+            } catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while logging in");
+            } // end of InterruptedException catch
+        } // end of open() method
+
+        /** Method run at the send rate to send one message carrying the
+         * time it was sent. */
+        public void sendOne(){
+            if(closed){
+                return;
+            } // end of if statement
+            try{
+                CLIENT.send(MARKER + System.nanoTime());
+                sent.increment();
+                expected.add(MEMBERS - 1);
+            } catch (IOException e){
+                sendErrors.increment();
+            } catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+            } // end of InterruptedException catch
+        } // end of sendOne() method
+
+        /** Method to log out and close the connection. */
+        public void close(){
+            try{
+                if(!closed){
+                    CLIENT.send(";e");
+                } // end of if statement
+                CLIENT.close();
+            } catch (IOException e){
+                // already closed by the Server
+            } catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+            } // end of InterruptedException catch
+        } // end of close() method
+
+        public void onLine(String line){
+            final int AT = line.indexOf(BROADCAST_MARKER);
+            if(AT > 0){
+                try{
+                    latency.record(System.nanoTime()
+                            - Long.parseLong(line.substring(AT + BROADCAST_MARKER.length())));
+                    received.increment();
+                } catch (NumberFormatException e){
+                    // a chat message that only looks like a load message
+                } // end of NumberFormatException catch
+            }else if(!joined && line.equals("--- Joined room " + ROOM + " ---")){
+                joined = true;
+                READY.countDown();
+            } // end of if statement
+        } // end of onLine() method
+
+        public void onClose(){
+            closed = true;
+            if(!joined){
+                joined = true;
+                READY.countDown();
+            } // end of if statement
+        } // end of onClose() method
+    } // end of SimSession Class
+} // end of LoadGenerator Class
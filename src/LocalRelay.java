@@ -0,0 +1,76 @@
+// ----- IMPORT STATEMENTS -----
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/** Class that implements the {@link ClusterRelay ClusterRelay} interface
+ * for nodes in the same JVM, such as a test or benchmark standing in for
+ * other {@link Server Server} nodes. Relays that use the same hub name
+ * are linked. Each relay hands what it receives to its listener on its
+ * own thread, in the order it was published, as a network link would. */
+class LocalRelay implements ClusterRelay {
+
+    // ----- FIELDS ----- //
+    /** {@link ConcurrentHashMap ConcurrentHashMap} of the relays linked
+     * under each hub name. */
+    private static final ConcurrentHashMap<String, List<LocalRelay>> hubs =
+            new ConcurrentHashMap<String, List<LocalRelay>>();
+
+    /** {@link String String} constant that stores the hub name. */
+    private final String HUB;
+
+    /** {@link ExecutorService ExecutorService} that passes received
+     * messages to the listener one at a time. */
+    private final ExecutorService inbox = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "local-relay");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /** The id of this node. */
+    private volatile long nodeId;
+
+    /** Where received messages are passed. */
+    private volatile Listener listener;
+
+    /** Constructor to create a LocalRelay.
+     * @param hub - the name of the hub to link through. */
+    public LocalRelay(String hub){
+        this.HUB = hub;
+    } // end of CONSTRUCTOR
+
+    public void start(long nodeId, Listener listener){
+        this.nodeId = nodeId;
+        this.listener = listener;
+        List<LocalRelay> linked = hubs.computeIfAbsent(HUB, name -> new CopyOnWriteArrayList<LocalRelay>());
+        // --- for loop to tell this relay and each other one about each other
+        for(LocalRelay other : linked){
+            other.inbox.execute(() -> other.listener.onPeerUp(nodeId));
+            inbox.execute(() -> listener.onPeerUp(other.nodeId));
+        } // end of for loop
+        linked.add(this);
+    } // end of start() method
+
+    public void publish(ClusterMessage msg){
+        // --- for loop to queue the message for every other relay
+        for(LocalRelay other : hubs.getOrDefault(HUB, List.of())){
+            if(other != this){
+                other.inbox.execute(() -> other.listener.onMessage(msg));
+            } // end of if statement
+        } // end of for loop
+    } // end of publish() method
+
+    public void close(){
+        List<LocalRelay> linked = hubs.get(HUB);
+        if(linked == null || !linked.remove(this)){
+            return;
+        } // end of if statement
+        // --- for loop to tell each other relay this one has gone
+        for(LocalRelay other : linked){
+            other.inbox.execute(() -> other.listener.onPeerDown(nodeId));
+        } // end of for loop
+        inbox.shutdown();
+    } // end of close() method
+} // end of LocalRelay Class
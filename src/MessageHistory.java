@@ -0,0 +1,86 @@
+// ----- IMPORT STATEMENTS -----
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/** Class that keeps the most recent broadcasts of a room in a ring buffer
+ * of fixed size. The slots are allocated up front and each holds the
+ * already encoded {@link BroadcastPayload BroadcastPayload} that was
+ * fanned out, so history costs no extra encoding and a message is let go
+ * as soon as a newer one takes its slot.
+ * <p>Only one thread may append, which is the room's shard. Any number of
+ * threads may read at the same time without locking. Each slot stores the
+ * sequence number of its message, cleared while the slot is rewritten, so
+ * a reader can tell if a message it wanted was replaced while it read and
+ * skip it.</p> */
+class MessageHistory {
+
+    // ----- FIELDS ----- //
+    /** Int constant that stores the number of messages kept. */
+    private final int CAPACITY;
+
+    /** Slots holding the messages. */
+    private final AtomicReferenceArray<BroadcastPayload> payloads;
+
+    /** Sequence number of the message in each slot, or -1 while the slot
+     * is empty or being rewritten. */
+    private final AtomicLongArray seqs;
+
+    /** Sequence number the next message will be given. */
+    private volatile long next = 0;
+
+    /** Constructor to create an empty MessageHistory.
+     * @param capacity - the number of messages kept. */
+    public MessageHistory(int capacity){
+        this.CAPACITY = capacity;
+        this.payloads = new AtomicReferenceArray<BroadcastPayload>(capacity);
+        this.seqs = new AtomicLongArray(capacity);
+        // --- for loop to mark every slot empty
+        for(int i = 0; i < capacity; i++){
+            seqs.set(i, -1);
+        } // end of for loop
+    } // end of CONSTRUCTOR
+
+    /** Method to add a message, replacing the oldest if the buffer is
+     * full. Must only be called from one thread.
+     * @param payload - the encoded broadcast. */
+    public void append(BroadcastPayload payload){
+        final long SEQ = next;
+        final int SLOT = (int) (SEQ % CAPACITY);
+        seqs.set(SLOT, -1);
+        payloads.set(SLOT, payload);
+        seqs.set(SLOT, SEQ);
+        next = SEQ + 1;
+    } // end of append() method
+
+    /** Method to copy the most recent messages. It may be called from any
+     * thread while messages are being appended.
+     * @param count - the most messages wanted.
+     * @return Up to count messages, oldest first. */
+    public BroadcastPayload[] latest(int count){
+        final long TO = next;
+        final long FROM = Math.max(0, TO - Math.min(count, CAPACITY));
+        BroadcastPayload[] found = new BroadcastPayload[(int) (TO - FROM)];
+        int size = 0;
+
+        // --- for loop to read each wanted slot, skipping any overwritten
+        for(long seq = FROM; seq < TO; seq++){
+            final int SLOT = (int) (seq % CAPACITY);
+            if(seqs.get(SLOT) != seq){
+                continue;
+            } // end of if statement
+            BroadcastPayload payload = payloads.get(SLOT);
+            if(seqs.get(SLOT) == seq){
+                found[size++] = payload;
+            } // end of if statement
+        } // end of for loop
+
+        return size == found.length ? found : Arrays.copyOf(found, size);
+    } // end of latest() method
+
+    /** Method to get the number of messages kept.
+     * @return The capacity. */
+    public int getCapacity(){
+        return CAPACITY;
+    } // end of getCapacity() method
+} // end of MessageHistory Class
@@ -0,0 +1,565 @@
+// ----- IMPORT STATEMENTS -----
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+/** Class that keeps an append-only journal of chat messages on disk so
+ * they outlive the {@link Server Server} process. Every message is given
+ * an offset, counting up from 0 across restarts, that a reconnecting
+ * client can use to ask for everything it missed.
+ * <p>The journal is a directory of segment files, each named after the
+ * offset of its first record and mapped into memory. Callers only put a
+ * message on a queue; one writer thread takes messages off in batches,
+ * copies them into the current segment and forces the mapped pages to
+ * disk at most once every sync interval rather than for each message. A
+ * message is readable as soon as it is copied in, and survives the
+ * process being killed once copied, but may be lost if the machine fails
+ * before the next sync. If the writer falls behind, new messages are
+ * dropped and counted rather than holding up the caller.</p>
+ * <p>Each record is laid out as</p>
+ * <pre>
+ * int   length of the rest of the record
+ * long  offset
+ * int   CRC32 of the room and body bytes
+ * short length of the room name
+ * byte[] room name, UTF-8
+ * byte[] body, UTF-8 "user: message"
+ * </pre>
+ * <p>and is followed by a zero length that marks the end of the segment
+ * so far. On opening, the segments are scanned to rebuild the offset
+ * index and find where to carry on, stopping at the first record that is
+ * torn or fails its check.</p>
+ * <p>Without a retention cap the journal grows without limit, on disk and
+ * in mapped memory. With one, the oldest segments are deleted whenever a
+ * new segment takes the total over the cap, so their messages can no
+ * longer be read. A reader already scanning a deleted segment finishes
+ * with its mapping.</p> */
+class MessageJournal {
+
+    // ----- FIELDS ----- //
+    /** Int constant that stores the size of a record before the room name. */
+    private static final int HEADER_BYTES = 4 + 8 + 4 + 2;
+
+    /** Int constant that stores how many records apart the offset index
+     * entries of a segment are. */
+    private static final int INDEX_INTERVAL = 64;
+
+    /** Int constant that stores the most messages waiting to be written. */
+    private static final int QUEUE_CAPACITY = 65536;
+
+    /** Int constant that stores the most messages written in one batch. */
+    private static final int BATCH_LIMIT = 1024;
+
+    /** {@link File File} constant of the journal directory. */
+    private final File DIR;
+
+    /** Int constant that stores the size new segment files are created
+     * with, in bytes. */
+    private final int SEGMENT_BYTES;
+
+    /** Long constant that stores the most bytes of segment files kept,
+     * or 0 to keep every segment. */
+    private final long RETAIN_BYTES;
+
+    /** Long constant that stores the longest time in nanoseconds that
+     * written records wait before being forced to disk. */
+    private final long SYNC_NANOS;
+
+    /** Map of each segment by the offset of its first record. The writer
+     * thread adds segments; any thread may read them. */
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<Long, Segment>();
+
+    /** Pending constant queued by {@link #close(long) close} to tell the
+     * writer thread to sync and stop once it reaches it. */
+    private static final Pending STOP = new Pending(new byte[0], new byte[0]);
+
+    /** Queue of messages waiting to be written. */
+    private final BlockingQueue<Pending> pending = new ArrayBlockingQueue<Pending>(QUEUE_CAPACITY);
+
+    /** Counter of messages dropped because the queue was full. */
+    private final LongAdder dropped = new LongAdder();
+
+    /** The segment records are being added to. Only the writer thread
+     * uses it after opening. */
+    private Segment current;
+
+    /** Offset the next record will be given. Written only by the writer
+     * thread once the record can be read. */
+    private volatile long nextOffset = 0;
+
+    /** Boolean that is true if records have been written since the last
+     * sync. */
+    private boolean dirty = false;
+
+    /** Boolean set once the journal is closing, after which new messages
+     * are dropped. */
+    private volatile boolean closing = false;
+
+    /** The writer thread. */
+    private final Thread WRITER;
+
+    /** Constructor to open a journal, creating the directory if needed,
+     * recover the segments already in it and start the writer thread.
+     * @param dir - the journal directory.
+     * @param segmentBytes - the size of new segment files.
+     * @param syncMs - the longest time in milliseconds between syncs.
+     * @param retainBytes - the most bytes of segment files kept, or 0 to
+     * keep every segment.
+     * @throws IOException if the directory or a segment cannot be opened. */
+    public MessageJournal(File dir, int segmentBytes, long syncMs, long retainBytes) throws IOException {
+        this.DIR = dir;
+        this.SEGMENT_BYTES = segmentBytes;
+        this.SYNC_NANOS = TimeUnit.MILLISECONDS.toNanos(Math.max(1, syncMs));
+        this.RETAIN_BYTES = retainBytes;
+
+        if(!DIR.isDirectory() && !DIR.mkdirs()){
+            throw new IOException("Unable to create journal directory " + DIR);
+        } // end of if statement
+        recover();
+        retire();
+
+        WRITER = new Thread(this::writeLoop, "journal-writer");
+        WRITER.setDaemon(true);
+        WRITER.start();
+    } // end of CONSTRUCTOR
+
+    /** Method to queue a message to be written. It may be called from any
+     * thread and never waits; a full queue drops the message, as does a
+     * room name too long to store.
+     * @param room - the room the message was sent in.
+     * @param payload - the encoded broadcast. */
+    public void append(String room, BroadcastPayload payload){
+        final byte[] ROOM = room.getBytes(StandardCharsets.UTF_8);
+        if(closing || ROOM.length > Short.MAX_VALUE || !pending.offer(new Pending(ROOM, payload.body()))){
+            dropped.increment();
+        } // end of if statement
+    } // end of append() method
+
+    /** Method to write every message already queued, sync the journal to
+     * disk and stop the writer thread. Messages appended after this is
+     * called are dropped.
+     * @param timeoutMs - the longest time to wait in milliseconds.
+     * @return True if the writer finished within the time. */
+    public boolean close(long timeoutMs){
+        closing = true;
+        try{
+            if(pending.offer(STOP, timeoutMs, TimeUnit.MILLISECONDS)){
+                WRITER.join(timeoutMs);
+            } // end of if statement
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        } // end of InterruptedException catch
+        return !WRITER.isAlive();
+    } // end of close() method
+
+    /** Method to read the messages of one room from an offset onwards. It
+     * may be called from any thread while messages are being written. The
+     * index only finds where to start, so every record after that is
+     * looked at to find the room's; at most <code>maxScanned</code> are,
+     * so a quiet room cannot make one read walk the whole journal.
+     * @param from - the first offset wanted.
+     * @param room - the room whose messages are wanted.
+     * @param limit - the most messages returned.
+     * @param maxScanned - the most records looked at.
+     * @return The messages found and where to carry on from. */
+    public Page read(long from, String room, int limit, int maxScanned){
+        List<Record> found = new ArrayList<Record>();
+        final byte[] ROOM = room.getBytes(StandardCharsets.UTF_8);
+        Long start = segments.floorKey(Math.max(0, from));
+        if(start == null){
+            start = Math.max(0, from);
+        } // end of if statement
+        long next = Math.max(0, from);
+        int scanned = 0;
+
+        // --- for loop to scan each segment from the one holding the offset
+        for(Segment segment : segments.tailMap(start, true).values()){
+            final int LIMIT = segment.limit;
+            ByteBuffer view = segment.MAP.duplicate();
+            Map.Entry<Long, Integer> indexed = segment.index.floorEntry(from);
+            int pos = indexed == null ? 0 : indexed.getValue();
+
+            while(pos < LIMIT){
+                if(scanned++ >= maxScanned){
+                    return new Page(found, next);
+                } // end of if statement
+                final int LENGTH = view.getInt(pos);
+                final long OFFSET = view.getLong(pos + 4);
+                final int ROOM_LENGTH = view.getShort(pos + 16);
+                if(OFFSET >= from){
+                    next = OFFSET + 1;
+                    if(ROOM_LENGTH == ROOM.length && regionEquals(view, pos + HEADER_BYTES, ROOM)){
+                        byte[] body = new byte[LENGTH + 4 - HEADER_BYTES - ROOM_LENGTH];
+                        view.position(pos + HEADER_BYTES + ROOM_LENGTH);
+                        view.get(body);
+                        found.add(new Record(OFFSET, body));
+                        if(found.size() >= limit){
+                            return new Page(found, next);
+                        } // end of if statement
+                    } // end of if statement
+                } // end of if statement
+                pos += 4 + LENGTH;
+            } // end of while loop
+        } // end of for loop
+
+        return new Page(found, next);
+    } // end of read() method
+
+    /** Method to get the offset the next message will be given, which is
+     * where a client that has seen everything so far should resume.
+     * @return The next offset. */
+    public long getNextOffset(){
+        return nextOffset;
+    } // end of getNextOffset() method
+
+    /** Method to get the number of messages dropped because the writer
+     * fell behind.
+     * @return The number dropped. */
+    public long getDropped(){
+        return dropped.sum();
+    } // end of getDropped() method
+
+    /** Method to get the number of messages waiting to be written.
+     * @return The queue length. */
+    public int getPending(){
+        return pending.size();
+    } // end of getPending() method
+
+    // ----------------
+    //    RECOVERY
+    // ----------------
+
+    /** Method to map each segment file already in the directory, rebuild
+     * its offset index and find the offset and position to carry on from.
+     * A new segment is created if there are none.
+     * @throws IOException if a segment cannot be opened. */
+    private void recover() throws IOException {
+        File[] files = DIR.listFiles((d, name) -> name.endsWith(".log"));
+        long[] bases = new long[files == null ? 0 : files.length];
+        int count = 0;
+        // --- for loop to collect the base offset of each segment file
+        for(int i = 0; i < bases.length; i++){
+            try{
+                bases[count] = Long.parseLong(files[i].getName().replace(".log", ""));
+                count++;
+            } catch (NumberFormatException e){
+                ServerLog.warn("Skipping journal file " + files[i].getName());
+            } // end of NumberFormatException catch
+        } // end of for loop
+        bases = Arrays.copyOf(bases, count);
+        Arrays.sort(bases);
+
+        // --- for loop to scan the segments in offset order
+        for(long base : bases){
+            if(base < nextOffset){
+                ServerLog.warn("Skipping overlapping journal segment " + base);
+                continue;
+            } // end of if statement
+            nextOffset = base;
+            Segment segment = openSegment(base, 0);
+            scan(segment);
+            segments.put(base, segment);
+            current = segment;
+        } // end of for loop
+
+        if(current == null){
+            current = openSegment(nextOffset, SEGMENT_BYTES);
+            segments.put(current.BASE, current);
+        } // end of if statement
+        ServerLog.info("Journal opened in " + DIR + " at offset " + nextOffset
+                + " with " + segments.size() + " segment(s)");
+    } // end of recover() method
+
+    /** Method to walk the records of a recovered segment, indexing each
+     * one and stopping at the first that is torn, out of sequence or fails
+     * its check.
+     * @param segment - the segment to scan. */
+    private void scan(Segment segment){
+        ByteBuffer view = segment.MAP.duplicate();
+        final int CAPACITY = view.capacity();
+        CRC32 crc = new CRC32();
+        int pos = 0;
+        long offset = segment.BASE;
+
+        while(pos + HEADER_BYTES <= CAPACITY){
+            final int LENGTH = view.getInt(pos);
+            if(LENGTH < HEADER_BYTES - 4 || pos + 4 + LENGTH > CAPACITY
+                    || view.getLong(pos + 4) != offset){
+                break;
+            } // end of if statement
+            final int ROOM_LENGTH = view.getShort(pos + 16);
+            if(ROOM_LENGTH < 0 || HEADER_BYTES + ROOM_LENGTH > 4 + LENGTH){
+                break;
+            } // end of if statement
+
+            ByteBuffer data = view.duplicate();
+            data.limit(pos + 4 + LENGTH).position(pos + HEADER_BYTES);
+            crc.reset();
+            crc.update(data);
+            if((int) crc.getValue() != view.getInt(pos + 12)){
+                break;
+            } // end of if statement
+
+            if((offset - segment.BASE) % INDEX_INTERVAL == 0){
+                segment.index.put(offset, pos);
+            } // end of if statement
+            pos += 4 + LENGTH;
+            offset++;
+        } // end of while loop
+
+        segment.limit = pos;
+        nextOffset = offset;
+    } // end of scan() method
+
+    // ----------------
+    //     WRITING
+    // ----------------
+
+    /** Method run by the writer thread. It waits up to one sync interval
+     * for messages, writes whatever has arrived as one batch and syncs
+     * once the interval has passed since the last sync. On reaching the
+     * marker queued by {@link #close(long) close} it syncs and stops. */
+    private void writeLoop(){
+        List<Pending> batch = new ArrayList<Pending>(BATCH_LIMIT);
+        long lastSync = System.nanoTime();
+
+        // --- while loop to write batches as they arrive
+        while(true){
+            try{
+                Pending first = pending.poll(SYNC_NANOS, TimeUnit.NANOSECONDS);
+                boolean stop = false;
+                if(first != null){
+                    batch.add(first);
+                    pending.drainTo(batch, BATCH_LIMIT - 1);
+                    stop = batch.remove(STOP);
+                    write(batch);
+                    batch.clear();
+                } // end of if statement
+
+                if(stop){
+                    if(dirty){
+                        current.MAP.force();
+                    } // end of if statement
+                    ServerLog.info("Journal closed at offset " + nextOffset);
+                    return;
+                } // end of if statement
+
+                if(dirty && System.nanoTime() - lastSync >= SYNC_NANOS){
+                    current.MAP.force();
+                    dirty = false;
+                    lastSync = System.nanoTime();
+                } // end of if statement
+            } catch (InterruptedException e){
+                return;
+            } catch (IOException | RuntimeException e){
+                ServerLog.error("Journal write failed: " + e);
+                batch.clear();
+            } // end of catch statements
+        } // end of while loop
+    } // end of writeLoop() method
+
+    /** Method to copy a batch of messages into the current segment,
+     * starting a new segment whenever one is full. Each record is made
+     * readable once it is complete.
+     * @param batch - the messages to write.
+     * @throws IOException if a new segment cannot be created. */
+    private void write(List<Pending> batch) throws IOException {
+        CRC32 crc = new CRC32();
+        // --- for loop to write each message
+        for(Pending msg : batch){
+            final int SIZE = HEADER_BYTES + msg.ROOM.length + msg.BODY.length;
+            if(current.limit + SIZE + 4 > current.MAP.capacity()){
+                roll(SIZE + 4);
+            } // end of if statement
+
+            crc.reset();
+            crc.update(msg.ROOM);
+            crc.update(msg.BODY);
+
+            ByteBuffer view = current.MAP.duplicate();
+            final int POS = current.limit;
+            view.position(POS);
+            view.putInt(SIZE - 4).putLong(nextOffset).putInt((int) crc.getValue())
+                    .putShort((short) msg.ROOM.length).put(msg.ROOM).put(msg.BODY);
+            if(view.remaining() >= 4){
+                view.putInt(view.position(), 0);
+            } // end of if statement
+
+            if((nextOffset - current.BASE) % INDEX_INTERVAL == 0){
+                current.index.put(nextOffset, POS);
+            } // end of if statement
+            current.limit = POS + SIZE;
+            nextOffset++;
+        } // end of for loop
+        dirty = true;
+    } // end of write() method
+
+    /** Method to sync the full segment and start a new one at the next
+     * offset.
+     * @param needed - the bytes the next record needs.
+     * @throws IOException if the new segment cannot be created. */
+    private void roll(int needed) throws IOException {
+        current.MAP.force();
+        current = openSegment(nextOffset, Math.max(SEGMENT_BYTES, needed));
+        segments.put(current.BASE, current);
+        ServerLog.info("Journal rolled to segment " + current.BASE);
+        retire();
+    } // end of roll() method
+
+    /** Method to delete the oldest segments while the segment files
+     * take up more than the retention cap. The current segment is always
+     * kept. Nothing is deleted if there is no cap. */
+    private void retire(){
+        if(RETAIN_BYTES <= 0){
+            return;
+        } // end of if statement
+        long total = 0;
+        // --- for loop to add up the size of every segment
+        for(Segment segment : segments.values()){
+            total += segment.MAP.capacity();
+        } // end of for loop
+
+        // --- while loop to delete the oldest segment until under the cap
+        while(total > RETAIN_BYTES && segments.size() > 1){
+            final Map.Entry<Long, Segment> OLDEST = segments.pollFirstEntry();
+            total -= OLDEST.getValue().MAP.capacity();
+            if(segmentFile(OLDEST.getKey()).delete()){
+                ServerLog.info("Journal retired segment " + OLDEST.getKey());
+            }else{
+                ServerLog.warn("Unable to delete journal segment " + OLDEST.getKey());
+            } // end of if statement
+        } // end of while loop
+    } // end of retire() method
+
+    /** Method to get the file of a segment.
+     * @param base - the offset of the segment's first record.
+     * @return The segment file. */
+    private File segmentFile(long base){
+        return new File(DIR, String.format("%020d.log", base));
+    } // end of segmentFile() method
+
+    /** Method to map a segment file, creating it at the given size if it
+     * does not exist.
+     * @param base - the offset of the segment's first record.
+     * @param size - the size of a new file, or 0 to open an existing one.
+     * @return The mapped segment.
+     * @throws IOException if the file cannot be created or mapped. */
+    private Segment openSegment(long base, int size) throws IOException {
+        try(RandomAccessFile raf = new RandomAccessFile(segmentFile(base), "rw")){
+            if(size > 0 && raf.length() < size){
+                raf.setLength(size);
+            } // end of if statement
+            MappedByteBuffer map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+            return new Segment(base, map);
+        } // end of try-with-resources statement
+    } // end of openSegment() method
+
+    /** Method to check if a buffer holds the given bytes at a position.
+     * @param buf - the buffer to look in.
+     * @param pos - where to look.
+     * @param bytes - the bytes to look for.
+     * @return True if they match. */
+    private static boolean regionEquals(ByteBuffer buf, int pos, byte[] bytes){
+        // --- for loop to compare each byte
+        for(int i = 0; i < bytes.length; i++){
+            if(buf.get(pos + i) != bytes[i]){
+                return false;
+            } // end of if statement
+        } // end of for loop
+        return true;
+    } // end of regionEquals() method
+
+    /** Class that stores one message read from the journal. */
+    static final class Record {
+
+        /** The offset of the message. */
+        final long OFFSET;
+
+        /** The UTF-8 bytes of the <code>user: message</code> line. */
+        final byte[] BODY;
+
+        /** Constructor to create a Record.
+         * @param offset - the offset of the message.
+         * @param body - the message line. */
+        Record(long offset, byte[] body){
+            this.OFFSET = offset;
+            this.BODY = body;
+        } // end of CONSTRUCTOR
+    } // end of Record Class
+
+    /** Class that stores the result of a {@link #read(long, String, int,
+     * int) read}. */
+    static final class Page {
+
+        /** The messages found, oldest first. */
+        final List<Record> RECORDS;
+
+        /** The offset to read from next to carry on after this page. */
+        final long NEXT;
+
+        /** Constructor to create a Page.
+         * @param records - the messages found.
+         * @param next - the offset to carry on from. */
+        Page(List<Record> records, long next){
+            this.RECORDS = records;
+            this.NEXT = next;
+        } // end of CONSTRUCTOR
+    } // end of Page Class
+
+    /** Class that stores one mapped segment file and its offset index. */
+    private static final class Segment {
+
+        /** The offset of the segment's first record. */
+        private final long BASE;
+
+        /** The mapped file. */
+        private final MappedByteBuffer MAP;
+
+        /** Map of every {@link #INDEX_INTERVAL INDEX_INTERVAL}th offset in
+         * the segment to the position of its record. */
+        private final ConcurrentSkipListMap<Long, Integer> index = new ConcurrentSkipListMap<Long, Integer>();
+
+        /** Number of bytes of complete records. Readers only look below it. */
+        private volatile int limit = 0;
+
+        /** Constructor to create a Segment.
+         * @param base - the offset of the first record.
+         * @param map - the mapped file. */
+        Segment(long base, MappedByteBuffer map){
+            this.BASE = base;
+            this.MAP = map;
+        } // end of CONSTRUCTOR
+    } // end of Segment Class
+
+    /** Class that stores one message waiting to be written. */
+    private static final class Pending {
+
+        /** The UTF-8 bytes of the room name. */
+        private final byte[] ROOM;
+
+        /** The UTF-8 bytes of the message line. */
+        private final byte[] BODY;
+
+        /** Constructor to create a Pending message.
+         * @param room - the room name.
+         * @param body - the message line. */
+        Pending(byte[] room, byte[] body){
+            this.ROOM = room;
+            this.BODY = body;
+        } // end of CONSTRUCTOR
+    } // end of Pending Class
+} // end of MessageJournal Class
@@ -0,0 +1,528 @@
+// ----- IMPORT STATEMENTS -----
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.Inflater;
+
+/** Class that implements the {@link ChatClient ChatClient} interface with a
+ * non-blocking channel, for programs such as bots and tests that run many
+ * clients at once. Clients are registered with an {@link EventLoop
+ * EventLoop}, one thread that reads and writes every channel it has, so a
+ * thousand clients need one thread rather than a thousand.
+ * <p>Sends are pipelined: {@link #send(String) send} only adds the
+ * encoded message to the client's output buffer and asks the loop to
+ * write. Everything sent before the loop gets to the client goes out in a
+ * single write, and the caller never waits for the network. In binary mode
+ * messages sent before the Server has accepted the {@link WireProtocol
+ * WireProtocol} are held back until it has.</p>
+ * <p>Output from the Server is handed to the
+ * {@link ClientInstance.Listener Listener} on the loop thread, so the
+ * Listener must not block; anything slow should be passed to another
+ * thread. Heartbeat pings are answered without the Listener seeing them.
+ * The client never exits the JVM.</p> */
+class NioClient implements ChatClient {
+
+    // ----- FIELDS ----- //
+    /** Int constant that stores the most bytes that may wait in a
+     * client's output buffer before {@link #send(String) send} refuses
+     * more. */
+    private static final int MAX_PENDING = 1 << 24;
+
+    /** {@link InetSocketAddress InetSocketAddress} of the
+     * {@link Server Server}. */
+    private final InetSocketAddress ADDRESS;
+
+    /** Boolean constant that is true if the client uses the binary
+     * {@link WireProtocol WireProtocol}. */
+    private final boolean BINARY;
+
+    /** {@link ClientInstance.Listener Listener} that output from the
+     * {@link Server Server} is handed to. */
+    private final ClientInstance.Listener LISTENER;
+
+    /** {@link EventLoop EventLoop} that reads and writes the channel. */
+    private final EventLoop LOOP;
+
+    /** {@link String String} field to store the compression option added
+     * to the {@link WireProtocol#PREAMBLE PREAMBLE}, or an empty String. */
+    private String compression = "";
+
+    /** {@link SocketChannel SocketChannel} connected to the Server. */
+    private SocketChannel channel;
+
+    /** {@link SelectionKey SelectionKey} of the channel with the loop's
+     * {@link Selector Selector}, or null until registered. Only used on
+     * the loop thread. */
+    private SelectionKey key;
+
+    /** {@link ByteBuffer ByteBuffer} in write mode holding encoded output
+     * not yet written. Guarded by this client's lock. */
+    private ByteBuffer pending = ByteBuffer.allocate(512);
+
+    /** {@link ByteBuffer ByteBuffer} in write mode holding frames sent
+     * before the Server accepted the binary protocol, or null. Guarded by
+     * this client's lock. */
+    private ByteBuffer held;
+
+    /** Boolean set once the Server has accepted the binary protocol.
+     * Guarded by this client's lock. */
+    private boolean accepted = false;
+
+    /** Boolean set while a write of the output buffer is waiting to run
+     * on the loop. Guarded by this client's lock. */
+    private boolean writeScheduled = false;
+
+    /** Boolean set once {@link #close() close} has been called, after
+     * which nothing more is sent. */
+    private volatile boolean closing = false;
+
+    /** Boolean set once the channel has been closed and the Listener
+     * told. Only used on the loop thread. */
+    private boolean closed = false;
+
+    /** {@link LineFramer LineFramer} that splits text from the Server into
+     * lines. Only used on the loop thread. */
+    private final LineFramer LINES = new LineFramer(StandardCharsets.UTF_8, WireProtocol.MAX_PAYLOAD);
+
+    /** {@link FrameDecoder FrameDecoder} that splits bytes from the Server
+     * into frames once the binary protocol is accepted. Only used on the
+     * loop thread. */
+    private final FrameDecoder FRAMES = new FrameDecoder();
+
+    /** {@link Inflater Inflater} used once the Server has agreed to
+     * compression, or null. */
+    private Inflater inflater;
+
+    /** Constructor to create a NioClient.
+     * @param ipAddr - a String containing the IP address of the Server.
+     * @param portNum - a String containing the port number of the Server
+     * @param binary - true to use the binary protocol.
+     * @param listener - the Listener that handles output from the Server.
+     * @param loop - the EventLoop that runs the client. */
+    public NioClient(String ipAddr, String portNum, boolean binary, ClientInstance.Listener listener,
+                EventLoop loop){
+        this.ADDRESS = new InetSocketAddress(ipAddr, Integer.parseInt(portNum));
+        this.BINARY = binary;
+        this.LISTENER = listener;
+        this.LOOP = loop;
+    } // end of CONSTRUCTOR
+
+    /** Method to ask the {@link Server Server} to compress the frames it
+     * sends. Only used in binary mode, and must be called before
+     * {@link #connect() connect}.
+     * @param shared - true for each frame compressed on its own. */
+    public void requestCompression(boolean shared){
+        compression = shared ? WireProtocol.DEFLATE_SHARED : WireProtocol.DEFLATE_STREAM;
+    } // end of requestCompression() method
+
+    /** Method to start connecting to the {@link Server Server} and return
+     * straight away. Messages may be sent at once; they are written when
+     * the connection is made. If it cannot be made the Listener is told
+     * the connection has closed.
+     * @throws UnknownHostException if the Server's address cannot be found.
+     * @throws IOException if the channel cannot be opened. */
+    public void connect() throws IOException {
+        if(ADDRESS.isUnresolved()){
+            throw new UnknownHostException(ADDRESS.getHostString());
+        } // end of if statement
+        channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        channel.connect(ADDRESS);
+
+        // ask for the binary protocol before anything else is sent
+        if(BINARY){
+            queue(ByteBuffer.wrap((WireProtocol.PREAMBLE + compression + "\n").getBytes(StandardCharsets.UTF_8)),
+                    false);
+        } // end of if statement
+        LOOP.execute(this::register);
+    } // end of connect() method
+
+    /** Method to send one message to the {@link Server Server}, as a line
+     * or in binary mode as a frame. Lines starting with ';' are sent as
+     * {@link WireProtocol#CMD CMD} frames. Method only adds the message to
+     * the output buffer, and may be called from any thread.
+     * @param msg - the message or command to send.
+     * @throws IOException if the client is closed or too much output is
+     * waiting. */
+    public void send(String msg) throws IOException {
+        if(BINARY){
+            queue(WireProtocol.frame(msg.startsWith(";") ? WireProtocol.CMD : WireProtocol.CHAT, msg), true);
+        }else{
+            queue(ByteBuffer.wrap((msg + "\n").getBytes(StandardCharsets.UTF_8)), false);
+        } // end of if statement
+    } // end of send() method
+
+    /** Method to close the connection once everything already sent has
+     * been written. The Listener is told once it has closed. */
+    public void close(){
+        closing = true;
+        LOOP.execute(this::flush);
+    } // end of close() method
+
+    /** Method to add encoded output to the output buffer and make sure
+     * the loop will write it. Frames in binary mode are held back until
+     * the Server accepts the binary protocol.
+     * @param data - the encoded output.
+     * @param frame - true if the output is a frame.
+     * @throws IOException if the client is closed or too much output is
+     * waiting. */
+    private synchronized void queue(ByteBuffer data, boolean frame) throws IOException {
+        if(closing){
+            throw new IOException("Client is closed");
+        } // end of if statement
+        if(frame && !accepted){
+            held = append(held == null ? ByteBuffer.allocate(512) : held, data);
+            return;
+        } // end of if statement
+        pending = append(pending, data);
+
+        if(!writeScheduled){
+            writeScheduled = true;
+            LOOP.execute(this::flush);
+        } // end of if statement
+    } // end of queue() method
+
+    /** Method to copy bytes into a buffer, growing it if needed.
+     * @param buf - the buffer in write mode.
+     * @param data - the bytes to add.
+     * @return The buffer holding the bytes, which may be a new one.
+     * @throws IOException if the buffer would hold more than
+     * {@link #MAX_PENDING MAX_PENDING} bytes. */
+    private static ByteBuffer append(ByteBuffer buf, ByteBuffer data) throws IOException {
+        if(buf.remaining() < data.remaining()){
+            final int NEEDED = buf.position() + data.remaining();
+            if(NEEDED > MAX_PENDING){
+                throw new IOException("Too much output waiting to be sent");
+            } // end of if statement
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(NEEDED, buf.capacity() * 2));
+            buf.flip();
+            bigger.put(buf);
+            buf = bigger;
+        } // end of if statement
+        return buf.put(data);
+    } // end of append() method
+
+    // ----------------
+    //    LOOP THREAD
+    // ----------------
+
+    /** Method run on the loop to register the channel, finishing the
+     * connection straight away if it was already made. */
+    private void register(){
+        try{
+            key = channel.register(LOOP.SELECTOR, SelectionKey.OP_CONNECT, this);
+            if(channel.isConnectionPending() && channel.finishConnect() || channel.isConnected()){
+                connected();
+            } // end of if statement
+        } catch (IOException e){
+            shutDown();
+        } // end of IOException catch
+    } // end of register() method
+
+    /** Method run on the loop once the connection is made, to start
+     * reading and write anything already sent. */
+    private void connected(){
+        key.interestOps(SelectionKey.OP_READ);
+        flush();
+    } // end of connected() method
+
+    /** Method run on the loop to write as much of the output buffer as
+     * the channel will take. The loop waits for the channel to have room
+     * for the rest. A closing client is shut down once everything is
+     * written. */
+    private void flush(){
+        if(closed || key == null || !channel.isConnected()){
+            // the connection is not made yet and will flush when it is
+            return;
+        } // end of if statement
+
+        boolean empty;
+        try{
+            synchronized(this){
+                writeScheduled = false;
+                pending.flip();
+                try{
+                    channel.write(pending);
+                } finally {
+                    pending.compact();
+                } // end of try-finally statement
+                empty = pending.position() == 0;
+            } // end of synchronized block
+        } catch (IOException e){
+            shutDown();
+            return;
+        } // end of IOException catch
+
+        if(empty && closing){
+            shutDown();
+        }else{
+            key.interestOps(empty ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        } // end of if statement
+    } // end of flush() method
+
+    /** Method run on the loop when the channel is ready.
+     * @param buf - the loop's read buffer. */
+    private void handle(ByteBuffer buf){
+        try{
+            if(key.isConnectable()){
+                if(channel.finishConnect()){
+                    connected();
+                } // end of if statement
+                return;
+            } // end of if statement
+            if(key.isWritable()){
+                flush();
+            } // end of if statement
+            if(key.isValid() && key.isReadable()){
+                read(buf);
+            } // end of if statement
+        } catch (IOException e){
+            shutDown();
+        } // end of IOException catch
+    } // end of handle() method
+
+    /** Method run on the loop to read from the channel and pass on each
+     * line or frame. In binary mode text is read a line at a time until
+     * the {@link WireProtocol#ACCEPT ACCEPT} line, as frames may follow it
+     * in the same read.
+     * @param buf - the loop's read buffer.
+     * @throws IOException if the channel fails or a frame is bad. */
+    private void read(ByteBuffer buf) throws IOException {
+        buf.clear();
+        if(channel.read(buf) < 0){
+            shutDown();
+            return;
+        } // end of if statement
+        buf.flip();
+
+        // --- while loop to read the greeting a line at a time until
+        // the binary protocol is accepted
+        while(BINARY && !accepted && buf.hasRemaining()){
+            int end = buf.position();
+            while(end < buf.limit() && buf.get(end) != '\n'){
+                end++;
+            } // end of while loop
+            ByteBuffer line = buf.duplicate();
+            line.limit(Math.min(end + 1, buf.limit()));
+            LINES.feed(line, this::onLine);
+            buf.position(line.position());
+        } // end of while loop
+
+        if(BINARY && accepted){
+            FRAMES.feed(buf, this::onFrame);
+        }else if(!BINARY){
+            LINES.feed(buf, this::onLine);
+        } // end of if statement
+    } // end of read() method
+
+    /** Method to handle a line from the {@link Server Server}. A heartbeat
+     * is answered, and in binary mode the ACCEPT line lets held frames go.
+     * @param line - the line without its terminator. */
+    private void onLine(String line){
+        if(BINARY && !accepted && line.startsWith(WireProtocol.ACCEPT)){
+            accept(!compression.isEmpty() && line.equals(WireProtocol.ACCEPT + compression));
+            return;
+        } // end of if statement
+        if(line.endsWith(WireProtocol.PING_LINE)){
+            // frames cannot be sent before the ACCEPT line
+            if(!BINARY){
+                sendQuietly(WireProtocol.PONG_LINE);
+            } // end of if statement
+            line = line.substring(0, line.length() - WireProtocol.PING_LINE.length());
+            if(line.isEmpty()){
+                return;
+            } // end of if statement
+        } // end of if statement
+        LISTENER.onLine(line);
+    } // end of onLine() method
+
+    /** Method to handle a frame from the {@link Server Server}.
+     * @param type - the frame type.
+     * @param payload - the decoded payload. */
+    private void onFrame(byte type, String payload){
+        if(type == WireProtocol.PING){
+            try{
+                queue(WireProtocol.frame(WireProtocol.PONG, ""), true);
+            } catch (IOException e){
+                // closing; the Server will time the client out
+            } // end of IOException catch
+        }else{
+            ClientInstance.passOn(LISTENER, type, payload);
+        } // end of if statement
+    } // end of onFrame() method
+
+    /** Method to note that the Server has accepted the binary protocol and
+     * let the frames held back go.
+     * @param deflate - true if the Server agreed to compression. */
+    private void accept(boolean deflate){
+        if(deflate){
+            inflater = new Inflater(true);
+            FRAMES.setInflater(inflater);
+        } // end of if statement
+        synchronized(this){
+            accepted = true;
+            if(held != null){
+                held.flip();
+                try{
+                    pending = append(pending, held);
+                } catch (IOException e){
+                    // cannot happen, as held is no larger than the limit
+                } // end of IOException catch
+                held = null;
+            } // end of if statement
+        } // end of synchronized block
+        flush();
+    } // end of accept() method
+
+    /** Method to send a line on the loop, ignoring a closed client.
+     * @param line - the line to send. */
+    private void sendQuietly(String line){
+        try{
+            send(line);
+        } catch (IOException e){
+            // closing; the Server will time the client out
+        } // end of IOException catch
+    } // end of sendQuietly() method
+
+    /** Method run on the loop to close the channel and tell the Listener.
+     * It does nothing after the first call. */
+    private void shutDown(){
+        if(closed){
+            return;
+        } // end of if statement
+        closed = true;
+        closing = true;
+        if(key != null){
+            key.cancel();
+        } // end of if statement
+        try{
+            channel.close();
+        } catch (IOException e){
+            // already closed
+        } // end of IOException catch
+        if(inflater != null){
+            inflater.end();
+        } // end of if statement
+        LISTENER.onClose();
+    } // end of shutDown() method
+
+    /** Class that runs many {@link NioClient NioClients} on one thread
+     * with a {@link Selector Selector}. The thread is a daemon, so it never
+     * keeps a program running by itself. */
+    static final class EventLoop extends Thread {
+
+        /** {@link Selector Selector} that the client channels are
+         * registered with. */
+        private final Selector SELECTOR;
+
+        /** Queue of tasks passed in from other threads, such as
+         * registrations and write requests, that are run on the loop. */
+        private final ConcurrentLinkedQueue<Runnable> pendingTasks = new ConcurrentLinkedQueue<Runnable>();
+
+        /** {@link ByteBuffer ByteBuffer} shared by every client on the loop
+         * for reading from channels. */
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(1 << 16);
+
+        /** Boolean set once the loop has been asked to stop. */
+        private volatile boolean stopped = false;
+
+        /** Constructor to create and start an EventLoop.
+         * @param name - the thread name.
+         * @throws IOException if the Selector cannot be opened. */
+        public EventLoop(String name) throws IOException {
+            super(name);
+            this.SELECTOR = Selector.open();
+            setDaemon(true);
+            start();
+        } // end of CONSTRUCTOR
+
+        /** Method to run a task on the loop, waking the
+         * {@link Selector Selector} if called from another thread. A task
+         * added on the loop thread itself, such as a heartbeat reply or a
+         * send from a Listener, is run before the loop next waits, as
+         * {@link #run() run} only polls the Selector while tasks are
+         * pending.
+         * @param task - the task to run. */
+        void execute(Runnable task){
+            pendingTasks.add(task);
+            if(Thread.currentThread() != this){
+                SELECTOR.wakeup();
+            } // end of if statement
+        } // end of execute() method
+
+        /** Method to stop the loop. Clients still open are closed and
+         * their Listeners told. */
+        public void shutDown(){
+            stopped = true;
+            SELECTOR.wakeup();
+        } // end of shutDown() method
+
+        /** Method override of the {@link Thread#run() run} method in the
+         * {@link Thread Thread} class. Method waits on the
+         * {@link #SELECTOR SELECTOR}, or only polls it if tasks are
+         * already pending, runs any pending tasks and then
+         * handles each client whose channel is ready. A Listener that
+         * throws closes its own client rather than stopping the loop, and
+         * a pending task that throws is logged and skipped. */
+        public void run(){
+            // --- while loop to handle ready channels until stopped
+            while(!stopped){
+                try{
+                    // tasks added from the loop's own callbacks woke nothing
+                    if(pendingTasks.isEmpty()){
+                        SELECTOR.select();
+                    }else{
+                        SELECTOR.selectNow();
+                    } // end of if statement
+                } catch (IOException e){
+                    System.err.println("Client event loop failed: " + e.getMessage());
+                    break;
+                } // end of IOException catch
+
+                Runnable task;
+                while((task = pendingTasks.poll()) != null){
+                    try{
+                        task.run();
+                    } catch (RuntimeException e){
+                        // a failed task must not stop the other clients
+                        e.printStackTrace();
+                    } // end of RuntimeException catch
+                } // end of while loop
+
+                Iterator<SelectionKey> keys = SELECTOR.selectedKeys().iterator();
+                while(keys.hasNext()){
+                    SelectionKey ready = keys.next();
+                    keys.remove();
+                    NioClient client = (NioClient) ready.attachment();
+                    try{
+                        if(ready.isValid()){
+                            client.handle(readBuffer);
+                        } // end of if statement
+                    } catch (RuntimeException e){
+                        e.printStackTrace();
+                        client.shutDown();
+                    } // end of RuntimeException catch
+                } // end of while loop
+            } // end of while loop
+
+            // --- for loop to close every client left
+            for(SelectionKey left : SELECTOR.keys()){
+                ((NioClient) left.attachment()).shutDown();
+            } // end of for loop
+            try{
+                SELECTOR.close();
+            } catch (IOException e){
+                // nothing more to do
+            } // end of IOException catch
+        } // end of run() method
+    } // end of EventLoop Class
+} // end of NioClient Class
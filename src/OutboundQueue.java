@@ -0,0 +1,160 @@
+// ----- IMPORT STATEMENTS -----
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Class that holds the encoded output waiting to be written to a single
+ * client. The queue is bounded; when it is full a new message is handled
+ * by the queue's {@link OverflowPolicy OverflowPolicy}. Messages may be
+ * offered from any thread, but only one writer task drains the queue
+ * at a time. */
+class OutboundQueue {
+
+    /** Enum of the ways a full queue can handle a new message. */
+    enum OverflowPolicy {
+        /** Drop the oldest queued message to make room. */
+        DROP_OLDEST,
+        /** Refuse the message so the slow client can be disconnected. */
+        DISCONNECT,
+        /** Make the sending thread wait for room, up to a timeout, before
+         * refusing the message. */
+        BACKPRESSURE
+    } // end of OverflowPolicy enum
+
+    // ----- FIELDS ----- //
+    /** Queue of messages waiting to be written. */
+    private final ConcurrentLinkedQueue<ByteBuffer> queue = new ConcurrentLinkedQueue<ByteBuffer>();
+
+    /** Number of messages in the {@link #queue queue}. */
+    private final AtomicInteger size = new AtomicInteger();
+
+    /** Int constant that stores the maximum number of queued messages. */
+    private final int CAPACITY;
+
+    /** {@link OverflowPolicy OverflowPolicy} used when the queue is full. */
+    private final OverflowPolicy POLICY;
+
+    /** Long constant that stores how long a sender waits for room under
+     * the {@link OverflowPolicy#BACKPRESSURE BACKPRESSURE} policy. */
+    private final long BACKPRESSURE_TIMEOUT_MS;
+
+    /** Number of senders waiting for room in the queue. */
+    private final AtomicInteger waiters = new AtomicInteger();
+
+    /** Boolean set once queued messages must never be dropped, so a full
+     * queue under {@link OverflowPolicy#DROP_OLDEST DROP_OLDEST} refuses
+     * the new message instead. */
+    private volatile boolean keepAll = false;
+
+    /** Constructor to create an OutboundQueue.
+     * @param capacity - the maximum number of queued messages.
+     * @param policy - how to handle a message when the queue is full.
+     * @param backpressureTimeoutMs - how long a sender may wait for room. */
+    public OutboundQueue(int capacity, OverflowPolicy policy, long backpressureTimeoutMs){
+        this.CAPACITY = capacity;
+        this.POLICY = policy;
+        this.BACKPRESSURE_TIMEOUT_MS = backpressureTimeoutMs;
+    } // end of CONSTRUCTOR
+
+    /** Method to add a message to the queue.
+     * @param buf - the encoded message.
+     * @param mayWait - false if the calling thread must not wait for room,
+     * for example because it is the thread that drains this queue.
+     * @return True if the message was queued, false if the client should
+     * be disconnected as a slow consumer. */
+    public boolean offer(final ByteBuffer buf, final boolean mayWait){
+        if(size.incrementAndGet() > CAPACITY){
+            switch(keepAll && POLICY == OverflowPolicy.DROP_OLDEST ? OverflowPolicy.DISCONNECT : POLICY){
+                case DROP_OLDEST:
+                    // --- while loop to drop messages until there is room
+                    while(size.get() > CAPACITY && queue.poll() != null){
+                        size.decrementAndGet();
+                    } // end of while loop
+                    break;
+                case BACKPRESSURE:
+                    if(mayWait && awaitRoom()){
+                        break;
+                    } // end of if statement
+                    size.decrementAndGet();
+                    return false;
+                default:
+                    size.decrementAndGet();
+                    return false;
+            } // end of switch statement
+        } // end of if statement
+
+        queue.add(buf);
+        return true;
+    } // end of offer() method
+
+    /** Method to stop the queue dropping messages from now on, for output
+     * where each message depends on the ones before it, such as frames
+     * from one deflate stream. A full queue then refuses the new message
+     * so that the client is disconnected rather than sent a stream with a
+     * gap in it. */
+    public void keepAll(){
+        keepAll = true;
+    } // end of keepAll() method
+
+    /** Method to wait until the writer has made room in the queue.
+     * The caller has already counted its message in {@link #size size}.
+     * @return True if there is room for the caller's message. */
+    private boolean awaitRoom(){
+        final long DEADLINE = System.currentTimeMillis() + BACKPRESSURE_TIMEOUT_MS;
+        waiters.incrementAndGet();
+        try{
+            synchronized(this){
+                // --- while loop to wait until the writer drains a message
+                while(size.get() > CAPACITY){
+                    long remaining = DEADLINE - System.currentTimeMillis();
+                    if(remaining <= 0){
+                        return false;
+                    } // end of if statement
+                    wait(remaining);
+                } // end of while loop
+            } // end of synchronized block
+            return true;
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            waiters.decrementAndGet();
+        } // end of InterruptedException catch
+    } // end of awaitRoom() method
+
+    /** Method to take the oldest message from the queue. Waiting senders
+     * are woken as room is made.
+     * @return The oldest message, or null if the queue is empty. */
+    public ByteBuffer poll(){
+        ByteBuffer buf = queue.poll();
+        if(buf != null){
+            size.decrementAndGet();
+            if(waiters.get() > 0){
+                synchronized(this){
+                    notifyAll();
+                } // end of synchronized block
+            } // end of if statement
+        } // end of if statement
+        return buf;
+    } // end of poll() method
+
+    /** Method to check if there is nothing waiting to be written.
+     * @return True if the queue is empty. */
+    public boolean isEmpty(){
+        return queue.isEmpty();
+    } // end of isEmpty() method
+
+    /** Method to get the number of queued messages.
+     * @return The queue depth. */
+    public int size(){
+        return Math.max(0, size.get());
+    } // end of size() method
+
+    /** Method to throw away every queued message, used when the client
+     * is disconnected. */
+    public void clear(){
+        while(poll() != null){
+            // drained
+        } // end of while loop
+    } // end of clear() method
+} // end of OutboundQueue Class
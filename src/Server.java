@@ -1,29 +1,199 @@
 // ----- IMPORT STATEMENTS -----
 import java.net.*;
 import java.net.ServerSocket;
-import java.util.ArrayList;
-import java.util.HashSet;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.io.*;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import com.sun.net.httpserver.HttpServer;
 
 /** Server class that allows for clients to connect to the central server.
- * Each new connection is started as a new thread via the nested class:
- * {@link MultipleServer MultipleServer}. The Server class has data structures
- * to store usernames and a reference to each client via the {@link HashSet HashSet}
- * and {@link ArrayList ArrayList} classes respectively. */
+ * Each new connection is run as a {@link MultipleServer MultipleServer}
+ * task on the session {@link ExecutorService ExecutorService} chosen at
+ * startup (a platform thread, a virtual thread or a fixed pool), or when
+ * started with
+ * <code>--io=nio</code> is handled by one of a fixed set of
+ * {@link Reactor Reactor} threads. The Server class stores usernames and
+ * a reference to each client in a {@link SessionRegistry SessionRegistry}
+ * that is shared by every session thread. Clients chat in named
+ * {@link Room Rooms}, and messages are only broadcast to the members of
+ * the sender's room. */
 public class Server {
-    /** {@link HashSet HashSet} to to the usernames of each
+    /** {@link SessionRegistry SessionRegistry} of each connected client
+     * for use in message broadcasting, and of the usernames of each
      * client; ensuring they are unique */
-    private static HashSet<String> usrNameSet = new HashSet<String>();
+    static final SessionRegistry<MultipleServer> clientRegistry =
+            new SessionRegistry<MultipleServer>();
 
-    /** {@link ArrayList ArrayList} of each client for use in
-     * message broadcasting */
-    private static ArrayList<MultipleServer> clientList = new ArrayList<MultipleServer>();
+    /** {@link String String} constant that stores the name of the room
+     * every client joins on entering the chatroom. */
+    private static final String LOBBY = "lobby";
+
+    /** Int constant that stores how many history messages a room shard
+     * replays to a client before letting other queued work run. */
+    private static final int REPLAY_BATCH = 32;
+
+    /** Int constant that stores the most journal messages sent for one
+     * <code>;since</code> command. */
+    private static final int SINCE_LIMIT = 1000;
+
+    /** Int constant that stores the most journal records looked at for
+     * one <code>;since</code> command, whatever room they are in. */
+    private static final int SINCE_SCAN_LIMIT = 100_000;
+
+    /** Int constant that stores the longest username or room name, in
+     * characters, so names stay small enough to pass between
+     * {@link Server#cluster cluster} nodes. */
+    static final int MAX_NAME_CHARS = 64;
+
+    /** Int constant that stores how many usernames one <code>;who</code>
+     * command lists. */
+    private static final int WHO_PAGE = 50;
+
+    /** Long constant that stores the shortest time between notices to a
+     * client that its messages are being dropped for a rate limit. */
+    private static final long RATE_NOTICE_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    /** {@link String String} constant sent to every client when the
+     * Server shuts down. */
+    private static final String SHUTDOWN_NOTICE = "Server is shutting down, please reconnect shortly";
+
+    /** Int constant that stores the size in chars of the buffer a
+     * blocking session reads lines into. Lines longer than it are still
+     * read whole; it only needs to hold the messages of one read. */
+    private static final int READER_CHARS = 512;
+
+    /** {@link ConcurrentHashMap ConcurrentHashMap} of each open room by
+     * name. Rooms other than the {@link #LOBBY LOBBY} are removed once
+     * their last member leaves. */
+    private static final ConcurrentHashMap<String, Room> rooms =
+            new ConcurrentHashMap<String, Room>();
+
+    /** Array of single thread executors that room broadcasts are fanned
+     * out on. Each room always uses the same shard, so messages in a room
+     * stay in order while different rooms run on different cores. */
+    private static ExecutorService[] roomShards;
 
     /** Long constant that stores the system time upon Server startup via the
      * {@link System#currentTimeMillis() currentTimeMillis()} method in the
      * {@link System System} class. Used to calculate Server uptime. */
     final static private long SERVER_START_TIME = System.currentTimeMillis();
 
+    /** {@link Charset Charset} used for all text sent to and read from
+     * clients. */
+    static final Charset CHARSET = StandardCharsets.UTF_8;
+
+    /** Read-only {@link WireProtocol#ACK ACK} frame shared by every
+     * binary protocol session. */
+    private static final ByteBuffer ACK_FRAME =
+            WireProtocol.frame(WireProtocol.ACK, "").asReadOnlyBuffer();
+
+    /** Read-only {@link WireProtocol#PING PING} frame shared by every
+     * binary protocol session. */
+    private static final ByteBuffer PING_FRAME =
+            WireProtocol.frame(WireProtocol.PING, "").asReadOnlyBuffer();
+
+    /** Read-only {@link WireProtocol#PING_LINE PING_LINE} shared by every
+     * text protocol session. */
+    private static final ByteBuffer PING_TEXT = ByteBuffer.wrap(
+            (WireProtocol.PING_LINE + System.lineSeparator()).getBytes(CHARSET)).asReadOnlyBuffer();
+
+    /** {@link TimerWheel TimerWheel} that checks every session for read
+     * idleness, or null if idle clients are kept. */
+    private static TimerWheel idleWheel;
+
+    /** {@link ServerMetrics ServerMetrics} that stores the live counters
+     * shown by the <code>;stats</code> command and the metrics endpoint. */
+    static final ServerMetrics metrics = new ServerMetrics();
+
+    /** {@link MessageJournal MessageJournal} that chat messages are
+     * written to, or null if the <code>--journal</code> option is not
+     * given. */
+    private static MessageJournal journal;
+
+    /** Single thread executor that <code>;since</code> commands read the
+     * {@link #journal journal} on, so a long read never holds up a
+     * {@link Reactor Reactor} or a room shard. Null without a journal. */
+    private static ExecutorService journalReader;
+
+    /** {@link ClusterNode ClusterNode} linking this Server to the other
+     * nodes of a cluster, or null if it runs alone. */
+    private static ClusterNode cluster;
+
+    /** {@link TokenBucket TokenBucket} of messages all clients together
+     * may send, or null if there is no limit. */
+    private static TokenBucket globalMsgLimit;
+
+    /** {@link TokenBucket TokenBucket} of bytes all clients together may
+     * send, or null if there is no limit. */
+    private static TokenBucket globalByteLimit;
+
+    /** {@link TimerWheel TimerWheel} that resumes reading from
+     * non-blocking sessions held back by a rate limit, or null if they are
+     * never held back. */
+    private static TimerWheel rateWheel;
+
+    static {
+        metrics.gauge("sessions", clientRegistry::size);
+        metrics.gauge("users_online", clientRegistry::usrCount);
+        metrics.gauge("rooms", rooms::size);
+        metrics.gauge("outbound_queued", () -> queueDepth(false));
+        metrics.gauge("outbound_queued_max", () -> queueDepth(true));
+        metrics.gauge("log_dropped_total", ServerLog::getDropped);
+        metrics.gauge("journal_offset", () -> journal == null ? 0 : journal.getNextOffset());
+        metrics.gauge("journal_pending", () -> journal == null ? 0 : journal.getPending());
+        metrics.gauge("journal_dropped_total", () -> journal == null ? 0 : journal.getDropped());
+        metrics.gauge("cluster_remote_users", () -> cluster == null ? 0 : cluster.remoteUsrCount());
+        metrics.gauge("uptime_seconds", () -> (System.currentTimeMillis() - SERVER_START_TIME) / 1000);
+    } // end of static block
+
+    /** {@link CommandRegistry CommandRegistry} of the commands clients can
+     * send, filled by {@link #registerCommands() registerCommands}. Other
+     * commands may be registered before the Server starts. */
+    static final CommandRegistry<MultipleServer> commands = new CommandRegistry<MultipleServer>();
+
+    static {
+        registerCommands();
+    } // end of static block
+
+    /** {@link ServerConfig ServerConfig} that stores the startup options
+     * of the Server. */
+    private static ServerConfig config = new ServerConfig();
+
+    /** {@link ExecutorService ExecutorService} that runs the writer tasks
+     * draining the {@link OutboundQueue OutboundQueue} of each blocking
+     * session onto its socket. */
+    private static ExecutorService writerExecutor;
+
+    /** {@link ScheduledExecutorService ScheduledExecutorService} that delays
+     * writer tasks by the flush linger when output is coalesced. */
+    private static ScheduledExecutorService flushTimer;
+
+    /** {@link ServerSocketChannel ServerSocketChannel} that clients connect
+     * to, closed when the Server shuts down. */
+    private static volatile ServerSocketChannel listener;
+
+    /** Boolean set once the Server has started shutting down. */
+    private static volatile boolean draining = false;
+
+    /** {@link SSLContext SSLContext} that client connections are encrypted
+     * with, or null if they are not. */
+    private static SSLContext tlsContext;
+
     /** Empty Constructor to create Server object.
      * Only used to allow instantiation of
      * Multiple Server inner class. */
@@ -32,54 +202,980 @@ public class Server {
     } // end of CONSTRUCTOR
 
     /** Main method that throws {@link IOException IOException}.
-     * Method sets up a {@link ServerSocket ServerSocket} for new
+     * Method sets up a blocking {@link ServerSocketChannel ServerSocketChannel} for new
      * connections to the Server and upon new connections instantiates
-     * new {@link MultipleServer MultipleServer} threads and starts them.
+     * new {@link MultipleServer MultipleServer} sessions and runs them on
+     * the executor returned by
+     * {@link #newSessionExecutor(ServerConfig) newSessionExecutor}.
+     * If the <code>--io=nio</code> option is given the
+     * {@link #runNonBlocking(ServerConfig) runNonBlocking} method is
+     * used instead.
      * @param args - command line arguments passed to the Server on
      * program start. */
     public static void main(String[] args) {
-        final int PORT_NUM;
+        final ServerConfig CONFIG = ServerConfig.parse(args);
+        final int PORT_NUM = CONFIG.portNum;
+        config = CONFIG;
+        ServerLog.setLevel(CONFIG.logLevel);
+        startRoomShards(CONFIG.roomShards);
+        startIdleWheel(CONFIG);
+        startRateLimits(CONFIG);
+        startJournal(CONFIG);
+        startCluster(CONFIG);
+        startTls(CONFIG);
+        // started last so every gauge is registered before the first scrape
+        startMetricsEndpoint(CONFIG.metricsPort);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> drain(CONFIG), "server-drain"));
+
+        if(CONFIG.ioMode == ServerConfig.IoMode.NIO){
+            runNonBlocking(CONFIG);
+            return;
+        } // end of if statement
 
-        PORT_NUM = Integer.parseInt(args[0]);
+        final ExecutorService SESSION_EXECUTOR = newSessionExecutor(CONFIG);
+        writerExecutor = newSessionExecutor(CONFIG);
+        if(CONFIG.coalesceWrites && CONFIG.flushLingerMs > 0){
+            flushTimer = Executors.newSingleThreadScheduledExecutor();
+        } // end of if statement
 
-        try(ServerSocket serverSocket = new ServerSocket(PORT_NUM)){
+        // accepted through a channel so writer tasks can use gathering writes
+        try(ServerSocketChannel serverChannel = openListener(CONFIG)){
             // --- while loop to listen to connection requests and
-            // start them as new threads
-            while(true){
-                Socket clientSocket = serverSocket.accept();
+            // run them on the session executor
+            while(!draining){
+                Socket clientSocket = serverChannel.accept().socket();
                 Server server = new Server(); // needed to create instance of inner class MultipleServer
                 Server.MultipleServer multiServer = server.new MultipleServer(clientSocket);
-                clientList.add(multiServer);
-                clientList.get(clientList.size() - 1).start();
+                clientRegistry.add(multiServer);
+                metrics.connects.increment();
+                multiServer.watchIdle();
+                SESSION_EXECUTOR.execute(multiServer);
             } // end of while loop
         } catch (IOException e) {
+            // the listener is closed by a shutdown
+            if(draining){
+                return;
+            } // end of if statement
             System.err.println("Unable to reach port " + PORT_NUM);
             System.exit(-1);
         } // end of IOException catch
     } // end of main() method
 
-    /** Method to cycle through online clients and broadcast messages.
-     * The method iterates through the {@link #clientList clientList} and
-     * does not broadcast the message to the {@link ClientInstance ClientInstance}
+    /** Method to open the {@link #listener listener} on the Server's
+     * port. The address is reused so a restarted Server can bind straight
+     * away while connections of the last run are still in TIME_WAIT, and
+     * the accept backlog is set from the config.
+     * @param CONFIG - the startup options of the Server.
+     * @return The open listener.
+     * @throws IOException if the port cannot be bound. */
+    private static ServerSocketChannel openListener(final ServerConfig CONFIG) throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        channel.bind(new InetSocketAddress(CONFIG.portNum), CONFIG.acceptBacklog);
+        listener = channel;
+        return channel;
+    } // end of openListener() method
+
+    /** Method run by the shutdown hook on SIGTERM or SIGINT to drain the
+     * Server. It stops accepting connections, tells every client the
+     * Server is shutting down and logs them all out in parallel, each on
+     * its own {@link Reactor Reactor} or on a pool for blocking sessions.
+     * It then waits, up to the drain timeout, for every session's queued
+     * output to be written, and finally closes the journal and leaves the
+     * cluster. The JVM exits when it returns.
+     * @param CONFIG - the startup options of the Server. */
+    private static void drain(final ServerConfig CONFIG){
+        draining = true;
+        final long DEADLINE = System.nanoTime() + TimeUnit.SECONDS.toNanos(CONFIG.drainTimeoutSec);
+        final List<MultipleServer> SESSIONS = clientRegistry.snapshot();
+        ServerLog.info("Shutting down, draining " + SESSIONS.size() + " sessions");
+
+        try{
+            if(listener != null){
+                listener.close();
+            } // end of if statement
+        } catch (IOException e){
+            ServerLog.warn("Unable to close listener: " + e.getMessage());
+        } // end of IOException catch
+
+        final ExecutorService CLOSERS = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        // --- for loop to log out each session on the thread that suits it
+        for(MultipleServer session : SESSIONS){
+            if(session.REACTOR != null){
+                session.REACTOR.execute(session::shutDown);
+            }else{
+                CLOSERS.execute(session::shutDown);
+            } // end of if statement
+        } // end of for loop
+        CLOSERS.shutdown();
+
+        int left = SESSIONS.size();
+        try{
+            CLOSERS.awaitTermination(Math.max(0, DEADLINE - System.nanoTime()), TimeUnit.NANOSECONDS);
+            // --- while loop to wait for every session's output to be written
+            while(left > 0 && System.nanoTime() < DEADLINE){
+                Thread.sleep(10);
+                left = 0;
+                for(MultipleServer session : SESSIONS){
+                    left += session.isDrained() ? 0 : 1;
+                } // end of for loop
+            } // end of while loop
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        } // end of InterruptedException catch
+        if(left > 0){
+            ServerLog.warn(left + " sessions not drained before the timeout");
+        } // end of if statement
+
+        if(journal != null && !journal.close(TimeUnit.NANOSECONDS.toMillis(Math.max(0, DEADLINE - System.nanoTime())))){
+            ServerLog.warn("Journal not closed before the timeout");
+        } // end of if statement
+        if(cluster != null){
+            cluster.close();
+        } // end of if statement
+        ServerLog.info("Shutdown complete");
+        ServerLog.flush(1000);
+    } // end of drain() method
+
+    /** Method to set up the Server's shared state without listening on
+     * a port, so that {@link MultipleServer MultipleServer} sessions made
+     * with an in-memory channel can be driven directly. Used by
+     * {@link ServerBench ServerBench}.
+     * @param CONFIG - the startup options of the Server. */
+    static void startInMemory(final ServerConfig CONFIG){
+        config = CONFIG;
+        ServerLog.setLevel(CONFIG.logLevel);
+        startRoomShards(CONFIG.roomShards);
+        writerExecutor = Executors.newFixedThreadPool(CONFIG.poolSize);
+        startIdleWheel(CONFIG);
+        startRateLimits(CONFIG);
+        startCluster(CONFIG);
+    } // end of startInMemory() method
+
+    /** Method to wait until every room broadcast handed to the
+     * {@link #roomShards roomShards} so far has been fanned out.
+     * @throws InterruptedException if interrupted while waiting. */
+    static void awaitRoomShards() throws InterruptedException {
+        // --- for loop to queue a marker task behind each shard's work
+        for(ExecutorService shard : roomShards){
+            try{
+                shard.submit(() -> { }).get();
+            } catch (ExecutionException e){
+                throw new IllegalStateException(e);
+            } // end of ExecutionException catch
+        } // end of for loop
+    } // end of awaitRoomShards() method
+
+    /** Method to register the built-in client commands in the
+     * {@link #commands commands} registry, in the order they are listed by
+     * <code>;help</code>. */
+    private static void registerCommands(){
+        commands.register("bs", "bcast_stats", "", "get broadcast encoding counters",
+                (session, line, arg) -> session.serverWriter.println("Broadcasts encoded: "
+                        + metrics.broadcastEncodes.sum() + ", encodes avoided: " + metrics.encodesAvoided.sum()));
+        commands.register("cut", "client_ut", "", "get uptime of the client",
+                (session, line, arg) -> session.serverWriter.println("Time in chatroom: "
+                        + session.getClientChatroomTime() + " seconds"));
+        commands.register("e", "exit", "", "log out and exit from chatroom", (session, line, arg) -> {
+            ServerLog.info(session.usrName + " is logging out");
+            // send message to alert other users
+            broadcastMessage("has logged off", session);
+            session.logOut();
+        });
+        commands.register("fs", "flush_stats", "", "get socket writes per message",
+                (session, line, arg) -> session.serverWriter.println("Socket writes: "
+                        + metrics.socketWrites.sum() + ", messages in: " + metrics.messagesIn.sum()
+                        + ", flushes per message: " + session.getFlushesPerMessage()));
+        commands.register("h", "help", "", "print help commands to terminal",
+                (session, line, arg) -> session.getHelpCommands());
+        commands.register("hs", "history", "<n>", "replay the last n messages in the room", (session, line, arg) -> {
+            try{
+                session.showHistory((int) CommandRegistry.parseLong(line, arg, config.historyOnJoin), false);
+            } catch (NumberFormatException e){
+                session.serverWriter.println("usage: ;history <n>");
+            } // end of NumberFormatException catch
+        });
+        commands.register("ip", "ip_addr", "", "get IP address of the server",
+                (session, line, arg) -> session.serverWriter.println("Server IP Address: " + session.getServerIP()));
+        commands.register("j", "join", "<room>", "move to a room, creating it if needed", (session, line, arg) -> {
+            if(arg >= line.length()){
+                session.serverWriter.println("usage: ;join <room>");
+            }else{
+                session.changeRoom(CommandRegistry.rest(line, arg));
+            } // end of if statement
+        });
+        commands.register("l", "leave", "", "leave the room and return to the lobby",
+                (session, line, arg) -> session.changeRoom(LOBBY));
+        commands.register("m", "msg", "<user> <text>", "send a private message",
+                (session, line, arg) -> session.sendDirect(line, arg));
+        commands.register("o", "offset", "", "get the journal offset to resume from later",
+                (session, line, arg) -> session.serverWriter.println(journal == null ? "No journal is kept"
+                        : "Journal offset: " + journal.getNextOffset()));
+        commands.register("r", "rooms", "", "list rooms and their member counts",
+                (session, line, arg) -> session.serverWriter.println("Rooms: " + session.getRoomList()));
+        commands.register("s", "stats", "", "get live server metrics", (session, line, arg) -> {
+            // --- for loop to print each metric on its own line
+            for(String metric : metrics.render().split("\n")){
+                session.serverWriter.println(metric);
+            } // end of for loop
+        });
+        commands.register("sn", "since", "<offset>", "replay journalled messages in the room", (session, line, arg) -> {
+            long from = -1;
+            try{
+                from = CommandRegistry.parseLong(line, arg, -1);
+            } catch (NumberFormatException e){
+                // reported as usage below
+            } // end of NumberFormatException catch
+            if(from < 0){
+                session.serverWriter.println("usage: ;since <offset>");
+            }else{
+                session.showSince(from);
+            } // end of if statement
+        });
+        commands.register("un", "usr_num", "", "get number of online users",
+                (session, line, arg) -> session.serverWriter.println("Users online: " + session.getUsrNum()));
+        commands.register("ut", "uptime", "", "get uptime of the server",
+                (session, line, arg) -> session.serverWriter.println("Server Uptime: "
+                        + session.getServerUptime() + " seconds"));
+        commands.register("w", "who", "[after]", "list online users a page at a time",
+                (session, line, arg) -> session.showWho(arg >= line.length() ? null : CommandRegistry.rest(line, arg)));
+    } // end of registerCommands() method
+
+    /** Method to start the {@link #idleWheel idleWheel} if an idle
+     * timeout is set. One wheel thread checks every session, so there is no
+     * timer per connection.
+     * @param CONFIG - the startup options of the Server. */
+    private static void startIdleWheel(final ServerConfig CONFIG){
+        if(CONFIG.idleTimeoutSec > 0){
+            idleWheel = new TimerWheel(100, TimeUnit.MILLISECONDS, 512, "idle-wheel");
+        } // end of if statement
+    } // end of startIdleWheel() method
+
+    /** Method to create the server-wide rate limits that are set, and the
+     * {@link #rateWheel rateWheel} if non-blocking sessions over a limit
+     * are to be held back.
+     * @param CONFIG - the startup options of the Server. */
+    private static void startRateLimits(final ServerConfig CONFIG){
+        globalMsgLimit = newRateLimit(CONFIG.globalRateMsgs, CONFIG.rateBurstSec);
+        globalByteLimit = newRateLimit(CONFIG.globalRateBytes, CONFIG.rateBurstSec);
+        if(CONFIG.rateAction == ServerConfig.RateAction.DELAY && CONFIG.ioMode == ServerConfig.IoMode.NIO){
+            rateWheel = new TimerWheel(10, TimeUnit.MILLISECONDS, 512, "rate-wheel");
+        } // end of if statement
+    } // end of startRateLimits() method
+
+    /** Method to create a {@link TokenBucket TokenBucket} for a rate.
+     * @param RATE - the rate a second, or 0 for no limit.
+     * @param BURST_SEC - how many seconds of the rate can be sent at once.
+     * @return The bucket, or null if there is no limit. */
+    static TokenBucket newRateLimit(final double RATE, final double BURST_SEC){
+        return RATE > 0 ? new TokenBucket(RATE, RATE * BURST_SEC) : null;
+    } // end of newRateLimit() method
+
+    /** Method to take tokens from a bucket that may be unset.
+     * @param BUCKET - the bucket, or null if there is no limit.
+     * @param COST - the tokens to take.
+     * @return True if there is no limit or the tokens were taken. */
+    private static boolean take(final TokenBucket BUCKET, final long COST){
+        return BUCKET == null || BUCKET.tryAcquire(COST);
+    } // end of take() method
+
+    /** Method to give back tokens to a bucket that may be unset.
+     * @param BUCKET - the bucket, or null if there is no limit.
+     * @param COST - the tokens to give back. */
+    private static void refund(final TokenBucket BUCKET, final long COST){
+        if(BUCKET != null){
+            BUCKET.refund(COST);
+        } // end of if statement
+    } // end of refund() method
+
+    /** Method to reserve tokens from a bucket that may be unset.
+     * @param BUCKET - the bucket, or null if there is no limit.
+     * @param COST - the tokens to take.
+     * @return How long to wait in nanoseconds, 0 if there is no limit. */
+    private static long reserve(final TokenBucket BUCKET, final long COST){
+        return BUCKET == null ? 0 : BUCKET.reserve(COST);
+    } // end of reserve() method
+
+    /** Method to count the bytes of a string in UTF-8 without encoding it.
+     * @param TEXT - the string.
+     * @return The length in bytes. */
+    private static long utf8Length(final String TEXT){
+        long length = 0;
+        // --- for loop to add the encoded size of each character
+        for(int i = 0; i < TEXT.length(); i++){
+            final char C = TEXT.charAt(i);
+            if(C < 0x80){
+                length++;
+            }else if(C < 0x800){
+                length += 2;
+            }else if(Character.isHighSurrogate(C)){
+                length += 4;
+                i++;
+            }else{
+                length += 3;
+            } // end of if statement
+        } // end of for loop
+        return length;
+    } // end of utf8Length() method
+
+    /** Method to build the {@link #tlsContext tlsContext} if a TLS key
+     * store is set. A key store that does not exist is created with a
+     * self-signed certificate for testing. The Server exits if TLS cannot
+     * be set up, rather than accept connections in cleartext.
+     * @param CONFIG - the startup options of the Server. */
+    private static void startTls(final ServerConfig CONFIG){
+        if(CONFIG.tlsKeyStore == null){
+            return;
+        } // end of if statement
+
+        try{
+            final File KEY_STORE = new File(CONFIG.tlsKeyStore);
+            if(!KEY_STORE.exists()){
+                ServerLog.warn("Creating self-signed test certificate in " + KEY_STORE);
+                TlsContexts.generateTestKeyStore(KEY_STORE, CONFIG.tlsPassword);
+            } // end of if statement
+            tlsContext = TlsContexts.forServer(KEY_STORE, CONFIG.tlsPassword,
+                    CONFIG.tlsSessionCache, CONFIG.tlsSessionTimeoutSec);
+            ServerLog.info("TLS enabled with key store " + KEY_STORE);
+        } catch (IOException e){
+            System.err.println("Unable to set up TLS: " + e.getMessage());
+            System.exit(-1);
+        } // end of IOException catch
+    } // end of startTls() method
+
+    /** Method to wrap a client's channel in a {@link TlsChannel
+     * TlsChannel} if TLS is enabled. Nagle's algorithm is turned off for
+     * the channel, as the handshake and session ticket go out as several
+     * small writes that it would otherwise hold back until the client's
+     * delayed acknowledgement.
+     * @param CHANNEL - the client's channel.
+     * @return The TlsChannel, or null if TLS is not enabled. */
+    private static TlsChannel newTlsChannel(final SocketChannel CHANNEL){
+        if(tlsContext == null){
+            return null;
+        } // end of if statement
+        try{
+            CHANNEL.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        } catch (IOException e){
+            // already closed; the handshake will fail
+        } // end of IOException catch
+        SSLEngine engine = tlsContext.createSSLEngine();
+        engine.setUseClientMode(false);
+        return new TlsChannel(CHANNEL, engine);
+    } // end of newTlsChannel() method
+
+    /** Method to open the {@link #journal journal} if a journal
+     * directory is set. The Server exits if the journal cannot be opened,
+     * rather than running without the persistence that was asked for.
+     * @param CONFIG - the startup options of the Server. */
+    private static void startJournal(final ServerConfig CONFIG){
+        if(CONFIG.journalDir == null){
+            return;
+        } // end of if statement
+
+        try{
+            journal = new MessageJournal(new File(CONFIG.journalDir),
+                    CONFIG.journalSegmentBytes, CONFIG.journalSyncMs, CONFIG.journalRetainBytes);
+            journalReader = Executors.newSingleThreadExecutor();
+        } catch (IOException e){
+            System.err.println("Unable to open journal " + CONFIG.journalDir + ": " + e.getMessage());
+            System.exit(-1);
+        } // end of IOException catch
+    } // end of startJournal() method
+
+    /** Method to join the {@link #cluster cluster} if a cluster mode is
+     * set. The Server exits if the relay cannot start.
+     * @param CONFIG - the startup options of the Server. */
+    private static void startCluster(final ServerConfig CONFIG){
+        final ClusterRelay RELAY;
+        switch(CONFIG.clusterMode){
+            case TCP:
+                final TcpMeshRelay MESH = new TcpMeshRelay(CONFIG.clusterPort, CONFIG.clusterPeers);
+                metrics.gauge("cluster_batches_total", MESH::getBatches);
+                metrics.gauge("cluster_dropped_total", MESH::getDropped);
+                RELAY = MESH;
+                break;
+            case LOCAL:
+                RELAY = new LocalRelay(CONFIG.clusterHub);
+                break;
+            default:
+                return;
+        } // end of switch statement
+
+        try{
+            cluster = new ClusterNode(RELAY, new ClusterDelivery(), metrics);
+            cluster.start();
+        } catch (IOException e){
+            System.err.println("Unable to join cluster: " + e.getMessage());
+            System.exit(-1);
+        } // end of IOException catch
+    } // end of startCluster() method
+
+    /** Method to serve the {@link #metrics metrics} as plain text at
+     * <code>/metrics</code> on a loopback-only HTTP port, so they can be
+     * scraped without a client logging in. Method does nothing if the
+     * port is 0.
+     * @param PORT - the port to listen on. */
+    private static void startMetricsEndpoint(final int PORT){
+        if(PORT <= 0){
+            return;
+        } // end of if statement
+
+        try{
+            HttpServer http = HttpServer.create(
+                    new InetSocketAddress(InetAddress.getLoopbackAddress(), PORT), 0);
+            http.createContext("/metrics", exchange -> {
+                byte[] body = metrics.render().getBytes(CHARSET);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try(OutputStream out = exchange.getResponseBody()){
+                    out.write(body);
+                } // end of try-with-resources
+            });
+            http.start();
+            ServerLog.info("Metrics at http://127.0.0.1:" + PORT + "/metrics");
+        } catch (IOException e){
+            ServerLog.error("Unable to start metrics endpoint on port " + PORT + ": " + e.getMessage());
+        } // end of IOException catch
+    } // end of startMetricsEndpoint() method
+
+    /** Method to read the depth of the clients' outbound queues.
+     * @param max - true for the deepest queue, false for the total.
+     * @return The deepest queue or the total number of queued messages. */
+    private static long queueDepth(final boolean max){
+        long depth = 0;
+        // --- for loop to read each client's queue
+        for(MultipleServer client : clientRegistry.snapshot()){
+            depth = max ? Math.max(depth, client.outbound.size()) : depth + client.outbound.size();
+        } // end of for loop
+        return depth;
+    } // end of queueDepth() method
+
+    /** Method to start the {@link #roomShards roomShards} that room
+     * broadcasts are fanned out on.
+     * @param count - the number of shards. */
+    private static void startRoomShards(final int count){
+        roomShards = new ExecutorService[count];
+        // --- for loop to start a single thread for each shard
+        for(int i = 0; i < count; i++){
+            roomShards[i] = Executors.newSingleThreadExecutor();
+        } // end of for loop
+    } // end of startRoomShards() method
+
+    /** Method to create the {@link ExecutorService ExecutorService} that
+     * blocking sessions, and their writer tasks, are run on.
+     * <ul>
+     * <li>PLATFORM - a new platform thread for each connection</li>
+     * <li>VIRTUAL - a new virtual thread for each connection, which needs
+     * Java 21; on older runtimes the platform executor is used</li>
+     * <li>POOL - a fixed pool of <code>--pool-size</code> threads; each
+     * session holds a thread until it logs out, so connections beyond
+     * the pool size wait for a free thread</li>
+     * </ul>
+     * @param CONFIG - the startup options of the Server.
+     * @return The executor to run sessions on. */
+    private static ExecutorService newSessionExecutor(final ServerConfig CONFIG){
+        switch(CONFIG.sessionExecutor){
+            case VIRTUAL:
+                // looked up at runtime so the Server still builds on
+                // releases before Java 21
+                try{
+                    return (ExecutorService) Executors.class
+                            .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                } catch (ReflectiveOperationException e){
+                    ServerLog.warn("Virtual threads unavailable, using platform threads");
+                    return Executors.newCachedThreadPool();
+                } // end of ReflectiveOperationException catch
+            case POOL:
+                return Executors.newFixedThreadPool(CONFIG.poolSize);
+            default:
+                return Executors.newCachedThreadPool();
+        } // end of switch statement
+    } // end of newSessionExecutor() method
+
+    /** Method to run the Server on non-blocking channels.
+     * Method starts the number of {@link Reactor Reactor} threads given
+     * in the {@link ServerConfig ServerConfig} and then accepts new
+     * connections on a {@link ServerSocketChannel ServerSocketChannel},
+     * handing each one to the next Reactor in turn.
+     * @param CONFIG - the startup options of the Server. */
+    private static void runNonBlocking(final ServerConfig CONFIG){
+        Server server = new Server(); // needed to create instances of inner classes
+        Reactor[] reactors = new Reactor[CONFIG.reactorThreads];
+
+        try(ServerSocketChannel serverChannel = openListener(CONFIG)){
+            // --- for loop to start each reactor thread
+            for(int i = 0; i < reactors.length; i++){
+                reactors[i] = server.new Reactor(i);
+                reactors[i].start();
+            } // end of for loop
+
+            // --- while loop to accept connections and share them
+            // between the reactors
+            int next = 0;
+            while(!draining){
+                SocketChannel clientChannel = serverChannel.accept();
+                reactors[next].register(clientChannel);
+                next = (next + 1) % reactors.length;
+            } // end of while loop
+        } catch (IOException e) {
+            // the listener is closed by a shutdown
+            if(draining){
+                return;
+            } // end of if statement
+            System.err.println("Unable to reach port " + CONFIG.portNum);
+            System.exit(-1);
+        } // end of IOException catch
+    } // end of runNonBlocking() method
+
+    /** Method to broadcast messages to the other clients in the sender's
+     * {@link Room Room}. The method encodes the message once on the
+     * calling thread as a {@link BroadcastPayload BroadcastPayload} and
+     * then hands it to the room's shard, which gives each member its own
+     * view of the same read-only bytes. It does not
+     * broadcast the message to the {@link ClientInstance ClientInstance}
      * that was passed as a parameter.
      * @param MSG - Message to be broadcast to other clients
      * @param BCASTER - The client that is sending the message (usually
      * the client calling the method) */
-    private static void broadcastMessage(
+    static void broadcastMessage(
                 String MSG, final MultipleServer BCASTER){
-        // --- for loop to iterate through all other users
-        // online
-        for(int i=0; i < clientList.size(); i++){
-            if(clientList.get(i) != BCASTER){
-                clientList.get(i).printMessage(MSG, BCASTER);
-            } // end of if statement
-        } // end of for loop
+        broadcastMessage(MSG, BCASTER, false);
+    } // end of broadcastMessage() method
+
+    /** Method to broadcast a message like
+     * {@link #broadcastMessage(String, MultipleServer) broadcastMessage},
+     * optionally keeping it in the room's {@link MessageHistory
+     * MessageHistory}. Chat messages are kept; notices such as
+     * "has logged off" are not.
+     * @param MSG - Message to be broadcast to other clients
+     * @param BCASTER - The client that is sending the message
+     * @param KEEP - True if the message is added to the room's history */
+    static void broadcastMessage(
+                String MSG, final MultipleServer BCASTER, final boolean KEEP){
+        final Room ROOM = BCASTER.room;
+        if(ROOM == null){
+            return;
+        } // end of if statement
+
+        final BroadcastPayload PAYLOAD = new BroadcastPayload(BCASTER.getUsrName(), MSG);
+        ROOM.SHARD.execute(() -> ROOM.fanOut(PAYLOAD, BCASTER, KEEP));
+        if(cluster != null){
+            cluster.publishBroadcast(ROOM.NAME, PAYLOAD, KEEP);
+        } // end of if statement
     } // end of broadcastMessage() method
 
-    /** Class that extends {@link Thread Thread} class and contains
+    /** Class that implements the {@link ClusterNode.Delivery Delivery}
+     * interface to act on messages from other cluster nodes using this
+     * node's rooms and sessions. */
+    private static class ClusterDelivery implements ClusterNode.Delivery {
+
+        public void broadcast(String room, byte[] body, boolean keep){
+            final Room ROOM = rooms.get(room);
+            if(ROOM != null){
+                final BroadcastPayload PAYLOAD = new BroadcastPayload(body);
+                ROOM.SHARD.execute(() -> ROOM.fanOut(PAYLOAD, null, keep));
+            } // end of if statement
+        } // end of broadcast() method
+
+        public void direct(String usrName, byte[] body){
+            final MultipleServer RECEIVER = clientRegistry.findUsr(usrName);
+            if(RECEIVER != null && !RECEIVER.finished){
+                RECEIVER.printMessage(new BroadcastPayload(body));
+                metrics.directMessages.increment();
+            } // end of if statement
+        } // end of direct() method
+
+        public boolean nameLost(String usrName){
+            final MultipleServer LOSER = clientRegistry.findUsr(usrName);
+            if(LOSER == null){
+                return false;
+            } // end of if statement
+            LOSER.printMessage(new BroadcastPayload("server",
+                    "username " + usrName + " was taken on another node"));
+            broadcastMessage("has logged off", LOSER);
+            LOSER.logOut();
+            return true;
+        } // end of nameLost() method
+
+        public boolean holds(String usrName){
+            return clientRegistry.findUsr(usrName) != null;
+        } // end of holds() method
+
+        public Iterable<String> localNames(){
+            return clientRegistry.listUsrNames(null, Integer.MAX_VALUE);
+        } // end of localNames() method
+    } // end of ClusterDelivery Class
+
+    /** Class that stores the members of a named chat room. Each room is
+     * pinned to one of the {@link Server#roomShards roomShards}, and its
+     * broadcasts only touch its own members. */
+    private static class Room {
+
+        /** {@link String String} constant that stores the room name. */
+        private final String NAME;
+
+        /** {@link SessionRegistry SessionRegistry} of the room's members. */
+        private final SessionRegistry<MultipleServer> members =
+                new SessionRegistry<MultipleServer>();
+
+        /** {@link ExecutorService ExecutorService} shard that fans out
+         * this room's broadcasts. */
+        private final ExecutorService SHARD;
+
+        /** {@link MessageHistory MessageHistory} of the room's recent chat
+         * messages, or null if history is off. Only the room's shard adds
+         * to it. */
+        private final MessageHistory HISTORY;
+
+        /** Constructor to create a Room and pin it to a shard chosen from
+         * the hash of its name.
+         * @param name - the name of the room. */
+        public Room(String name){
+            this.NAME = name;
+            this.SHARD = roomShards[Math.floorMod(name.hashCode(), roomShards.length)];
+            this.HISTORY = config.historySize > 0 ? new MessageHistory(config.historySize) : null;
+        } // end of CONSTRUCTOR
+
+        /** Method run on the room's shard to queue an encoded broadcast
+         * for every member except the sender.
+         * @param PAYLOAD - the encoded broadcast.
+         * @param BCASTER - the client that sent the message, or null if it
+         * came from another {@link Server#cluster cluster} node.
+         * @param KEEP - true if the broadcast is added to the history. */
+        private void fanOut(final BroadcastPayload PAYLOAD, final MultipleServer BCASTER,
+                final boolean KEEP){
+            final long START = System.nanoTime();
+            int receivers = 0;
+            if(KEEP && HISTORY != null){
+                HISTORY.append(PAYLOAD);
+            } // end of if statement
+            if(KEEP && journal != null){
+                journal.append(NAME, PAYLOAD);
+            } // end of if statement
+
+            // --- for loop to iterate through all other members
+            for(MultipleServer client : members.snapshot()){
+                if(client != BCASTER){
+                    client.printMessage(PAYLOAD);
+                    receivers++;
+                } // end of if statement
+            } // end of for loop
+
+            final int ENCODES = PAYLOAD.getEncodes();
+            metrics.broadcasts.increment();
+            metrics.broadcastEncodes.add(ENCODES);
+            if(receivers > ENCODES){
+                metrics.encodesAvoided.add(receivers - ENCODES);
+            } // end of if statement
+            metrics.fanOutTime.record(System.nanoTime() - START);
+        } // end of fanOut() method
+
+        /** Method run on the room's shard to queue one batch of history
+         * messages for a client. If more are left, the next batch is put
+         * back on the shard, so broadcasts queued in the meantime are not
+         * held up behind a long replay.
+         * @param CLIENT - the client the history is for.
+         * @param MSGS - the messages to replay, oldest first.
+         * @param FROM - index of the first message in this batch. */
+        private void replay(final MultipleServer CLIENT, final BroadcastPayload[] MSGS, final int FROM){
+            if(CLIENT.finished){
+                return;
+            } // end of if statement
+
+            final int TO = Math.min(MSGS.length, FROM + REPLAY_BATCH);
+            // --- for loop to queue each message in the batch
+            for(int i = FROM; i < TO; i++){
+                CLIENT.printMessage(MSGS[i]);
+            } // end of for loop
+            metrics.historyReplayed.add(TO - FROM);
+
+            if(TO < MSGS.length){
+                SHARD.execute(() -> replay(CLIENT, MSGS, TO));
+            } // end of if statement
+        } // end of replay() method
+    } // end of Room Class
+
+    /** Class that extends {@link FilterInputStream FilterInputStream} and
+     * adds the bytes read from a blocking client's socket to the
+     * {@link ServerMetrics#bytesIn bytesIn} counter. */
+    private static class CountingInputStream extends FilterInputStream {
+
+        /** Constructor to wrap a socket's input stream.
+         * @param in - the stream to count. */
+        public CountingInputStream(InputStream in){
+            super(in);
+        } // end of CONSTRUCTOR
+
+        public int read() throws IOException {
+            int b = super.read();
+            if(b >= 0){
+                metrics.bytesIn.increment();
+            } // end of if statement
+            return b;
+        } // end of read() method
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if(n > 0){
+                metrics.bytesIn.add(n);
+            } // end of if statement
+            return n;
+        } // end of read() method
+    } // end of CountingInputStream Class
+
+    /** Int constant that stores the most queued messages written by one
+     * gathering write. */
+    private static final int GATHER_LIMIT = 16;
+
+    /** Class that extends {@link Thread Thread} class and runs an event
+     * loop over a {@link Selector Selector} for many non-blocking
+     * {@link MultipleServer MultipleServer} sessions. Bytes read from each
+     * channel are split into lines by a {@link LineFramer LineFramer} and
+     * passed to the same message parsing methods as the blocking mode.
+     * Output is queued by each session and written when the channel
+     * is ready. */
+    private class Reactor extends Thread {
+
+        /** {@link Selector Selector} that the session channels of this
+         * Reactor are registered with. */
+        private final Selector SELECTOR;
+
+        /** Queue of tasks passed in from other threads, such as new
+         * connections and write requests, that are run on this Reactor. */
+        private final ConcurrentLinkedQueue<Runnable> pendingTasks =
+                new ConcurrentLinkedQueue<Runnable>();
+
+        /** {@link ByteBuffer ByteBuffer} shared by every session on this
+         * Reactor for reading from channels. */
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(8192);
+
+        /** Constructor to create a Reactor thread with its own
+         * {@link Selector Selector}.
+         * @param id - number used to name the thread.
+         * @throws IOException if the Selector cannot be opened. */
+        public Reactor(int id) throws IOException {
+            super("reactor-" + id);
+            this.SELECTOR = Selector.open();
+        } // end of CONSTRUCTOR
+
+        /** Method to hand a newly accepted channel to this Reactor.
+         * @param channel - the channel of the connecting client. */
+        public void register(final SocketChannel channel){
+            execute(() -> openSession(channel));
+        } // end of register() method
+
+        /** Method to ask the Reactor to write the
+         * {@link OutboundQueue OutboundQueue} of a session. Only one
+         * request is queued per session at a time.
+         * @param session - the session with output waiting. */
+        public void requestWrite(final MultipleServer session){
+            if(session.writeScheduled.compareAndSet(false, true)){
+                execute(() -> writeTo(session));
+            } // end of if statement
+        } // end of requestWrite() method
+
+        /** Method to stop reading from a session's channel for a while,
+         * so a client over a rate limit is held back by TCP flow control
+         * rather than by blocking the Reactor. Lines already read are held
+         * by the session until reading resumes. Method does nothing if
+         * reading is already paused.
+         * @param session - the session to hold back.
+         * @param WAIT_NANOS - how long to stop reading in nanoseconds. */
+        void pauseReads(final MultipleServer session, final long WAIT_NANOS){
+            SelectionKey key = session.selectionKey;
+            if(session.readPaused || key == null || !key.isValid()){
+                return;
+            } // end of if statement
+            session.readPaused = true;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            rateWheel.schedule(() -> execute(() -> resumeReads(session)), WAIT_NANOS, TimeUnit.NANOSECONDS);
+        } // end of pauseReads() method
+
+        /** Method to handle the lines a session held while paused by
+         * {@link #pauseReads(MultipleServer, long) pauseReads}, and then
+         * start reading from its channel again unless one of them paused
+         * it once more.
+         * @param session - the session held back. */
+        private void resumeReads(final MultipleServer session){
+            session.readPaused = false;
+            Runnable held;
+            while(!session.readPaused && session.heldInput != null
+                    && (held = session.heldInput.poll()) != null){
+                held.run();
+            } // end of while loop
+            session.endOfTick();
+
+            SelectionKey key = session.selectionKey;
+            if(!session.readPaused && key != null && key.isValid()){
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                if(session.TLS != null && session.TLS.hasBufferedInput()){
+                    readFrom(session);
+                } // end of if statement
+            } // end of if statement
+        } // end of resumeReads() method
+
+        /** Method to queue a task to run on this Reactor and wake
+         * the {@link Selector Selector} so it is run promptly.
+         * @param task - the task to run. */
+        private void execute(final Runnable task){
+            pendingTasks.add(task);
+            SELECTOR.wakeup();
+        } // end of execute() method
+
+        /** Method override of the {@link Thread#run() run} method in the
+         * {@link Thread Thread} class. Method waits on the
+         * {@link #SELECTOR SELECTOR}, runs any pending tasks and then
+         * reads from or writes to each channel that is ready. */
+        public void run(){
+            // --- while loop to handle ready channels continually
+            while(true){
+                try{
+                    SELECTOR.select();
+                } catch (IOException e){
+                    ServerLog.error("I/O Error on Reactor!", e);
+                    return;
+                } // end of IOException catch
+
+                Runnable task;
+                while((task = pendingTasks.poll()) != null){
+                    task.run();
+                } // end of while loop
+
+                Iterator<SelectionKey> keys = SELECTOR.selectedKeys().iterator();
+                while(keys.hasNext()){
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    MultipleServer session = (MultipleServer) key.attachment();
+
+                    if(key.isValid() && key.isWritable()){
+                        writeTo(session);
+                    } // end of if statement
+                    if(key.isValid() && key.isReadable()){
+                        readFrom(session);
+                    } // end of if statement
+                } // end of while loop
+            } // end of while loop
+        } // end of run() method
+
+        /** Method to register a new channel with the
+         * {@link #SELECTOR SELECTOR} and greet the client.
+         * @param channel - the channel of the connecting client. */
+        private void openSession(final SocketChannel channel){
+            try{
+                channel.configureBlocking(false);
+                MultipleServer session = new MultipleServer(channel, this);
+                session.selectionKey = channel.register(SELECTOR, SelectionKey.OP_READ, session);
+                clientRegistry.add(session);
+                metrics.connects.increment();
+                session.watchIdle();
+                session.greetClient();
+                session.promptUsrName();
+                session.endOfTick();
+            } catch (IOException e){
+                ServerLog.error("Could not set up new client", e);
+                closeChannel(channel);
+            } // end of IOException catch
+        } // end of openSession() method
+
+        /** Method to read from a session's channel and pass each complete
+         * line, or frame once the session uses the {@link WireProtocol
+         * WireProtocol}, to the session. End of stream or a bad frame is
+         * treated the same as a null read in the blocking mode.
+         * @param session - the session whose channel is readable. */
+        private void readFrom(final MultipleServer session){
+            int bytesRead;
+            readBuffer.clear();
+            try{
+                bytesRead = session.TLS != null ? session.TLS.read(readBuffer) : session.CHANNEL.read(readBuffer);
+            } catch (IOException e){
+                bytesRead = -1;
+            } // end of IOException catch
+
+            if(bytesRead < 0){
+                session.handleEndOfStream();
+                return;
+            } // end of if statement
+            metrics.bytesIn.add(bytesRead);
+            session.touch();
+
+            readBuffer.flip();
+            try{
+                if(session.frameDecoder != null){
+                    session.frameDecoder.feed(readBuffer, session::handleFrame);
+                }else{
+                    session.lineFramer.feed(readBuffer, session::handleLine);
+                } // end of if statement
+            } catch (IOException e){
+                ServerLog.warn("Bad input from " + session.usrName + ": " + e.getMessage());
+                session.handleEndOfStream();
+                return;
+            } // end of IOException catch
+            session.endOfTick();
+
+            if(session.TLS != null){
+                // output held back by the handshake can go once it is done
+                if(session.hasUnsentOutput()){
+                    requestWrite(session);
+                } // end of if statement
+                // records already read do not wake the selector again
+                if(!session.readPaused && session.TLS.hasBufferedInput()){
+                    execute(() -> readFrom(session));
+                } // end of if statement
+            } // end of if statement
+        } // end of readFrom() method
+
+        /** Method to write as much queued output of a session as the
+         * channel will take. If the channel is full the Reactor waits for
+         * it to become writable again. Once all output is written a session
+         * that has logged out is closed.
+         * @param session - the session to write for. */
+        private void writeTo(final MultipleServer session){
+            session.writeScheduled.set(false);
+            SelectionKey key = session.selectionKey;
+            if(key == null || !key.isValid()){
+                return;
+            } // end of if statement
+
+            // a session held back by a rate limit stays unread
+            final int READ = session.readPaused ? 0 : SelectionKey.OP_READ;
+            try{
+                if(!session.writeQueued()){
+                    // a TLS handshake waiting for the client is woken by a read
+                    final boolean AWAITING = session.TLS != null && session.TLS.isAwaitingPeer();
+                    key.interestOps(AWAITING ? READ : READ | SelectionKey.OP_WRITE);
+                    return;
+                } // end of if statement
+
+                if(session.closeWhenFlushed){
+                    closeChannel(session.SINK);
+                }else{
+                    key.interestOps(READ);
+                } // end of if statement
+            } catch (IOException e){
+                closeChannel(session.CHANNEL);
+                session.handleEndOfStream();
+            } // end of IOException catch
+        } // end of writeTo() method
+
+        /** Method to close a channel, which also cancels its
+         * {@link SelectionKey SelectionKey}.
+         * @param channel - the channel to close. */
+        private void closeChannel(final Channel channel){
+            try{
+                channel.close();
+            } catch (IOException e){
+                ServerLog.error("Could not close client channel", e);
+            } // end of IOException catch
+        } // end of closeChannel() method
+    } // end of Reactor Class
+
+    /** Class that implements {@link Runnable Runnable} and contains
      * methods to read from ,{@link ClientInstance Clients} handle message
-     * parsing and set usernames for {@link ClientInstance Clients}. */
-    private class MultipleServer extends Thread {
+     * parsing and set usernames for {@link ClientInstance Clients}.
+     * Sessions do not own a thread; blocking sessions are run on the
+     * session executor and non-blocking ones by a {@link Reactor Reactor}. */
+    class MultipleServer implements Runnable {
 
         /** {@link Socket Socket} constant that stores the socket value
          * of the {@link ClientInstance Client} that is connecting
@@ -94,9 +1190,20 @@ public class Server {
         private long clientChatroomTime;
 
         /** {@link PrintWriter PrintWriter} that is used to write messages
-         * to clients. */
+         * to clients, through a {@link QueueWriter QueueWriter}. */
         private PrintWriter serverWriter;
 
+        /** {@link QueueOutputStream QueueOutputStream} under the
+         * {@link #serverWriter serverWriter} that turns written bytes into
+         * queued messages. */
+        private final QueueOutputStream queueStream = new QueueOutputStream();
+
+        /** {@link QueueWriter QueueWriter} under the
+         * {@link #serverWriter serverWriter}. Its lock is the one the
+         * PrintWriter holds while printing a whole line, so other threads
+         * queueing output take it to keep from splitting a line. */
+        private final QueueWriter queueWriter = new QueueWriter();
+
         /** {@link BufferedReader BufferedReader} that is used to read messages
          * from clients. */
         private BufferedReader serverReader;
@@ -104,9 +1211,118 @@ public class Server {
         /** {@link String String} field that stores the username of the client. */
         private String usrName;
 
+        /** {@link Room Room} the client is chatting in, or null before it
+         * enters the chatroom. */
+        private volatile Room room;
+
         /** Boolean to be used to allow closing of I/O streams and allow
          * for graceful disconnect from {@link Server Server}. */
-        private boolean finished = false;
+        private volatile boolean finished = false;
+
+        /** {@link SocketChannel SocketChannel} of the client. It is
+         * non-blocking when the session is run by a {@link Reactor Reactor}. */
+        private final SocketChannel CHANNEL;
+
+        /** {@link GatheringByteChannel GatheringByteChannel} that queued
+         * output is written to. It is the {@link #CHANNEL CHANNEL}, or the
+         * {@link #TLS TLS} channel over it, for a connected client, or an
+         * in-memory stand-in for a benchmark. */
+        private final GatheringByteChannel SINK;
+
+        /** {@link TlsChannel TlsChannel} that encrypts the
+         * {@link #CHANNEL CHANNEL}, or null if TLS is not enabled. */
+        private final TlsChannel TLS;
+
+        /** {@link Reactor Reactor} that handles this session, or null when
+         * the session runs on its own thread. */
+        private final Reactor REACTOR;
+
+        /** {@link SelectionKey SelectionKey} of the {@link #CHANNEL CHANNEL}
+         * with the Reactor's {@link Selector Selector}. */
+        private SelectionKey selectionKey;
+
+        /** {@link LineFramer LineFramer} that splits bytes read from the
+         * {@link #CHANNEL CHANNEL} into lines. */
+        private LineFramer lineFramer;
+
+        /** Boolean set once the client has switched to the binary
+         * {@link WireProtocol WireProtocol}. */
+        private volatile boolean binary = false;
+
+        /** {@link FrameDeflater FrameDeflater} that compresses frames sent
+         * to a binary protocol client that asked for compression, or null. */
+        private volatile FrameDeflater deflater;
+
+        /** {@link FrameDecoder FrameDecoder} that splits bytes read from the
+         * {@link #CHANNEL CHANNEL} into frames once a non-blocking session
+         * uses the binary protocol. */
+        private FrameDecoder frameDecoder;
+
+        /** {@link InputStream InputStream} of the {@link #MULTISOCKET
+         * MULTISOCKET} that a blocking session reads from. */
+        private InputStream socketIn;
+
+        /** {@link DataInputStream DataInputStream} that a blocking session
+         * reads frames from once it uses the binary protocol. */
+        private DataInputStream frameInput;
+
+        /** {@link OutboundQueue OutboundQueue} of encoded output waiting
+         * to be written to the client by a writer task, or by the
+         * {@link Reactor Reactor} for non-blocking sessions. */
+        private final OutboundQueue outbound = new OutboundQueue(
+                config.outboundCapacity, config.overflowPolicy, config.backpressureTimeoutMs);
+
+        /** Array of messages taken from the {@link #outbound outbound}
+         * queue to be written with one gathering write. */
+        private final ByteBuffer[] writeBatch = new ByteBuffer[GATHER_LIMIT];
+
+        /** Index of the first message in {@link #writeBatch writeBatch}
+         * that has not been fully written. */
+        private int batchStart;
+
+        /** Index after the last message in {@link #writeBatch writeBatch}. */
+        private int batchEnd;
+
+        /** Set while a writer task for the {@link #outbound outbound}
+         * queue is scheduled or running. */
+        private final AtomicBoolean writeScheduled = new AtomicBoolean();
+
+        /** Boolean set on logout so that the writer closes the
+         * connection once the queued output is written. */
+        private volatile boolean closeWhenFlushed = false;
+
+        /** Boolean set once the connection has been closed, after which
+         * output is thrown away. */
+        private volatile boolean transportClosed = false;
+
+        /** System time in nanoseconds that anything was last read from
+         * the client. */
+        private volatile long lastReadNanos = System.nanoTime();
+
+        /** Boolean set once the client has been pinged for being quiet,
+         * and cleared when it next sends anything. */
+        private volatile boolean pingSent = false;
+
+        /** {@link TokenBucket TokenBucket} of messages this client may
+         * send, or null if there is no limit. */
+        private final TokenBucket msgLimit = newRateLimit(config.rateMsgs, config.rateBurstSec);
+
+        /** {@link TokenBucket TokenBucket} of bytes this client may send,
+         * or null if there is no limit. */
+        private final TokenBucket byteLimit = newRateLimit(config.rateBytes, config.rateBurstSec);
+
+        /** System time in nanoseconds that the client was last told a
+         * message was dropped for being over a rate limit. */
+        private long lastRateNotice = System.nanoTime() - RATE_NOTICE_NANOS;
+
+        /** Boolean set while the {@link Reactor Reactor} has stopped
+         * reading from the client to hold it to a rate limit. */
+        private boolean readPaused = false;
+
+        /** {@link ArrayDeque ArrayDeque} of lines or frames that were
+         * already read when the {@link Reactor Reactor} stopped reading,
+         * to be handled when it resumes. Created on first use. */
+        private ArrayDeque<Runnable> heldInput;
 
         /** Constructor to instantiate a MultipleServer object to handle
          * message parsing and client entering and exiting the chatroom.
@@ -114,24 +1330,72 @@ public class Server {
          * through. */
         public MultipleServer(Socket multiSocket){
             this.MULTISOCKET = multiSocket;
+            this.CHANNEL = multiSocket.getChannel();
+            this.TLS = newTlsChannel(CHANNEL);
+            this.SINK = TLS != null ? TLS : CHANNEL;
+            this.REACTOR = null;
+            this.serverWriter = new PrintWriter(queueWriter, !config.coalesceWrites);
         } // end of CONSTRUCTOR
 
-        /** Method override of the {@link Thread#run() run} method in the
-         * {@link Thread Thread} class. Method sets up the I/O streams via
-         * the {@link PrintWriter PrintWriter} and
-         * {@link BufferedReader BufferedReader} classes and then calls
+        /** Constructor to instantiate a MultipleServer object that is run
+         * by a {@link Reactor Reactor} on a non-blocking channel rather
+         * than on its own thread.
+         * @param channel - the channel that the Client is connecting
+         * through.
+         * @param reactor - the Reactor that reads and writes the channel. */
+        public MultipleServer(SocketChannel channel, Reactor reactor){
+            this.MULTISOCKET = channel.socket();
+            this.CHANNEL = channel;
+            this.TLS = newTlsChannel(channel);
+            this.SINK = TLS != null ? TLS : channel;
+            this.REACTOR = reactor;
+            this.serverWriter = new PrintWriter(queueWriter, !config.coalesceWrites);
+            this.lineFramer = new LineFramer(CHARSET, WireProtocol.MAX_PAYLOAD);
+        } // end of CONSTRUCTOR
+
+        /** Constructor to instantiate a MultipleServer object with no
+         * connection, whose output is written to an in-memory channel.
+         * Used by {@link ServerBench ServerBench} to stand in for clients;
+         * the session is driven by calling its methods directly and its
+         * writer tasks run on the {@link Server#writerExecutor
+         * writerExecutor} set up by {@link Server#startInMemory(ServerConfig)
+         * startInMemory}.
+         * @param sink - the channel that queued output is written to. */
+        MultipleServer(GatheringByteChannel sink){
+            this.MULTISOCKET = null;
+            this.CHANNEL = null;
+            this.TLS = null;
+            this.SINK = sink;
+            this.REACTOR = null;
+            this.serverWriter = new PrintWriter(queueWriter, !config.coalesceWrites);
+        } // end of CONSTRUCTOR
+
+        /** Method override of the {@link Runnable#run() run} method in the
+         * {@link Runnable Runnable} interface. Method sets up the input stream via
+         * the {@link BufferedReader BufferedReader} class and then calls
          * the {@link #setUsrName() setUsrName} and
          * {@link #readFromClient() readFromClient} methods. */
          public void run(){
             try{
-                // setup I/O streams to be able to send/receive data from client
-                serverWriter = new PrintWriter(MULTISOCKET.getOutputStream(), true);
-                InputStreamReader serverStreamReader = new InputStreamReader(MULTISOCKET.getInputStream());
-                serverReader = new BufferedReader(serverStreamReader);
+                // setup I/O streams to be able to send/receive data from client;
+                // output is queued and written by the writer task
+                if(TLS != null){
+                    try{
+                        TLS.handshake();
+                    } catch (IOException e){
+                        ServerLog.warn("TLS handshake failed: " + e.getMessage());
+                        closeTransport();
+                        unregister();
+                        return;
+                    } // end of IOException catch
+                    socketIn = new CountingInputStream(Channels.newInputStream(TLS));
+                }else{
+                    socketIn = new CountingInputStream(MULTISOCKET.getInputStream());
+                } // end of if statement
+                InputStreamReader serverStreamReader = new InputStreamReader(socketIn, CHARSET);
+                serverReader = new BufferedReader(serverStreamReader, READER_CHARS);
 
-                System.out.println("New client connected");
-                serverWriter.println("----- Connected to Server ---");
-                serverWriter.flush();
+                greetClient();
 
                 // set unique username
                 setUsrName();
@@ -140,10 +1404,27 @@ public class Server {
                 readFromClient();
 
             } catch (IOException e){
-                e.printStackTrace();
+                ServerLog.error("I/O Error on Server!", e);
+                unregister();
             } // end of IOException catch
         } // end of run() method
 
+        /** Method to tell the client that it has connected. */
+        private void greetClient(){
+            ServerLog.info("New client connected");
+            serverWriter.println("----- Connected to Server ---");
+            serverWriter.flush();
+        } // end of greetClient() method
+
+        /** Method called when the session has finished handling its input
+         * for now, either at the end of a {@link Reactor Reactor} tick or
+         * before a blocking read. Any output held back by write coalescing
+         * is queued as a single message. */
+        private void endOfTick(){
+            serverWriter.flush();
+            queueStream.push();
+        } // end of endOfTick() method
+
         // ----------------
         // MESSAGE HANDLING
         // ----------------
@@ -158,22 +1439,40 @@ public class Server {
         private void readFromClient(){
             String clientMsg = "";
 
+            if(binary){
+                readFramesFromClient();
+                return;
+            } // end of if statement
+
             // --- while loop to read input from client
             // continually
             while(!finished){
+                endOfTick();
                 try{
-                    clientMsg = serverReader.readLine();
-                    System.out.println("Reading from " + this.usrName + "...");
+                    clientMsg = readLineFromClient();
+                    logRead();
                 } catch (IOException e){
-                    System.err.println("I/O Error on Server!");
-                    e.printStackTrace();
+                    clientMsg = null;
+                    // closing the socket of an idle or slow client, or after a
+                    // failed write, ends the read
+                    if(!finished && !transportClosed){
+                        ServerLog.error("I/O Error on Server!", e);
+                    } // end of if statement
                 } // end of IOException catch
 
+                // session was closed by another thread, e.g. as a slow consumer
+                if(finished){
+                    break;
+                } // end of if statement
+
                 // handle abrupt disconnect by client
                 if(clientMsg != null){
-                    parseClientMsg(clientMsg);
+                    metrics.messagesIn.increment();
+                    if(admit(clientMsg)){
+                        parseClientMsg(clientMsg);
+                    } // end of if statement
                 }else{
-                    System.out.println("Abrupt disconnect by " + this.usrName);
+                    ServerLog.info("Abrupt disconnect by " + this.usrName);
                     this.logOut();
                     broadcastMessage("has logged off", this);
                 } // end of if statement
@@ -182,12 +1481,708 @@ public class Server {
             } // end of while loop
         } // end of readFromClient() method
 
+        /** Method to read frames from a blocking client that uses the
+         * binary {@link WireProtocol WireProtocol} and pass each one to
+         * {@link #handleFrame(byte, String) handleFrame}. If the stream ends
+         * the {@link #logOut() logOut} method is called. */
+        private void readFramesFromClient(){
+            // --- while loop to read frames from client
+            // continually
+            while(!finished){
+                endOfTick();
+                WireProtocol.Frame frame = null;
+                try{
+                    frame = readFrameFromClient();
+                } catch (IOException e){
+                    // closing the socket of an idle or slow client, or after a
+                    // failed write, ends the read
+                    if(!finished && !transportClosed){
+                        ServerLog.error("I/O Error on Server!", e);
+                    } // end of if statement
+                } // end of IOException catch
+
+                // session was closed by another thread, e.g. as a slow consumer
+                if(finished){
+                    break;
+                } // end of if statement
+
+                // handle abrupt disconnect by client
+                if(frame != null){
+                    handleFrame(frame.TYPE, frame.PAYLOAD);
+                }else{
+                    ServerLog.info("Abrupt disconnect by " + this.usrName);
+                    this.logOut();
+                    broadcastMessage("has logged off", this);
+                } // end of if statement
+            } // end of while loop
+        } // end of readFramesFromClient() method
+
+        /** Method to read the next line from a blocking client, skipping
+         * any {@link WireProtocol#PONG_LINE PONG_LINE} heartbeat replies.
+         * @return The line, or null at end of stream.
+         * @throws IOException if the socket cannot be read. */
+        private String readLineFromClient() throws IOException {
+            String line;
+            while((line = serverReader.readLine()) != null){
+                touch();
+                if(!line.equals(WireProtocol.PONG_LINE)){
+                    return line;
+                } // end of if statement
+            } // end of while loop
+            return null;
+        } // end of readLineFromClient() method
+
+        /** Method to read the next frame from a blocking client, skipping
+         * any {@link WireProtocol#PONG PONG} heartbeat replies.
+         * @return The frame, or null at end of stream.
+         * @throws IOException if the socket cannot be read. */
+        private WireProtocol.Frame readFrameFromClient() throws IOException {
+            WireProtocol.Frame frame;
+            while((frame = WireProtocol.readFrame(frameInput)) != null){
+                touch();
+                if(frame.TYPE != WireProtocol.PONG){
+                    return frame;
+                } // end of if statement
+            } // end of while loop
+            return null;
+        } // end of readFrameFromClient() method
+
+        /** Method called for each frame read from a client that uses the
+         * binary {@link WireProtocol WireProtocol}. Until a unique username
+         * has been chosen each frame is taken as a username. After that
+         * {@link WireProtocol#CMD CMD} frames are passed to
+         * {@link #parseClientCommand(String) parseClientCommand} and chat
+         * frames are broadcast, whatever their first character.
+         * @param TYPE - the frame type.
+         * @param PAYLOAD - the decoded payload. */
+        private void handleFrame(final byte TYPE, final String PAYLOAD){
+            if(finished || TYPE == WireProtocol.PONG){
+                return;
+            } // end of if statement
+            if(readPaused){
+                holdInput(() -> handleFrame(TYPE, PAYLOAD));
+                return;
+            } // end of if statement
+
+            // treat frame as username until the client enters the chatroom
+            if(usrName == null){
+                if(!admit(PAYLOAD)){
+                    serverWriter.flush();
+                    return;
+                } // end of if statement
+                if(claimUsrName(PAYLOAD)){
+                    enterChatroom();
+                }else{
+                    promptUsrName();
+                } // end of if statement
+                return;
+            } // end of if statement
+
+            logRead();
+            metrics.messagesIn.increment();
+            if(!admit(PAYLOAD)){
+                serverWriter.flush();
+                return;
+            } // end of if statement
+            if(TYPE == WireProtocol.CMD){
+                parseClientCommand(PAYLOAD);
+            }else if(PAYLOAD.length() != 0){
+                sendChat(PAYLOAD);
+            } // end of if statement
+            serverWriter.flush();
+        } // end of handleFrame() method
+
+        /** Method to switch the session to the binary
+         * {@link WireProtocol WireProtocol}. The {@link WireProtocol#ACCEPT
+         * ACCEPT} line is the last text sent; all later output is framed.
+         * If the client asked for compression and the Server allows it, the
+         * ACCEPT line repeats the option and later frames may be compressed.
+         * @param OPTION - what followed the PREAMBLE on the client's line.
+         * @throws IOException if the socket input cannot be reached. */
+        private void switchToBinary(final String OPTION) throws IOException {
+            final boolean DEFLATE = config.deflate
+                    && (OPTION.equals(WireProtocol.DEFLATE_STREAM) || OPTION.equals(WireProtocol.DEFLATE_SHARED));
+            serverWriter.println(DEFLATE ? WireProtocol.ACCEPT + OPTION : WireProtocol.ACCEPT);
+            serverWriter.flush();
+            queueStream.push();
+            binary = true;
+            if(DEFLATE){
+                final boolean STREAM = OPTION.equals(WireProtocol.DEFLATE_STREAM);
+                deflater = new FrameDeflater(STREAM, config.deflateMinBytes);
+                // a frame dropped from a deflate stream breaks every later one
+                if(STREAM){
+                    outbound.keepAll();
+                } // end of if statement
+            } // end of if statement
+
+            // the client waits for the ACCEPT line before sending frames, so
+            // nothing is left in the text reader and it can be dropped
+            if(REACTOR != null){
+                frameDecoder = new FrameDecoder();
+                lineFramer = null;
+            }else{
+                frameInput = new DataInputStream(new BufferedInputStream(socketIn));
+                serverReader = null;
+            } // end of if statement
+            ServerLog.debug("Client switched to binary protocol");
+        } // end of switchToBinary() method
+
+        /** Method called by the {@link Reactor Reactor} for each line read
+         * from the {@link #CHANNEL CHANNEL}. Until a unique username has been
+         * chosen each line is taken as a username, after which lines are
+         * handled the same as in {@link #readFromClient() readFromClient}.
+         * @param LINE - the line read from the client. */
+        private void handleLine(final String LINE){
+            if(finished || LINE.equals(WireProtocol.PONG_LINE)){
+                return;
+            } // end of if statement
+            if(readPaused){
+                holdInput(() -> handleLine(LINE));
+                return;
+            } // end of if statement
+
+            // treat line as username until the client enters the chatroom
+            if(usrName == null){
+                if(!admit(LINE)){
+                    serverWriter.flush();
+                    return;
+                } // end of if statement
+                if(claimUsrName(LINE)){
+                    enterChatroom();
+                }else{
+                    promptUsrName();
+                } // end of if statement
+                return;
+            } // end of if statement
+
+            logRead();
+            metrics.messagesIn.increment();
+            if(admit(LINE)){
+                parseClientMsg(LINE);
+            } // end of if statement
+            serverWriter.println();
+        } // end of handleLine() method
+
+        // ----------------
+        //   RATE LIMITS
+        // ----------------
+
+        /** Method to check a message from the client against the
+         * session's and the Server's rate limits, and act on it if it is
+         * over one. Under {@link ServerConfig.RateAction#DELAY DELAY} the
+         * tokens are always taken and the client is held back until they
+         * would have been there: a blocking session sleeps, and a
+         * non-blocking one has its reads paused by the
+         * {@link Reactor Reactor}. Under {@link ServerConfig.RateAction#DROP
+         * DROP} the message is thrown away and the client told, at most
+         * once a second, and under {@link ServerConfig.RateAction#DISCONNECT
+         * DISCONNECT} the client is logged out. A message is only dropped
+         * after tokens taken for it from any of the limits are given back.
+         * Before the client has a username only the session's own limits
+         * apply, so name attempts cannot use up the Server's. Method costs
+         * only a few null checks when no limits are set.
+         * @param MSG - the message read from the client.
+         * @return True if the message should be handled. */
+        private boolean admit(final String MSG){
+            final boolean LOGGED_IN = usrName != null;
+            final TokenBucket GLOBAL_MSGS = LOGGED_IN ? globalMsgLimit : null;
+            final TokenBucket GLOBAL_BYTES = LOGGED_IN ? globalByteLimit : null;
+            if(msgLimit == null && byteLimit == null && GLOBAL_MSGS == null && GLOBAL_BYTES == null){
+                return true;
+            } // end of if statement
+            // bytes as sent in UTF-8, plus the line end or frame type
+            final long BYTES = byteLimit == null && GLOBAL_BYTES == null ? 0 : utf8Length(MSG) + 1;
+
+            if(config.rateAction == ServerConfig.RateAction.DELAY){
+                final long WAIT = Math.max(Math.max(reserve(msgLimit, 1), reserve(byteLimit, BYTES)),
+                        Math.max(reserve(GLOBAL_MSGS, 1), reserve(GLOBAL_BYTES, BYTES)));
+                if(WAIT > 0){
+                    metrics.rateLimited.increment();
+                    holdBack(WAIT);
+                } // end of if statement
+                return true;
+            } // end of if statement
+
+            if(takeAll(GLOBAL_MSGS, GLOBAL_BYTES, BYTES)){
+                return true;
+            } // end of if statement
+            metrics.rateLimited.increment();
+
+            if(config.rateAction == ServerConfig.RateAction.DISCONNECT){
+                ServerLog.info((LOGGED_IN ? this.usrName : "Client") + " disconnected for exceeding the rate limit");
+                serverWriter.println("Rate limit exceeded, disconnecting");
+                this.logOut();
+                if(LOGGED_IN){
+                    broadcastMessage("has logged off", this);
+                } // end of if statement
+                return false;
+            } // end of if statement
+
+            final long NOW = System.nanoTime();
+            if(NOW - lastRateNotice >= RATE_NOTICE_NANOS){
+                lastRateNotice = NOW;
+                serverWriter.println("Rate limit exceeded, message dropped");
+            } // end of if statement
+            return false;
+        } // end of admit() method
+
+        /** Method to take a message's tokens from every limit, or from
+         * none: if one limit refuses, the tokens already taken from the
+         * others are given back, so a dropped message costs nothing.
+         * @param GLOBAL_MSGS - the Server's message limit, or null.
+         * @param GLOBAL_BYTES - the Server's byte limit, or null.
+         * @param BYTES - the size of the message in bytes.
+         * @return True if every limit had room. */
+        private boolean takeAll(final TokenBucket GLOBAL_MSGS, final TokenBucket GLOBAL_BYTES, final long BYTES){
+            if(!take(msgLimit, 1)){
+                return false;
+            } // end of if statement
+            if(!take(byteLimit, BYTES)){
+                refund(msgLimit, 1);
+                return false;
+            } // end of if statement
+            if(!take(GLOBAL_MSGS, 1)){
+                refund(byteLimit, BYTES);
+                refund(msgLimit, 1);
+                return false;
+            } // end of if statement
+            if(!take(GLOBAL_BYTES, BYTES)){
+                refund(GLOBAL_MSGS, 1);
+                refund(byteLimit, BYTES);
+                refund(msgLimit, 1);
+                return false;
+            } // end of if statement
+            return true;
+        } // end of takeAll() method
+
+        /** Method to keep a line or frame read while the
+         * {@link Reactor Reactor} is paused, to be handled once it resumes.
+         * @param INPUT - the call that handles it. */
+        private void holdInput(final Runnable INPUT){
+            if(heldInput == null){
+                heldInput = new ArrayDeque<Runnable>();
+            } // end of if statement
+            heldInput.add(INPUT);
+        } // end of holdInput() method
+
+        /** Method to hold the client back for a while under the
+         * {@link ServerConfig.RateAction#DELAY DELAY} action.
+         * @param WAIT_NANOS - how long in nanoseconds. */
+        private void holdBack(final long WAIT_NANOS){
+            if(REACTOR != null){
+                REACTOR.pauseReads(this, WAIT_NANOS);
+                return;
+            } // end of if statement
+
+            try{
+                TimeUnit.NANOSECONDS.sleep(WAIT_NANOS);
+            } catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+            } // end of InterruptedException catch
+        } // end of holdBack() method
+
+        /** Method called by the {@link Reactor Reactor} when the client
+         * closes its end of the {@link #CHANNEL CHANNEL}. Clients that
+         * have entered the chatroom are logged out as in
+         * {@link #readFromClient() readFromClient}. */
+        private void handleEndOfStream(){
+            if(usrName != null && !finished){
+                ServerLog.info("Abrupt disconnect by " + this.usrName);
+                this.logOut();
+                broadcastMessage("has logged off", this);
+            }else{
+                finished = true;
+                unregister();
+                closeWhenFlushed = true;
+                scheduleWrite();
+            } // end of if statement
+        } // end of handleEndOfStream() method
+
+        // ----------------
+        //  OUTBOUND QUEUE
+        // ----------------
+
+        /** Method to add encoded output to the {@link #outbound outbound}
+         * queue and make sure a writer will drain it. If the queue refuses
+         * the message under its {@link OutboundQueue.OverflowPolicy
+         * OverflowPolicy} the client is disconnected as a slow consumer.
+         * @param BUF - the encoded output. */
+        private void enqueue(final ByteBuffer BUF){
+            if(transportClosed){
+                return;
+            } // end of if statement
+
+            // the reactor that drains this queue must never wait on it
+            final boolean MAY_WAIT = REACTOR == null || Thread.currentThread() != REACTOR;
+            if(outbound.offer(BUF, MAY_WAIT)){
+                metrics.messagesOut.increment();
+                scheduleWrite();
+            }else{
+                disconnectSlowConsumer();
+            } // end of if statement
+        } // end of enqueue() method
+
+        /** Method to queue a frame for a binary protocol client, compressed
+         * if the client asked for compression and the frame is large
+         * enough. A broadcast to a client whose frames are compressed on
+         * their own gets the compressed form shared by every such receiver.
+         * Otherwise the frame is compressed and queued while holding the
+         * {@link #queueStream queueStream}'s lock, which output already
+         * takes on its way to the queue, so frames from a deflate stream
+         * are queued in the order they were made.
+         * @param FRAME - the frame.
+         * @param SHARED - the broadcast the frame was made from, or null. */
+        private void enqueueFrame(final ByteBuffer FRAME, final BroadcastPayload SHARED){
+            final FrameDeflater DEFLATER = deflater;
+            if(DEFLATER == null || !DEFLATER.wants(FRAME)){
+                enqueue(FRAME);
+                return;
+            } // end of if statement
+
+            synchronized(queueStream){
+                final int BEFORE = FRAME.remaining();
+                final ByteBuffer OUT = SHARED != null && DEFLATER.isShared()
+                        ? SHARED.forDeflated() : DEFLATER.compress(FRAME);
+                metrics.deflateIn.add(BEFORE);
+                metrics.deflateOut.add(OUT.remaining());
+                enqueue(OUT);
+            } // end of synchronized block
+        } // end of enqueueFrame() method
+
+        /** Method to make sure a writer is draining the
+         * {@link #outbound outbound} queue. Non-blocking sessions ask their
+         * {@link Reactor Reactor}; blocking sessions start a writer task
+         * on the {@link Server#writerExecutor writerExecutor} unless one
+         * is already running. When output is coalesced with a flush linger
+         * the writer task is started after the linger. */
+        private void scheduleWrite(){
+            if(REACTOR != null){
+                REACTOR.requestWrite(this);
+            }else if(writeScheduled.compareAndSet(false, true)){
+                if(flushTimer != null){
+                    // let more output gather before writing
+                    flushTimer.schedule(() -> writerExecutor.execute(this::drainToSocket),
+                            config.flushLingerMs, TimeUnit.MILLISECONDS);
+                }else{
+                    writerExecutor.execute(this::drainToSocket);
+                } // end of if statement
+            } // end of if statement
+        } // end of scheduleWrite() method
+
+        /** Writer task of a blocking session. Method writes every queued
+         * message to the {@link #SINK SINK} using
+         * {@link #writeQueued() writeQueued}. It keeps going while more
+         * output arrives so that only one writer runs per session. */
+        private void drainToSocket(){
+            try{
+                // --- do-while loop to drain until no more output arrives
+                do{
+                    writeQueued();
+                    writeScheduled.set(false);
+                }while(!outbound.isEmpty() && writeScheduled.compareAndSet(false, true));
+
+                if(closeWhenFlushed && outbound.isEmpty()){
+                    closeTransport();
+                } // end of if statement
+            } catch (IOException e){
+                writeScheduled.set(false);
+                closeTransport();
+            } // end of IOException catch
+        } // end of drainToSocket() method
+
+        /** Method to write the {@link #outbound outbound} queue to the
+         * {@link #SINK SINK}. Up to {@link Server#GATHER_LIMIT
+         * GATHER_LIMIT} messages are taken at a time and written with a
+         * single gathering write. A blocking channel always takes the whole
+         * batch; a non-blocking one may not, in which case the rest of the
+         * batch is kept for the next call.
+         * @return True if the queue was fully written, false if the
+         * channel is full.
+         * @throws IOException if the channel cannot be written to. */
+        private boolean writeQueued() throws IOException {
+            // records the TLS handshake left unsent go first
+            if(TLS != null && !TLS.flush()){
+                return false;
+            } // end of if statement
+
+            // --- while loop to write batches until the queue is empty
+            while(true){
+                if(batchStart == batchEnd){
+                    batchStart = 0;
+                    batchEnd = 0;
+                    ByteBuffer buf;
+                    while(batchEnd < writeBatch.length && (buf = outbound.poll()) != null){
+                        writeBatch[batchEnd++] = buf;
+                    } // end of while loop
+                    if(batchEnd == 0){
+                        return true;
+                    } // end of if statement
+                } // end of if statement
+
+                metrics.bytesOut.add(SINK.write(writeBatch, batchStart, batchEnd - batchStart));
+                metrics.socketWrites.increment();
+
+                // release the messages that have been fully written
+                while(batchStart < batchEnd && !writeBatch[batchStart].hasRemaining()){
+                    writeBatch[batchStart++] = null;
+                } // end of while loop
+                if(batchStart < batchEnd){
+                    return false;
+                } // end of if statement
+            } // end of while loop
+        } // end of writeQueued() method
+
+        /** Method to check if any output is waiting to be written.
+         * @return True if output is queued or part written. */
+        private boolean hasUnsentOutput(){
+            return batchStart < batchEnd || !outbound.isEmpty() || TLS != null && TLS.hasPendingOutput();
+        } // end of hasUnsentOutput() method
+
+        /** Method to close the connection straight away and throw away
+         * any output still queued. The connection is closed before the
+         * queue is cleared, so a writer that takes messages while it is
+         * being cleared cannot send them with a gap before them. */
+        private void closeTransport(){
+            transportClosed = true;
+            try{
+                SINK.close();
+            } catch (IOException e){
+                ServerLog.error("Could not close client connection", e);
+            } // end of IOException catch
+            outbound.clear();
+        } // end of closeTransport() method
+
+        /** Method to disconnect a client whose
+         * {@link #outbound outbound} queue is full. The connection is closed
+         * without waiting for queued output and the client is logged out. */
+        private void disconnectSlowConsumer(){
+            ServerLog.warn("Disconnecting slow consumer " + this.usrName);
+            metrics.slowConsumers.increment();
+            dropConnection();
+        } // end of disconnectSlowConsumer() method
+
+        /** Method to close the connection without waiting for queued
+         * output and reclaim the session through the normal
+         * {@link #logOut() logOut} path. A blocking session's thread is
+         * woken from its read by the socket closing. */
+        private void dropConnection(){
+            closeTransport();
+
+            if(usrName != null){
+                this.logOut();
+                broadcastMessage("has logged off", this);
+            }else{
+                finished = true;
+                unregister();
+            } // end of if statement
+        } // end of dropConnection() method
+
+        // ----------------
+        //   IDLE CHECKS
+        // ----------------
+
+        /** Method to start checking the client for read idleness on the
+         * {@link Server#idleWheel idleWheel}. Method does nothing if idle
+         * clients are kept. */
+        void watchIdle(){
+            if(idleWheel != null){
+                final long FIRST = config.heartbeatSec > 0 ? config.heartbeatSec : config.idleTimeoutSec;
+                scheduleIdleCheck(TimeUnit.SECONDS.toNanos(FIRST));
+            } // end of if statement
+        } // end of watchIdle() method
+
+        /** Method to note that something has been read from the client. */
+        private void touch(){
+            lastReadNanos = System.nanoTime();
+            pingSent = false;
+        } // end of touch() method
+
+        /** Method to run {@link #checkIdle() checkIdle} after a delay. The
+         * wheel thread only hands the check on: to the session's
+         * {@link Reactor Reactor}, so it never races the session's own
+         * reads, or for a blocking session to the
+         * {@link Server#writerExecutor writerExecutor}, so the wheel never
+         * waits on a full queue.
+         * @param DELAY_NANOS - how long to wait in nanoseconds. */
+        private void scheduleIdleCheck(final long DELAY_NANOS){
+            idleWheel.schedule(() -> {
+                if(REACTOR != null){
+                    REACTOR.execute(this::checkIdle);
+                }else{
+                    writerExecutor.execute(this::checkIdle);
+                } // end of if statement
+            }, DELAY_NANOS, TimeUnit.NANOSECONDS);
+        } // end of scheduleIdleCheck() method
+
+        /** Method to check how long the client has been quiet. A client
+         * quiet for the heartbeat interval is pinged once, and one quiet
+         * for the idle timeout is disconnected. Otherwise the next check is
+         * scheduled for when one of those would next be due. */
+        private void checkIdle(){
+            if(finished || transportClosed){
+                return;
+            } // end of if statement
+
+            final long IDLE = System.nanoTime() - lastReadNanos;
+            final long TIMEOUT = TimeUnit.SECONDS.toNanos(config.idleTimeoutSec);
+            final long HEARTBEAT = TimeUnit.SECONDS.toNanos(config.heartbeatSec);
+
+            if(IDLE >= TIMEOUT){
+                ServerLog.info("Disconnecting idle client " + this.usrName);
+                metrics.idleReaped.increment();
+                dropConnection();
+                return;
+            } // end of if statement
+
+            if(HEARTBEAT > 0 && IDLE >= HEARTBEAT && !pingSent){
+                pingSent = true;
+                sendPing();
+            } // end of if statement
+
+            long next = TIMEOUT - IDLE;
+            if(HEARTBEAT > 0 && !pingSent){
+                next = Math.min(next, HEARTBEAT - IDLE);
+            } // end of if statement
+            scheduleIdleCheck(next);
+        } // end of checkIdle() method
+
+        /** Method to queue a heartbeat ping in this client's protocol.
+         * Anything already written is queued first, under the
+         * {@link #queueWriter queueWriter}'s lock so that a line being
+         * printed on another thread is not split by the ping. */
+        private void sendPing(){
+            synchronized(queueWriter){
+                serverWriter.flush();
+                queueStream.push();
+                enqueue(binary ? PING_FRAME.duplicate() : PING_TEXT.duplicate());
+            } // end of synchronized block
+            metrics.pingsSent.increment();
+        } // end of sendPing() method
+
+        /** Method to remove the client from the
+         * {@link Server#clientRegistry clientRegistry}, counting the
+         * disconnect the first time it is called, and release its
+         * {@link #deflater deflater}. */
+        private void unregister(){
+            if(clientRegistry.remove(this)){
+                metrics.disconnects.increment();
+            } // end of if statement
+
+            // the deflate stream holds native memory; later frames go
+            // uncompressed
+            final FrameDeflater DEFLATER = deflater;
+            if(DEFLATER != null){
+                synchronized(queueStream){
+                    DEFLATER.end();
+                } // end of synchronized block
+            } // end of if statement
+        } // end of unregister() method
+
+        /** Method to log each message read from the client. The message is
+         * only built when {@link ServerLog.Level#DEBUG DEBUG} logging is on. */
+        private void logRead(){
+            if(ServerLog.isEnabled(ServerLog.Level.DEBUG)){
+                ServerLog.debug("Reading from " + this.usrName + "...");
+            } // end of if statement
+        } // end of logRead() method
+
+        /** Class that extends {@link OutputStream OutputStream} and collects
+         * the bytes written by the {@link #serverWriter serverWriter}. On
+         * each flush the bytes are added to the {@link #outbound outbound}
+         * queue as one message. When writes are coalesced a flush only
+         * queues the bytes once the flush byte threshold is reached, and
+         * the rest are queued by {@link #push() push} at the end of the
+         * tick. */
+        private class QueueOutputStream extends OutputStream {
+
+            /** {@link ByteArrayOutputStream ByteArrayOutputStream} that
+             * stores bytes written since the last push, or null if there
+             * are none, so that an idle session holds no buffer. */
+            private ByteArrayOutputStream buffered;
+
+            public synchronized void write(int b){
+                buffer().write(b);
+            } // end of write() method
+
+            public synchronized void write(byte[] b, int off, int len){
+                buffer().write(b, off, len);
+            } // end of write() method
+
+            public synchronized void flush(){
+                if(!config.coalesceWrites || buffered != null && buffered.size() >= config.flushThresholdBytes){
+                    push();
+                } // end of if statement
+            } // end of flush() method
+
+            /** Method to get the buffer, creating it if there is none.
+             * @return The buffer. */
+            private ByteArrayOutputStream buffer(){
+                if(buffered == null){
+                    buffered = new ByteArrayOutputStream(256);
+                } // end of if statement
+                return buffered;
+            } // end of buffer() method
+
+            /** Method to queue every buffered byte as one message,
+             * whether or not writes are coalesced. */
+            public synchronized void push(){
+                if(buffered != null && buffered.size() > 0){
+                    byte[] bytes = buffered.toByteArray();
+                    buffered = null;
+                    // binary protocol sessions get the text as a TEXT frame
+                    if(binary){
+                        enqueueFrame(WireProtocol.frame(WireProtocol.TEXT, bytes, 0, bytes.length), null);
+                    }else{
+                        enqueue(ByteBuffer.wrap(bytes));
+                    } // end of if statement
+                } // end of if statement
+            } // end of push() method
+
+            /** Method to queue any buffered bytes and then have the
+             * connection closed once all queued output is written. */
+            public void close(){
+                push();
+                closeWhenFlushed = true;
+                scheduleWrite();
+            } // end of close() method
+        } // end of QueueOutputStream Class
+
+        /** Class that extends {@link Writer Writer} and encodes the text
+         * printed by the {@link #serverWriter serverWriter} straight into
+         * the {@link #queueStream queueStream}. It takes the place of an
+         * {@link OutputStreamWriter OutputStreamWriter}, whose encoder keeps
+         * an 8 KB buffer for the life of every session. Text is always
+         * printed a whole string at a time, so nothing needs to be held
+         * between writes. */
+        private class QueueWriter extends Writer {
+
+            public void write(String str, int off, int len){
+                final byte[] BYTES = str.substring(off, off + len).getBytes(CHARSET);
+                queueStream.write(BYTES, 0, BYTES.length);
+            } // end of write() method
+
+            public void write(char[] cbuf, int off, int len){
+                write(new String(cbuf, off, len), 0, len);
+            } // end of write() method
+
+            public void write(int c){
+                write(String.valueOf((char) c), 0, 1);
+            } // end of write() method
+
+            public void flush(){
+                queueStream.flush();
+            } // end of flush() method
+
+            public void close(){
+                queueStream.close();
+            } // end of close() method
+        } // end of QueueWriter Class
+
         /** Method to take message as a parameter and detect if it is
          * a broadcast message or a server command. Method looks at the
          * first character of the message and if it is a command message calls
          * the {@link #parseClientCommand parseClientCommand} method.
-         * Otherwise it calls the {@link #broadcastMessage(String,
-         * MultipleServer) broadcastMessage} method.
+         * Otherwise it calls the {@link #sendChat(String) sendChat} method.
          * @param MSG - The message to be parsed. */
         private void parseClientMsg(final String MSG){
             // ensures only parsing of non-empty strings
@@ -197,102 +2192,200 @@ public class Server {
                 if(MSG.charAt(0) == ';'){
                     parseClientCommand(MSG);
                 }else{
-                    serverWriter.print("\u2713");
-                    broadcastMessage(MSG, this);
-                    serverWriter.print("\u2713");
+                    sendChat(MSG);
                 } // end of if statement
             } // end of if statement
 
             serverWriter.flush();
         } // end of parseUsrMsg() method
 
-        /** Method to print message to output stream of
-         * {@link ClientInstance Clients}.
-         * @param MSG - The message to be printed.
-         * @param BCASTER - The Client sending the message. */
-        private synchronized void printMessage(
-                final String MSG, final MultipleServer BCASTER){
-            serverWriter.println(BCASTER.getUsrName() + ": " + MSG);
-            serverWriter.flush();
+        /** Method to {@link #broadcastMessage(String, MultipleServer)
+         * broadcast} a chat message and acknowledge it to the sender, with
+         * a pair of ticks for the text protocol or an
+         * {@link WireProtocol#ACK ACK} frame for the binary protocol.
+         * @param MSG - The chat message. */
+        private void sendChat(final String MSG){
+            if(binary){
+                broadcastMessage(MSG, this, true);
+                serverWriter.flush();
+                queueStream.push();
+                enqueue(ACK_FRAME.duplicate());
+            }else{
+                serverWriter.print("\u2713");
+                broadcastMessage(MSG, this, true);
+                serverWriter.print("\u2713");
+            } // end of if statement
+        } // end of sendChat() method
+
+        /** Method to send a private message to one user, found with a
+         * single lookup in the {@link Server#clientRegistry clientRegistry}.
+         * The message is encoded once and queued for the receiver only,
+         * or sent on to the {@link Server#cluster cluster} if the receiver
+         * is on another node, then acknowledged to the sender like a chat
+         * message.
+         * @param LINE - the command line.
+         * @param ARG - index of the receiver's username in the line, which
+         * is followed by a space and the message. */
+        private void sendDirect(final String LINE, final int ARG){
+            final int NAME_END = CommandRegistry.wordEnd(LINE, ARG);
+            final String TEXT = CommandRegistry.rest(LINE, CommandRegistry.skipSpaces(LINE, NAME_END));
+            if(TEXT.isEmpty()){
+                serverWriter.println("usage: ;msg <user> <text>");
+                return;
+            } // end of if statement
+
+            final String TO = LINE.substring(ARG, NAME_END);
+            final MultipleServer RECEIVER = clientRegistry.findUsr(TO);
+            final boolean REMOTE = RECEIVER == null && cluster != null && cluster.isRemoteUsr(TO);
+            if(!REMOTE && (RECEIVER == null || RECEIVER.finished)){
+                serverWriter.println("No user named " + TO + " is online");
+                return;
+            } // end of if statement
+            if(RECEIVER == this){
+                serverWriter.println("You cannot message yourself");
+                return;
+            } // end of if statement
+
+            final BroadcastPayload PAYLOAD = new BroadcastPayload(usrName + " (private)", TEXT);
+            if(REMOTE){
+                cluster.publishDirect(TO, PAYLOAD);
+            }else{
+                RECEIVER.printMessage(PAYLOAD);
+                metrics.directMessages.increment();
+            } // end of if statement
+            if(binary){
+                serverWriter.flush();
+                queueStream.push();
+                enqueue(ACK_FRAME.duplicate());
+            }else{
+                serverWriter.print("\u2713\u2713");
+            } // end of if statement
+        } // end of sendDirect() method
+
+        /** Method to print one page of the usernames online in sorted
+         * order, so a large server is listed a page at a time instead of
+         * in one huge response.
+         * @param AFTER - the name to list from, or null for the first page. */
+        private void showWho(final String AFTER){
+            final List<String> PAGE = clientRegistry.listUsrNames(AFTER, WHO_PAGE);
+            if(PAGE.isEmpty()){
+                serverWriter.println("No more users");
+                return;
+            } // end of if statement
+
+            // --- for loop to print each name on its own line
+            for(String name : PAGE){
+                serverWriter.println(name);
+            } // end of for loop
+            if(PAGE.size() == WHO_PAGE){
+                serverWriter.println("--- more: ;who " + PAGE.get(PAGE.size() - 1) + " ---");
+            }else{
+                serverWriter.println("--- " + getUsrNum() + " users online ---");
+            } // end of if statement
+        } // end of showWho() method
+
+        /** Method to print an encoded broadcast to the output of
+         * {@link ClientInstance Clients}. Anything already written to the
+         * {@link #serverWriter serverWriter}, including output held back by
+         * write coalescing, is queued first so it stays in order, then a
+         * view of the shared bytes in this client's protocol is queued.
+         * Both are done under the {@link #queueWriter queueWriter}'s lock,
+         * which the session's own thread holds while printing a line, so a
+         * broadcast never lands in the middle of one.
+         * @param PAYLOAD - The encoded broadcast, shared by every receiver. */
+        private void printMessage(final BroadcastPayload PAYLOAD){
+            synchronized(queueWriter){
+                serverWriter.flush();
+                queueStream.push();
+                if(binary){
+                    enqueueFrame(PAYLOAD.forBinary(), PAYLOAD);
+                }else{
+                    enqueue(PAYLOAD.forText());
+                } // end of if statement
+            } // end of synchronized block
         } // end of printMessage() method
 
+        /** Method to print a line from a thread other than the session's
+         * own, such as the {@link Server#journalReader journalReader}. The
+         * line is queued straight away under the
+         * {@link #queueWriter queueWriter}'s lock, as in
+         * {@link #printMessage(BroadcastPayload) printMessage}, so it goes
+         * out ahead of anything queued after it.
+         * @param LINE - the line to print. */
+        private void printNotice(final String LINE){
+            synchronized(queueWriter){
+                serverWriter.println(LINE);
+                serverWriter.flush();
+                queueStream.push();
+            } // end of synchronized block
+        } // end of printNotice() method
+
         /** Method to parse the command message passed as a parameter
          * and call methods to respond to the {@link ClientInstance Client's}
-         * request. Method uses a switch statement to see which command the
-         * command message parameter matches with before calling the method
-         * nested within the matching case.
+         * request. Method looks the command up in the
+         * {@link Server#commands commands} registry, which runs the
+         * matching handler without splitting the message into new strings.
          * @param CMD - The command message to be parsed. */
-        private void parseClientCommand(final String CMD){
-            switch(CMD){
-                case ";cut": // show client uptime
-                case ";client_ut":
-                    serverWriter.println("Time in chatroom: "
-                            + getClientChatroomTime() + " seconds");
-                    break;
-                case ";e": // user requested exit
-                case ";exit":
-                    System.out.println(this.usrName + " is logging out");
-                    // send message to alert other users
-                    broadcastMessage("has logged off", this);
-                    this.logOut();
-                    break;
-                case ";h": // list help commands
-                case ";help":
-                    getHelpCommands();
-                    break;
-                case ";ip": // show ip address of server
-                case ";ip_addr":
-                    serverWriter.println("Server IP Address: " + getServerIP());
-                    break;
-                case ";ut": // user requested uptime status
-                case ";uptime":
-                    serverWriter.println("Server Uptime: "
-                            + getServerUptime() + " seconds");
-                    break;
-                case ";un": // user requested number of online users
-                case ";usr_num":
-                    serverWriter.println("Users online: " + getUsrNum());
-                    break;
-                default:
-                    serverWriter.println("unknown command: type \';h\' for help");
-            } // end of switch statement
+        void parseClientCommand(final String CMD){
+            if(!commands.dispatch(this, CMD)){
+                serverWriter.println("unknown command: type \';h\' for help");
+            } // end of if statement
         } // end of parseClientCommand() method
 
         // ----------------
         //  LOGGING OUT
         // ----------------
 
+        /** Method to tell the client the Server is shutting down and log
+         * it out. Its connection is closed once the notice and any other
+         * queued output have been written. Run by
+         * {@link Server#drain(ServerConfig) drain}. */
+        void shutDown(){
+            if(finished){
+                return;
+            } // end of if statement
+            serverWriter.println(SHUTDOWN_NOTICE);
+            this.logOut();
+        } // end of shutDown() method
+
+        /** Method to check if the connection has been closed, so nothing
+         * more is waiting to be written.
+         * @return True if the connection is closed. */
+        boolean isDrained(){
+            return transportClosed || CHANNEL == null || !CHANNEL.isOpen();
+        } // end of isDrained() method
+
         /** Method to close I/O streams and stop continual listening
          * for input from {@link ClientInstance Client}. Method uses the
          * {@link PrintWriter#close() close} method in the
-         * {@link PrintWriter PrintWriter}
-         * and {@link BufferedReader BufferedReader} classes to close the I/O
-         * streams before closing the {@link #MULTISOCKET MULTISOCKET} and
-         * removing the {@link ClientInstance Client's} username from the
-         * {@link Server#usrNameSet usrNameSet} in the {@link Server Server}
-         * class. */
-        private void logOut(){
-            // close the I/0 streams
-            try{
-                serverReader.close();
+         * {@link PrintWriter PrintWriter} class so that the
+         * {@link #MULTISOCKET MULTISOCKET}, and with it the
+         * {@link BufferedReader BufferedReader}, is closed once the queued
+         * output has been written. It then removes the
+         * {@link ClientInstance Client} and its username from
+         * the {@link Server#clientRegistry clientRegistry} in the
+         * {@link Server Server} class. Method does nothing if the client
+         * has already logged out. */
+        void logOut(){
+            synchronized(this){
+                if(finished){
+                    return;
+                } // end of if statement
                 finished = true;
-            } catch (IOException e){
-                e.printStackTrace();
-                System.err.println("I/O error on logout");
-            } // end of IOException catch
+            } // end of synchronized block
 
+            // close the I/0 streams once the farewell is written
             serverWriter.println("Logging off...");
             serverWriter.close();
 
-            try{
-                MULTISOCKET.close();
-            } catch (IOException e){
-                e.printStackTrace();
-            }
-
-            System.out.println(this.usrName +  " logged out");
-            // remove username from HashSet
-            usrNameSet.remove(this.getUsrName());
+            ServerLog.info(this.usrName +  " logged out");
+            // remove client and username from the room and registry
+            leaveRoom();
+            unregister();
+            clientRegistry.releaseUsrName(this.getUsrName(), this);
+            if(cluster != null && usrName != null){
+                cluster.release(usrName);
+            } // end of if statement
         } // end of laogOut() method
 
         // ----------------
@@ -313,17 +2406,10 @@ public class Server {
 
         /** Method to print out the available commands for the client whilst
          * connected to the server.
-         * Method uses the {@link PrintWriter#println(String) println} method
-         * from the {@link PrintWriter PrintWriter} class to output the
-         * available commands to the client. */
+         * Method prints one line for each command registered in the
+         * {@link Server#commands commands} registry. */
         private void getHelpCommands(){
-            serverWriter.println(";cut \t;client_ut \t get uptime of the client");
-            serverWriter.println(";e \t;exit \t\t log out and exit from chatroom");
-            serverWriter.println(";h \t;help \t\t print help commands to terminal");
-            serverWriter.println(";ip \t;ip_addr \t get IP address of the server");
-            serverWriter.println(";un \t;usr_num \t get number of online users");
-            serverWriter.println(";ut \t;uptime \t get uptime of the server");
-
+            commands.printHelp(serverWriter);
             serverWriter.flush();
         } // end of getHelpCommands() method
 
@@ -339,7 +2425,7 @@ public class Server {
                 IP = InetAddress.getLocalHost();
                 return IP.getHostAddress();
             } catch (UnknownHostException e){
-                System.err.println("Unknown Host Error: No Server IP");
+                ServerLog.warn("Unknown Host Error: No Server IP");
             } // end of UnknownHostException catch
 
             return "IP Address Unavailable";
@@ -362,11 +2448,35 @@ public class Server {
             return usrName;
         } // end of getUsrName() method
 
+        /** Method to list every open room with its member count.
+         * @return Rooms in the form <code>name (members)</code>. */
+        private String getRoomList(){
+            StringBuilder list = new StringBuilder();
+            // --- for loop to add each room to the list
+            for(Room r : rooms.values()){
+                if(list.length() > 0){
+                    list.append(", ");
+                } // end of if statement
+                list.append(r.NAME).append(" (").append(r.members.size()).append(')');
+            } // end of for loop
+            return list.toString();
+        } // end of getRoomList() method
+
+        /** Method to get the average number of socket writes made for each
+         * message read from clients, across the whole server.
+         * @return Socket writes divided by messages read. */
+        private double getFlushesPerMessage(){
+            final long MESSAGES = metrics.messagesIn.sum();
+            return MESSAGES == 0 ? 0 : (double) metrics.socketWrites.sum() / MESSAGES;
+        } // end of getFlushesPerMessage() method
+
         /** Method to get the number of users online.
-         * Method returns the size of the {@link #usrNameSet usrNameSet}
-         * @return Size of HashSet storing each username. */
+         * Method returns the number of usernames reserved in the
+         * {@link Server#clientRegistry clientRegistry}, plus those held
+         * on other {@link Server#cluster cluster} nodes
+         * @return Number of reserved usernames. */
         private int getUsrNum(){
-            return usrNameSet.size();
+            return clientRegistry.usrCount() + (cluster == null ? 0 : cluster.remoteUsrCount());
         } // end of getUsrNum() method
 
         // ----------------
@@ -375,36 +2485,245 @@ public class Server {
 
         /** Method to set a unique username for the client
          * attempting to joing the chatroom.
-         * Method takes input through the {@link #serverReader serverReader}
+         * Method takes input through the {@link #serverReader serverReader},
+         * or as frames once the client has switched to the binary
+         * {@link WireProtocol WireProtocol},
          * and checks that username is unique against those already
-         * stored in the {@link Server#usrNameSet usrNameSet}. It then
+         * reserved in the {@link Server#clientRegistry clientRegistry}. It then
         * {@link #broadcastMessage(String, MultipleServer) broadcasts a message}
          * to alert all users that a new user is online and stores the system time
          * in {@link #clientChatroomTime clientChatroomTime} */
         private void setUsrName(){
 
-            // --- do-while loop to ask for username and check that
-            // it is unique against other entries in the HashSet
-            do{
-                serverWriter.println("Please enter a unique username:- ");
-                System.out.println("Requesting username");
-                serverWriter.flush();
+            // --- while loop to ask for username until one is claimed
+            // or the client disconnects
+            while(true){
+                promptUsrName();
+                endOfTick();
+                String candidate;
                 try{
-                    usrName = serverReader.readLine();
+                    if(binary){
+                        WireProtocol.Frame frame = readFrameFromClient();
+                        candidate = frame == null ? null : frame.PAYLOAD;
+                    }else{
+                        candidate = readLineFromClient();
+                    } // end of if statement
                 }catch(IOException e){
-                    System.err.println("I/O Error at Username Creation");
-                    e.printStackTrace();
+                    if(!finished && !transportClosed){
+                        ServerLog.error("I/O Error at Username Creation", e);
+                    } // end of if statement
+                    candidate = null;
                 } // end of IOException catch
-            }while(Server.usrNameSet.add(usrName) == false && usrName != null);
 
+                // name attempts count against the session's rate limits
+                if(candidate != null && !admit(candidate)){
+                    if(finished){
+                        break;
+                    } // end of if statement
+                    continue;
+                } // end of if statement
+                if(candidate == null || claimUsrName(candidate)){
+                    break;
+                } // end of if statement
+            } // end of while loop
+
+            // client disconnected before choosing a username
+            if(usrName == null){
+                this.logOut();
+                return;
+            } // end of if statement
+
+            enterChatroom();
+        } // end of setUsrName() method
+
+        /** Method to take a line or frame sent while the client has no
+         * username. A text client sending the {@link WireProtocol#PREAMBLE
+         * PREAMBLE} is switched to the binary protocol; anything else is
+         * reserved as the username if it is no longer than
+         * {@link Server#MAX_NAME_CHARS MAX_NAME_CHARS} and not already
+         * taken here or on another {@link Server#cluster cluster} node.
+         * @param NAME - the username asked for.
+         * @return True if the username is now set. */
+        boolean claimUsrName(final String NAME){
+            if(!binary && NAME.startsWith(WireProtocol.PREAMBLE)){
+                try{
+                    switchToBinary(NAME.substring(WireProtocol.PREAMBLE.length()));
+                } catch (IOException e){
+                    ServerLog.error("Could not switch client to binary protocol", e);
+                } // end of IOException catch
+                return false;
+            } // end of if statement
+
+            if(NAME.length() > MAX_NAME_CHARS){
+                serverWriter.println("Usernames are at most " + MAX_NAME_CHARS + " characters");
+                return false;
+            } // end of if statement
+            if(cluster != null && cluster.isRemoteUsr(NAME)){
+                return false;
+            } // end of if statement
+            if(clientRegistry.reserveUsrName(NAME, this)){
+                usrName = NAME;
+                if(cluster != null){
+                    cluster.claim(NAME);
+                } // end of if statement
+                return true;
+            } // end of if statement
+            return false;
+        } // end of claimUsrName() method
+
+        /** Method to ask the client for a unique username. */
+        private void promptUsrName(){
+            serverWriter.println("Please enter a unique username:- ");
+            ServerLog.debug("Requesting username");
+            serverWriter.flush();
+        } // end of promptUsrName() method
+
+        /** Method to place the client in the {@link Server#LOBBY LOBBY},
+         * {@link #broadcastMessage(String, MultipleServer) broadcast}
+         * that the client is online once its username is set, and store
+         * the system time in {@link #clientChatroomTime clientChatroomTime}. */
+        private void enterChatroom(){
+            enterRoom(LOBBY);
             broadcastMessage("is online",this);
-            System.out.println("User added: " + this.usrName);
+            ServerLog.info("User added: " + this.usrName);
 
             // adds system time for when client entered the chatroom
             clientChatroomTime = System.currentTimeMillis();
 
             serverWriter.println("--- Entered Chatroom ---\n");
             serverWriter.println("type \';h\' for help\n\n");
-        } // end of setUsrName() method
+            showHistory(config.historyOnJoin, true);
+        } // end of enterChatroom() method
+
+        // ----------------
+        //      ROOMS
+        // ----------------
+
+        /** Method to move the client to another room, telling the members
+         * of the old and new rooms. A name longer than
+         * {@link Server#MAX_NAME_CHARS MAX_NAME_CHARS} is refused.
+         * @param NAME - the name of the room to move to. */
+        private void changeRoom(final String NAME){
+            if(NAME.length() > MAX_NAME_CHARS){
+                serverWriter.println("Room names are at most " + MAX_NAME_CHARS + " characters");
+                return;
+            } // end of if statement
+            if(room != null && room.NAME.equals(NAME)){
+                serverWriter.println("Already in room " + NAME);
+                return;
+            } // end of if statement
+
+            broadcastMessage("has left the room", this);
+            leaveRoom();
+            enterRoom(NAME);
+            serverWriter.println("--- Joined room " + NAME + " ---");
+            broadcastMessage("has joined the room", this);
+            showHistory(config.historyOnJoin, true);
+        } // end of changeRoom() method
+
+        /** Method to replay the most recent chat messages of the client's
+         * room. The messages are copied out of the room's
+         * {@link MessageHistory MessageHistory} on this thread, then
+         * queued for the client in batches on the room's shard, so they
+         * may be mixed with live broadcasts sent while the replay runs.
+         * @param COUNT - the most messages to replay.
+         * @param ON_JOIN - true when replaying on joining a room, in which
+         * case nothing is printed if there is no history. */
+        private void showHistory(final int COUNT, final boolean ON_JOIN){
+            final Room ROOM = room;
+            if(ROOM == null || ROOM.HISTORY == null || COUNT <= 0){
+                if(!ON_JOIN){
+                    serverWriter.println("No message history is kept");
+                } // end of if statement
+                return;
+            } // end of if statement
+
+            final BroadcastPayload[] RECENT = ROOM.HISTORY.latest(COUNT);
+            if(RECENT.length == 0){
+                if(!ON_JOIN){
+                    serverWriter.println("No messages in " + ROOM.NAME + " yet");
+                } // end of if statement
+                return;
+            } // end of if statement
+
+            serverWriter.println("--- Last " + RECENT.length + " messages in " + ROOM.NAME + " ---");
+            ROOM.SHARD.execute(() -> ROOM.replay(this, RECENT, 0));
+        } // end of showHistory() method
+
+        /** Method to replay the chat messages of the client's room that
+         * the {@link Server#journal journal} holds from an offset onwards,
+         * so a client that reconnects can catch up on what it missed. The
+         * journal is read on the {@link Server#journalReader journalReader},
+         * never on the session's own thread. At most
+         * {@link Server#SINCE_LIMIT SINCE_LIMIT} messages are sent and
+         * {@link Server#SINCE_SCAN_LIMIT SINCE_SCAN_LIMIT} records looked
+         * at; the header says which offset to carry on from. Like
+         * {@link #showHistory(int, boolean) showHistory}, the messages are
+         * queued in batches on the room's shard.
+         * @param FROM - the first offset wanted. */
+        private void showSince(final long FROM){
+            final Room ROOM = room;
+            if(journal == null || ROOM == null){
+                serverWriter.println("No journal is kept");
+                return;
+            } // end of if statement
+            journalReader.execute(() -> sendSince(ROOM, FROM));
+        } // end of showSince() method
+
+        /** Method run on the {@link Server#journalReader journalReader} to
+         * read the journal for {@link #showSince(long) showSince} and hand
+         * the messages found to the room's shard.
+         * @param ROOM - the room the client was in when it asked.
+         * @param FROM - the first offset wanted. */
+        private void sendSince(final Room ROOM, final long FROM){
+            if(finished){
+                return;
+            } // end of if statement
+            final MessageJournal.Page PAGE = journal.read(FROM, ROOM.NAME, SINCE_LIMIT, SINCE_SCAN_LIMIT);
+            final List<MessageJournal.Record> FOUND = PAGE.RECORDS;
+            if(FOUND.isEmpty()){
+                printNotice("No messages in " + ROOM.NAME + " since offset " + FROM
+                        + "; resume from " + PAGE.NEXT);
+                return;
+            } // end of if statement
+
+            final BroadcastPayload[] MSGS = new BroadcastPayload[FOUND.size()];
+            // --- for loop to wrap each journalled line for sending
+            for(int i = 0; i < MSGS.length; i++){
+                MSGS[i] = new BroadcastPayload(FOUND.get(i).BODY);
+            } // end of for loop
+
+            printNotice("--- " + MSGS.length + " messages in " + ROOM.NAME
+                    + " since offset " + FROM + ", resume from " + PAGE.NEXT + " ---");
+            ROOM.SHARD.execute(() -> ROOM.replay(this, MSGS, 0));
+        } // end of sendSince() method
+
+        /** Method to add the client to a room, creating the room if it
+         * does not exist yet. Creation and joining are one atomic step so a
+         * room cannot be removed between them.
+         * @param NAME - the name of the room to join. */
+        void enterRoom(final String NAME){
+            room = rooms.compute(NAME, (name, existing) -> {
+                Room joined = existing == null ? new Room(name) : existing;
+                joined.members.add(this);
+                return joined;
+            });
+        } // end of enterRoom() method
+
+        /** Method to remove the client from its room. A room other than
+         * the {@link Server#LOBBY LOBBY} is removed when its last member
+         * leaves. The {@link #room room} field is kept so a final
+         * broadcast can still reach the room. */
+        private void leaveRoom(){
+            final Room OLD = room;
+            if(OLD == null){
+                return;
+            } // end of if statement
+
+            rooms.computeIfPresent(OLD.NAME, (name, existing) -> {
+                existing.members.remove(this);
+                return existing.members.size() == 0 && !name.equals(LOBBY) ? null : existing;
+            });
+        } // end of leaveRoom() method
     } // end of MultipleServer Class
 } // end of Server Class
@@ -0,0 +1,791 @@
+// ----- IMPORT STATEMENTS -----
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/** Class that benchmarks the hot paths of the {@link Server Server} and
+ * prints one JSON object per result on its own line, so the output of two
+ * releases can be diffed or loaded by a script.
+ * <p>Run with <code>java ServerBench [benchmark...] [--option=value...]</code>.
+ * Naming benchmarks runs only those; by default every benchmark is run.
+ * Any <code>--</code> options are the same as the Server's own and apply to
+ * every benchmark. The benchmarks are:</p>
+ * <ul>
+ * <li>fanOut - a room broadcast to 10, 1000 and 10000 in-memory
+ * receivers, timed until every receiver's bytes have been written</li>
+ * <li>commandDispatch - a mix of commands passed to
+ * {@link Server.MultipleServer#parseClientCommand(String)
+ * parseClientCommand}</li>
+ * <li>usrNameContention - threads claiming and releasing usernames from
+ * a small shared pool</li>
+ * <li>deflate - chat broadcasts compressed by a {@link FrameDeflater
+ * FrameDeflater} with one stream, as for one receiver, and each on its
+ * own, as shared by every receiver</li>
+ * <li>footprint - heap held by each idle session and by each session
+ * part way through reading a message, for sizing a Server for many
+ * connections</li>
+ * <li>loopbackLatency - time from a client sending a chat message over
+ * loopback to another client reading the broadcast</li>
+ * <li>tlsHandshake - TLS connections made to a Server using a test
+ * certificate, first with a full handshake each time and then resuming
+ * the last session</li>
+ * <li>tlsLatency - loopbackLatency over TLS, to compare with the
+ * cleartext result</li>
+ * </ul>
+ * The Server's own console output is thrown away while the benchmarks
+ * run. */
+class ServerBench {
+
+    // ----- FIELDS ----- //
+    /** {@link PrintStream PrintStream} that results are printed to. */
+    private static final PrintStream RESULTS = System.out;
+
+    /** {@link String String} constant that stores the chat message sent by
+     * the fan-out benchmark. */
+    private static final String FAN_OUT_MSG = "the quick brown fox jumps over the lazy dog";
+
+    /** Array of the commands cycled through by the command dispatch
+     * benchmark, including one that is not recognised. */
+    private static final String[] COMMANDS = {";un", ";ut", ";cut", ";bs", ";usr_num", ";hs 0", ";nope"};
+
+    /** Array of the words the compression benchmark builds chat lines
+     * from. */
+    private static final String[] WORDS = ("the be to of and a in that have it for not on with he as you do at"
+            + " this but his by from they we say her she or an will my one all would there their what so up out"
+            + " if about who get which go me when make can like time no just him know take people into year your"
+            + " good some could them see other than then now look only come its over think also back after use"
+            + " two how our work first well way even new want because any these give day most us server room chat"
+            + " message deploy build test release tonight tomorrow lunch meeting review merge branch fix bug").split(" ");
+
+    /** Int constant that stores the size of the shared username pool in
+     * the contention benchmark. */
+    private static final int USR_NAME_POOL = 64;
+
+    /** {@link String String} constant that stores the password of the
+     * test key store made for the TLS benchmarks. */
+    private static final String TLS_PASSWORD = "bench-pass";
+
+    /** Int constant that stores how many operations the benchmarks of
+     * short operations time together as one sample, so the cost of
+     * reading the clock is spread over the whole batch. */
+    private static final int BATCH = 100;
+
+    /** Sink for the results of timed operations, read nowhere, so that
+     * the JIT cannot find the work unused and leave it out. */
+    private static volatile long blackhole;
+
+    /** Private Constructor as the class only has static members. */
+    private ServerBench(){
+
+    } // end of CONSTRUCTOR
+
+    /** Main method that runs the chosen benchmarks and then exits, as
+     * the Server's threads would otherwise keep the JVM running.
+     * @param args - names of benchmarks to run and Server options.
+     * @throws Exception if a benchmark fails. */
+    public static void main(String[] args) throws Exception {
+        List<String> names = new ArrayList<String>();
+        List<String> options = new ArrayList<String>();
+        // --- for loop to split benchmark names from Server options
+        for(String arg : args){
+            if(arg.startsWith("--")){
+                options.add(arg);
+            }else{
+                names.add(arg);
+            } // end of if statement
+        } // end of for loop
+
+        final String[] OPTIONS = options.toArray(new String[0]);
+        final ServerConfig CONFIG = ServerConfig.parse(withPort("0", OPTIONS));
+
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        Server.startInMemory(CONFIG);
+
+        RESULTS.println("{\"benchmark\":\"env\",\"java\":\"" + System.getProperty("java.version")
+                + "\",\"cores\":" + Runtime.getRuntime().availableProcessors()
+                + ",\"options\":\"" + String.join(" ", OPTIONS) + "\"}");
+
+        if(names.isEmpty() || names.contains("fanOut")){
+            fanOut(10);
+            fanOut(1_000);
+            fanOut(10_000);
+        } // end of if statement
+        if(names.isEmpty() || names.contains("commandDispatch")){
+            commandDispatch();
+        } // end of if statement
+        if(names.isEmpty() || names.contains("usrNameContention")){
+            usrNameContention(1);
+            usrNameContention(Runtime.getRuntime().availableProcessors());
+        } // end of if statement
+        if(names.isEmpty() || names.contains("deflate")){
+            deflate(true);
+            deflate(false);
+        } // end of if statement
+        // run last as they start real Servers, which replace the in-memory setup
+        if(names.isEmpty() || names.contains("footprint")){
+            footprint(OPTIONS);
+        } // end of if statement
+        if(names.isEmpty() || names.contains("loopbackLatency")){
+            loopbackLatency("loopbackLatency", OPTIONS, null);
+        } // end of if statement
+        if(names.isEmpty() || names.contains("tlsHandshake") || names.contains("tlsLatency")){
+            final File KEY_STORE = new File(Files.createTempDirectory("bench-tls").toFile(), "test.p12");
+            KEY_STORE.deleteOnExit();
+            KEY_STORE.getParentFile().deleteOnExit();
+            TlsContexts.generateTestKeyStore(KEY_STORE, TLS_PASSWORD);
+            final String[] TLS_OPTIONS = Arrays.copyOf(OPTIONS, OPTIONS.length + 2);
+            TLS_OPTIONS[OPTIONS.length] = "--tls-keystore=" + KEY_STORE;
+            TLS_OPTIONS[OPTIONS.length + 1] = "--tls-password=" + TLS_PASSWORD;
+            final SSLSocketFactory FACTORY = TlsContexts.forClient(KEY_STORE, TLS_PASSWORD).getSocketFactory();
+
+            if(names.isEmpty() || names.contains("tlsHandshake")){
+                tlsHandshake(TLS_OPTIONS, FACTORY);
+            } // end of if statement
+            if(names.isEmpty() || names.contains("tlsLatency")){
+                loopbackLatency("tlsLatency", TLS_OPTIONS, FACTORY);
+            } // end of if statement
+        } // end of if statement
+
+        RESULTS.flush();
+        System.exit(0);
+    } // end of main() method
+
+    // ----------------
+    //    BENCHMARKS
+    // ----------------
+
+    /** Method to benchmark a broadcast to a room of in-memory receivers.
+     * Each operation is timed from the call to
+     * {@link Server#broadcastMessage(String, Server.MultipleServer)
+     * broadcastMessage} until every receiver's copy has been written to its
+     * {@link NullChannel NullChannel}, so it covers the room shard and the
+     * writer tasks.
+     * @param RECEIVERS - the number of receivers in the room.
+     * @throws InterruptedException if interrupted while waiting. */
+    private static void fanOut(final int RECEIVERS) throws InterruptedException {
+        final AtomicLong WRITTEN = new AtomicLong();
+        final String ROOM = "bench-fan-out-" + RECEIVERS;
+        final Server SERVER = new Server();
+
+        final String SENDER_NAME = "bench-sender-" + RECEIVERS;
+        Server.MultipleServer sender = SERVER.new MultipleServer(new NullChannel(WRITTEN));
+        sender.claimUsrName(SENDER_NAME);
+        sender.enterRoom(ROOM);
+
+        List<Server.MultipleServer> receivers = new ArrayList<Server.MultipleServer>();
+        // --- for loop to fill the room with receivers
+        for(int i = 0; i < RECEIVERS; i++){
+            Server.MultipleServer receiver = SERVER.new MultipleServer(new NullChannel(WRITTEN));
+            receiver.enterRoom(ROOM);
+            receivers.add(receiver);
+        } // end of for loop
+
+        final long BYTES_PER_OP = (long) RECEIVERS * new BroadcastPayload(
+                SENDER_NAME, FAN_OUT_MSG).forText().remaining();
+        final int OPS = Math.max(50, 100_000 / RECEIVERS);
+
+        // --- for loop to warm up, then measure
+        long[] samples = null;
+        for(int round = 0; round < 2; round++){
+            samples = new long[OPS];
+            for(int i = 0; i < OPS; i++){
+                final long TARGET = WRITTEN.get() + BYTES_PER_OP;
+                final long START = System.nanoTime();
+                Server.broadcastMessage(FAN_OUT_MSG, sender);
+                while(WRITTEN.get() < TARGET){
+                    Thread.onSpinWait();
+                } // end of while loop
+                samples[i] = System.nanoTime() - START;
+            } // end of for loop
+        } // end of for loop
+
+        report("fanOut", "\"receivers\":" + RECEIVERS, samples, sum(samples));
+
+        Server.awaitRoomShards();
+        sender.logOut();
+        // --- for loop to remove the receivers from the room
+        for(Server.MultipleServer receiver : receivers){
+            receiver.logOut();
+        } // end of for loop
+    } // end of fanOut() method
+
+    /** Method to benchmark the parsing and answering of commands. Each
+     * operation is one command from {@link #COMMANDS COMMANDS}, including
+     * queueing the reply for the session's writer task. Operations are
+     * timed in batches of {@link #BATCH BATCH}, and the bytes written
+     * for them are sunk into {@link #blackhole blackhole}. */
+    private static void commandDispatch(){
+        final int SAMPLES = 2_000;
+        final AtomicLong WRITTEN = new AtomicLong();
+        Server.MultipleServer session = new Server().new MultipleServer(new NullChannel(WRITTEN));
+        session.claimUsrName("bench-cmd");
+
+        // --- for loop to warm up, then measure
+        long[] samples = null;
+        int next = 0;
+        for(int round = 0; round < 2; round++){
+            samples = new long[SAMPLES];
+            for(int i = 0; i < SAMPLES; i++){
+                final long START = System.nanoTime();
+                for(int op = 0; op < BATCH; op++){
+                    session.parseClientCommand(COMMANDS[next]);
+                    next = next + 1 == COMMANDS.length ? 0 : next + 1;
+                } // end of for loop
+                samples[i] = System.nanoTime() - START;
+                blackhole += WRITTEN.get();
+            } // end of for loop
+        } // end of for loop
+
+        report("commandDispatch", "\"commands\":" + COMMANDS.length, samples, BATCH, sum(samples));
+        session.logOut();
+    } // end of commandDispatch() method
+
+    /** Method to benchmark username registration when several threads
+     * ask for names from the same small pool at once. Each operation is one
+     * call to {@link Server.MultipleServer#claimUsrName(String)
+     * claimUsrName}, and a claimed name is released straight away.
+     * @param THREADS - the number of threads claiming names.
+     * @throws InterruptedException if interrupted while waiting. */
+    private static void usrNameContention(final int THREADS) throws InterruptedException {
+        final int OPS_PER_THREAD = 500_000;
+        final String[] NAMES = new String[USR_NAME_POOL];
+        // --- for loop to build the shared pool of names
+        for(int i = 0; i < NAMES.length; i++){
+            NAMES[i] = "bench-usr-" + i;
+        } // end of for loop
+
+        final Server SERVER = new Server();
+        final CountDownLatch START = new CountDownLatch(1);
+        final CountDownLatch DONE = new CountDownLatch(THREADS);
+        final AtomicLong CLAIMED = new AtomicLong();
+
+        // --- for loop to start each claiming thread
+        for(int t = 0; t < THREADS; t++){
+            final Server.MultipleServer SESSION = SERVER.new MultipleServer(new NullChannel(new AtomicLong()));
+            Thread worker = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long claimed = 0;
+                try{
+                    START.await();
+                    for(int i = 0; i < OPS_PER_THREAD; i++){
+                        final String NAME = NAMES[random.nextInt(NAMES.length)];
+                        if(SESSION.claimUsrName(NAME)){
+                            claimed++;
+                            Server.clientRegistry.releaseUsrName(NAME, SESSION);
+                        } // end of if statement
+                    } // end of for loop
+                } catch (InterruptedException e){
+                    Thread.currentThread().interrupt();
+                } finally {
+                    CLAIMED.addAndGet(claimed);
+                    DONE.countDown();
+                } // end of InterruptedException catch
+            });
+            worker.start();
+        } // end of for loop
+
+        final long BEGIN = System.nanoTime();
+        START.countDown();
+        DONE.await();
+        final long ELAPSED = System.nanoTime() - BEGIN;
+
+        final long OPS = (long) THREADS * OPS_PER_THREAD;
+        RESULTS.println("{\"benchmark\":\"usrNameContention\",\"params\":{\"threads\":" + THREADS
+                + ",\"names\":" + USR_NAME_POOL + "},\"ops\":" + OPS
+                + ",\"opsPerSec\":" + round(OPS * 1e9 / ELAPSED)
+                + ",\"claimedRatio\":" + round((double) CLAIMED.get() / OPS) + "}");
+    } // end of usrNameContention() method
+
+    /** Method to benchmark the compression of chat broadcasts for
+     * binary protocol clients that asked for it. Each operation compresses
+     * one broadcast frame of a few to a hundred words. With one stream the
+     * cost is paid again for every receiver but each frame can refer back
+     * to the ones before; compressed on its own it is paid once for the
+     * whole room. The params give the compressed bytes as a fraction of the
+     * frames' bytes. Operations are timed in batches of
+     * {@link #BATCH BATCH}, and the compressed bytes are sunk into
+     * {@link #blackhole blackhole}.
+     * @param STREAM - true to compress with one stream, false to compress
+     * each frame on its own. */
+    private static void deflate(final boolean STREAM){
+        final int OPS = 20_000;
+        final BroadcastPayload[] MSGS = new BroadcastPayload[OPS];
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        // --- for loop to build chat lines from the word list
+        for(int i = 0; i < OPS; i++){
+            StringBuilder msg = new StringBuilder(512);
+            final int LENGTH = 3 + random.nextInt(100);
+            for(int w = 0; w < LENGTH; w++){
+                msg.append(w == 0 ? "" : " ").append(WORDS[random.nextInt(WORDS.length)]);
+            } // end of for loop
+            MSGS[i] = new BroadcastPayload("bench-usr-" + random.nextInt(USR_NAME_POOL), msg.toString());
+        } // end of for loop
+
+        final ByteBuffer[] FRAMES = new ByteBuffer[BATCH];
+        // --- for loop to warm up, then measure
+        long[] samples = null;
+        long in = 0;
+        long out = 0;
+        for(int round = 0; round < 2; round++){
+            FrameDeflater deflater = new FrameDeflater(STREAM, 0);
+            samples = new long[OPS / BATCH];
+            in = 0;
+            out = 0;
+            for(int i = 0; i < samples.length; i++){
+                // the frames are made before the clock starts
+                for(int op = 0; op < BATCH; op++){
+                    FRAMES[op] = MSGS[i * BATCH + op].forBinary();
+                    in += FRAMES[op].remaining();
+                } // end of for loop
+                final long START = System.nanoTime();
+                for(int op = 0; op < BATCH; op++){
+                    out += deflater.compress(FRAMES[op]).remaining();
+                } // end of for loop
+                samples[i] = System.nanoTime() - START;
+            } // end of for loop
+            deflater.end();
+        } // end of for loop
+        blackhole += out;
+
+        report("deflate", "\"mode\":\"" + (STREAM ? "stream" : "shared") + "\",\"ratio\":"
+                + round((double) out / in), samples, BATCH, sum(samples));
+    } // end of deflate() method
+
+    /** Method to benchmark end-to-end message latency over loopback. A
+     * real Server is started on a free port and two clients log in; one
+     * sends numbered chat messages and each is timed until the other reads
+     * the broadcast.
+     * @param NAME - the benchmark name to report.
+     * @param OPTIONS - Server options, such as <code>--io=nio</code>.
+     * @param TLS - the factory clients connect with, or null for
+     * cleartext.
+     * @throws Exception if the Server cannot be reached. */
+    private static void loopbackLatency(final String NAME, final String[] OPTIONS,
+                final SSLSocketFactory TLS) throws Exception {
+        final int PORT = startServer(OPTIONS);
+
+        BenchClient receiver = BenchClient.connect(PORT, "bench-receiver", TLS);
+        BenchClient sender = BenchClient.connect(PORT, "bench-sender", TLS);
+        sender.discardInput();
+
+        final int OPS = 5_000;
+        // --- for loop to warm up, then measure
+        long[] samples = null;
+        for(int round = 0; round < 2; round++){
+            samples = new long[OPS];
+            for(int i = 0; i < OPS; i++){
+                final String MSG = "ping " + round + "-" + i;
+                final long START = System.nanoTime();
+                sender.send(MSG);
+                receiver.awaitLineEndingWith(": " + MSG);
+                samples[i] = System.nanoTime() - START;
+            } // end of for loop
+        } // end of for loop
+
+        report(NAME, "\"options\":\"" + String.join(" ", OPTIONS) + "\"",
+                samples, sum(samples));
+
+        sender.send(";e");
+        receiver.send(";e");
+        sender.close();
+        receiver.close();
+    } // end of loopbackLatency() method
+
+    /** Method to benchmark TLS handshakes with a real Server. Each
+     * operation opens a connection, makes the handshake and reads the
+     * first byte of the greeting, which under TLS 1.3 is also when the
+     * client takes in its session ticket. The first result throws each
+     * session away so every handshake is a full one; the second lets each
+     * connection resume the last session, as a reconnecting client would.
+     * @param OPTIONS - Server options, including the TLS key store.
+     * @param FACTORY - the factory clients connect with.
+     * @throws Exception if the Server cannot be reached. */
+    private static void tlsHandshake(final String[] OPTIONS, final SSLSocketFactory FACTORY) throws Exception {
+        final int PORT = startServer(OPTIONS);
+        BenchClient.connect(PORT, "bench-tls-probe", FACTORY).close();
+
+        final int OPS = 500;
+        // --- for loop to time full handshakes, then resumed ones
+        for(boolean resume : new boolean[]{false, true}){
+            long[] samples = null;
+            for(int round = 0; round < 2; round++){
+                samples = new long[OPS];
+                for(int i = 0; i < OPS; i++){
+                    final long START = System.nanoTime();
+                    SSLSocket socket = TlsContexts.connect(FACTORY, "localhost", PORT);
+                    socket.getInputStream().read();
+                    samples[i] = System.nanoTime() - START;
+                    if(!resume){
+                        socket.getSession().invalidate();
+                    } // end of if statement
+                    socket.close();
+                } // end of for loop
+            } // end of for loop
+            report("tlsHandshake", "\"resumed\":" + resume, samples, sum(samples));
+        } // end of for loop
+    } // end of tlsHandshake() method
+
+    /** Method to measure the heap each session holds, for sizing a
+     * Server for many connections. A real Server is started and raw
+     * clients log in, each then moving from the lobby to one of a hundred
+     * rooms so that not every login is broadcast to every session. The
+     * heap is measured after garbage collection once every session is
+     * idle, and again once each has run a command and sent half of its
+     * next line, which the Server has to hold. The heap taken by the same
+     * number of bare connected socket pairs is measured first and taken
+     * away, leaving the cost of the sessions themselves. Memory outside
+     * the heap, such as thread stacks in blocking mode and socket buffers,
+     * is not counted.
+     * @param OPTIONS - Server options, such as <code>--io=nio</code>.
+     * @throws Exception if the Server cannot be reached. */
+    private static void footprint(final String[] OPTIONS) throws Exception {
+        final int SESSIONS = 2_000;
+        final List<SocketChannel> channels = new ArrayList<SocketChannel>();
+
+        // measure bare socket pairs, both ends of which are in this JVM
+        final long PAIR_BYTES;
+        try(ServerSocketChannel acceptor = ServerSocketChannel.open()){
+            acceptor.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            final long BEFORE = usedHeap();
+            for(int i = 0; i < SESSIONS; i++){
+                channels.add(SocketChannel.open(acceptor.getLocalAddress()));
+                channels.add(acceptor.accept());
+            } // end of for loop
+            PAIR_BYTES = usedHeap() - BEFORE;
+            closeAll(channels);
+        } // end of try-with-resources
+
+        final int PORT = startServer(OPTIONS);
+        BenchClient.connect(PORT, "bench-footprint-probe", null).close();
+        final InetSocketAddress ADDRESS = new InetSocketAddress(InetAddress.getLoopbackAddress(), PORT);
+        final long MESSAGES = Server.metrics.messagesIn.sum();
+
+        final long BEFORE = usedHeap();
+        // --- for loop to connect each client and log it in to a room
+        for(int i = 0; i < SESSIONS; i++){
+            SocketChannel channel = SocketChannel.open(ADDRESS);
+            channel.write(Server.CHARSET.encode("bench-fp-" + i + "\n;join bench-fp-" + (i % 100) + "\n"));
+            channels.add(channel);
+        } // end of for loop
+        // a join is only read once the username has been taken
+        awaitMessagesIn(MESSAGES + SESSIONS);
+        final long IDLE = usedHeap() - BEFORE;
+
+        // --- for loop to run a command and leave half a line unread
+        for(SocketChannel channel : channels){
+            channel.write(Server.CHARSET.encode(";ut\nthe quick brown fox jumps"));
+        } // end of for loop
+        awaitMessagesIn(MESSAGES + 2L * SESSIONS);
+        final long ACTIVE = usedHeap() - BEFORE;
+        closeAll(channels);
+
+        final long IDLE_PER = (IDLE - PAIR_BYTES) / SESSIONS;
+        RESULTS.println("{\"benchmark\":\"footprint\",\"params\":{\"options\":\"" + String.join(" ", OPTIONS)
+                + "\",\"sessions\":" + SESSIONS + "}"
+                + ",\"socketPairBytes\":" + PAIR_BYTES / SESSIONS
+                + ",\"idleBytesPerSession\":" + IDLE_PER
+                + ",\"activeBytesPerSession\":" + (ACTIVE - PAIR_BYTES) / SESSIONS
+                + ",\"idleHeapMbFor500k\":" + (IDLE_PER + PAIR_BYTES / SESSIONS / 2) * 500_000 / (1 << 20) + "}");
+    } // end of footprint() method
+
+    // ----------------
+    //     HELPERS
+    // ----------------
+
+    /** Method to get the heap in use once garbage has been collected.
+     * @return The bytes of heap in use.
+     * @throws InterruptedException if interrupted while waiting for the
+     * collector. */
+    private static long usedHeap() throws InterruptedException {
+        final Runtime RUNTIME = Runtime.getRuntime();
+        // --- for loop to collect a few times so the figure settles
+        for(int i = 0; i < 3; i++){
+            System.gc();
+            Thread.sleep(100);
+        } // end of for loop
+        return RUNTIME.totalMemory() - RUNTIME.freeMemory();
+    } // end of usedHeap() method
+
+    /** Method to wait until the Server has read a number of messages
+     * since it started.
+     * @param count - the total to wait for.
+     * @throws IOException if the Server does not get there within thirty
+     * seconds.
+     * @throws InterruptedException if interrupted while waiting. */
+    private static void awaitMessagesIn(long count) throws IOException, InterruptedException {
+        final long DEADLINE = System.currentTimeMillis() + 30_000;
+        // --- while loop to poll the Server's counter
+        while(Server.metrics.messagesIn.sum() < count){
+            if(System.currentTimeMillis() > DEADLINE){
+                throw new IOException("Server read " + Server.metrics.messagesIn.sum() + " of "
+                        + count + " messages");
+            } // end of if statement
+            Thread.sleep(10);
+        } // end of while loop
+        // leave time for the replies to be written
+        Thread.sleep(200);
+    } // end of awaitMessagesIn() method
+
+    /** Method to close and forget a list of channels.
+     * @param channels - the channels to close.
+     * @throws IOException if a channel cannot be closed. */
+    private static void closeAll(List<SocketChannel> channels) throws IOException {
+        for(SocketChannel channel : channels){
+            channel.close();
+        } // end of for loop
+        channels.clear();
+    } // end of closeAll() method
+
+    /** Method to print a result with its latency percentiles.
+     * @param NAME - the benchmark name.
+     * @param PARAMS - the JSON members describing the parameters.
+     * @param samples - the time of each operation in nanoseconds; sorted
+     * by this method.
+     * @param ELAPSED - the total time of all operations in nanoseconds. */
+    private static void report(final String NAME, final String PARAMS,
+                final long[] samples, final long ELAPSED){
+        report(NAME, PARAMS, samples, 1, ELAPSED);
+    } // end of report() method
+
+    /** Method to print a result timed in batches. The percentiles are of
+     * each batch's mean time per operation, so they hide the spread
+     * within a batch.
+     * @param NAME - the benchmark name.
+     * @param PARAMS - the JSON members describing the parameters.
+     * @param samples - the time of each batch in nanoseconds; sorted by
+     * this method.
+     * @param OPS_PER_SAMPLE - the number of operations in each batch.
+     * @param ELAPSED - the total time of all operations in nanoseconds. */
+    private static void report(final String NAME, final String PARAMS,
+                final long[] samples, final int OPS_PER_SAMPLE, final long ELAPSED){
+        Arrays.sort(samples);
+        final long OPS = (long) samples.length * OPS_PER_SAMPLE;
+        final double US_PER_OP = 1e3 * OPS_PER_SAMPLE;
+        RESULTS.println("{\"benchmark\":\"" + NAME + "\",\"params\":{" + PARAMS + "}"
+                + ",\"ops\":" + OPS
+                + ",\"opsPerSec\":" + round(OPS * 1e9 / ELAPSED)
+                + ",\"meanUs\":" + round(ELAPSED / 1e3 / OPS)
+                + ",\"p50Us\":" + round(percentile(samples, 0.50) / US_PER_OP)
+                + ",\"p99Us\":" + round(percentile(samples, 0.99) / US_PER_OP)
+                + ",\"maxUs\":" + round(samples[samples.length - 1] / US_PER_OP) + "}");
+    } // end of report() method
+
+    /** Method to get a percentile of sorted samples.
+     * @param sorted - the samples in ascending order.
+     * @param p - the percentile as a fraction, such as 0.99.
+     * @return The sample at that percentile. */
+    private static long percentile(long[] sorted, double p){
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    } // end of percentile() method
+
+    /** Method to add up samples.
+     * @param samples - the samples.
+     * @return Their total. */
+    private static long sum(long[] samples){
+        long total = 0;
+        for(long s : samples){
+            total += s;
+        } // end of for loop
+        return total;
+    } // end of sum() method
+
+    /** Method to round a number to three decimal places for printing.
+     * @param value - the number.
+     * @return The rounded number. */
+    private static double round(double value){
+        return Math.round(value * 1000) / 1000.0;
+    } // end of round() method
+
+    /** Method to start a real Server on a free port on a daemon thread.
+     * @param OPTIONS - Server options.
+     * @return The port the Server listens on.
+     * @throws IOException if no free port can be found. */
+    private static int startServer(final String[] OPTIONS) throws IOException {
+        final int PORT;
+        try(ServerSocket probe = new ServerSocket(0)){
+            PORT = probe.getLocalPort();
+        } // end of try-with-resources
+
+        Thread server = new Thread(() -> Server.main(withPort(String.valueOf(PORT), OPTIONS)), "bench-server");
+        server.setDaemon(true);
+        server.start();
+        return PORT;
+    } // end of startServer() method
+
+    /** Method to put a port number in front of Server options so they can
+     * be passed to {@link ServerConfig#parse(String[]) parse}.
+     * @param port - the port number.
+     * @param options - the Server options.
+     * @return The full argument list. */
+    private static String[] withPort(String port, String[] options){
+        String[] args = new String[options.length + 1];
+        args[0] = port;
+        System.arraycopy(options, 0, args, 1, options.length);
+        return args;
+    } // end of withPort() method
+
+    /** Class that stands in for a client's socket. It implements
+     * {@link GatheringByteChannel GatheringByteChannel}, takes every byte
+     * written to it and adds the count to a shared counter. */
+    private static class NullChannel implements GatheringByteChannel {
+
+        /** Counter of bytes written, shared between channels. */
+        private final AtomicLong WRITTEN;
+
+        /** Boolean set once the channel is closed. */
+        private volatile boolean open = true;
+
+        /** Constructor to create a NullChannel.
+         * @param written - the counter to add written bytes to. */
+        public NullChannel(AtomicLong written){
+            this.WRITTEN = written;
+        } // end of CONSTRUCTOR
+
+        public long write(ByteBuffer[] srcs, int offset, int length){
+            long total = 0;
+            // --- for loop to take every byte of each buffer
+            for(int i = offset; i < offset + length; i++){
+                total += srcs[i].remaining();
+                srcs[i].position(srcs[i].limit());
+            } // end of for loop
+            WRITTEN.addAndGet(total);
+            return total;
+        } // end of write() method
+
+        public long write(ByteBuffer[] srcs){
+            return write(srcs, 0, srcs.length);
+        } // end of write() method
+
+        public int write(ByteBuffer src){
+            return (int) write(new ByteBuffer[]{src}, 0, 1);
+        } // end of write() method
+
+        public boolean isOpen(){
+            return open;
+        } // end of isOpen() method
+
+        public void close(){
+            open = false;
+        } // end of close() method
+    } // end of NullChannel Class
+
+    /** Class that stores a plain text protocol client used by the
+     * loopback benchmark. */
+    private static class BenchClient {
+
+        /** {@link Socket Socket} connected to the Server. */
+        private final Socket SOCKET;
+
+        /** {@link BufferedReader BufferedReader} that reads from the Server. */
+        private final BufferedReader READER;
+
+        /** {@link PrintWriter PrintWriter} that writes to the Server. */
+        private final PrintWriter WRITER;
+
+        /** Constructor to create a BenchClient over a connected socket.
+         * @param socket - the connected socket.
+         * @throws IOException if the socket streams cannot be opened. */
+        private BenchClient(Socket socket) throws IOException {
+            this.SOCKET = socket;
+            this.SOCKET.setTcpNoDelay(true);
+            this.READER = new BufferedReader(new InputStreamReader(
+                    socket.getInputStream(), Server.CHARSET));
+            this.WRITER = new PrintWriter(new OutputStreamWriter(
+                    socket.getOutputStream(), Server.CHARSET), true);
+        } // end of CONSTRUCTOR
+
+        /** Method to connect to a Server that may still be starting, and
+         * log in.
+         * @param port - the port the Server listens on.
+         * @param usrName - the username to log in with.
+         * @param tls - the factory to connect with, or null for cleartext.
+         * @return The logged in client.
+         * @throws IOException if the Server cannot be reached within five
+         * seconds. */
+        static BenchClient connect(int port, String usrName, SSLSocketFactory tls) throws IOException {
+            final long DEADLINE = System.currentTimeMillis() + 5000;
+            Socket socket;
+            // --- while loop to retry until the Server is listening
+            while(true){
+                try{
+                    socket = tls != null ? TlsContexts.connect(tls, "localhost", port)
+                            : new Socket(InetAddress.getLoopbackAddress(), port);
+                    break;
+                } catch (IOException e){
+                    if(System.currentTimeMillis() > DEADLINE){
+                        throw e;
+                    } // end of if statement
+                    try{
+                        Thread.sleep(20);
+                    } catch (InterruptedException ie){
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    } // end of InterruptedException catch
+                } // end of IOException catch
+            } // end of while loop
+
+            BenchClient client = new BenchClient(socket);
+            client.awaitLineEndingWith("username:- ");
+            client.send(usrName);
+            client.awaitLineEndingWith("--- Entered Chatroom ---");
+            return client;
+        } // end of connect() method
+
+        /** Method to send a line to the Server.
+         * @param line - the line to send. */
+        void send(String line){
+            WRITER.println(line);
+        } // end of send() method
+
+        /** Method to read lines until one ends with the given text.
+         * @param suffix - the text to wait for.
+         * @throws IOException if the Server closes the connection first. */
+        void awaitLineEndingWith(String suffix) throws IOException {
+            String line;
+            while((line = READER.readLine()) != null){
+                if(line.endsWith(suffix)){
+                    return;
+                } // end of if statement
+            } // end of while loop
+            throw new EOFException("Server closed the connection");
+        } // end of awaitLineEndingWith() method
+
+        /** Method to read and throw away everything the Server sends on a
+         * daemon thread, so replies cannot fill the socket. */
+        void discardInput(){
+            Thread drainer = new Thread(() -> {
+                try{
+                    while(READER.readLine() != null){
+                        // discarded
+                    } // end of while loop
+                } catch (IOException e){
+                    // connection closed
+                } // end of IOException catch
+            }, "bench-drainer");
+            drainer.setDaemon(true);
+            drainer.start();
+        } // end of discardInput() method
+
+        /** Method to close the connection.
+         * @throws IOException if the socket cannot be closed. */
+        void close() throws IOException {
+            SOCKET.close();
+        } // end of close() method
+    } // end of BenchClient Class
+} // end of ServerBench Class
@@ -0,0 +1,385 @@
+// ----- IMPORT STATEMENTS -----
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Class that stores the startup options of the {@link Server Server}.
+ * The first command line argument is the port number, and any further
+ * arguments are options in the form <code>--name=value</code>. */
+class ServerConfig {
+
+    /** Enum of the ways the {@link Server Server} can handle connections. */
+    enum IoMode {
+        /** One thread per connection, blocking in
+         * {@link java.io.BufferedReader#readLine() readLine}. */
+        BLOCKING,
+        /** A fixed set of reactor threads using non-blocking channels. */
+        NIO
+    } // end of IoMode enum
+
+    /** Enum of the relays that can link cluster nodes. */
+    enum ClusterMode {
+        /** The Server runs alone. */
+        OFF,
+        /** A {@link TcpMeshRelay TcpMeshRelay} between nodes. */
+        TCP,
+        /** A {@link LocalRelay LocalRelay} to nodes in the same JVM. */
+        LOCAL
+    } // end of ClusterMode enum
+
+    /** Enum of the executors that blocking sessions can be run on. */
+    enum SessionExecutor {
+        /** A new platform thread for each connection. */
+        PLATFORM,
+        /** A new virtual thread for each connection (Java 21 and later). */
+        VIRTUAL,
+        /** A fixed pool of platform threads. */
+        POOL
+    } // end of SessionExecutor enum
+
+    /** Enum of what is done with a message that is over a rate limit. */
+    enum RateAction {
+        /** The sender is held back until the message is within the limit. */
+        DELAY,
+        /** The message is thrown away and the sender told. */
+        DROP,
+        /** The sender is disconnected. */
+        DISCONNECT
+    } // end of RateAction enum
+
+    // ----- FIELDS ----- //
+    /** Int field to store the port number the Server listens on. */
+    int portNum;
+
+    /** {@link IoMode IoMode} chosen with <code>--io=blocking|nio</code>. */
+    IoMode ioMode = IoMode.BLOCKING;
+
+    /** Int field to store the number of reactor threads used in
+     * {@link IoMode#NIO NIO} mode, set with <code>--reactors=N</code>. */
+    int reactorThreads = Runtime.getRuntime().availableProcessors();
+
+    /** {@link SessionExecutor SessionExecutor} chosen with
+     * <code>--executor=platform|virtual|pool</code>. */
+    SessionExecutor sessionExecutor = SessionExecutor.PLATFORM;
+
+    /** Int field to store the thread count of the
+     * {@link SessionExecutor#POOL POOL} executor, set with
+     * <code>--pool-size=N</code>. */
+    int poolSize = 256;
+
+    /** Int field to store the maximum number of messages queued for each
+     * client, set with <code>--outbound-capacity=N</code>. */
+    int outboundCapacity = 1024;
+
+    /** {@link OutboundQueue.OverflowPolicy OverflowPolicy} used when a
+     * client's queue is full, set with
+     * <code>--overflow=drop_oldest|disconnect|backpressure</code>. */
+    OutboundQueue.OverflowPolicy overflowPolicy = OutboundQueue.OverflowPolicy.DROP_OLDEST;
+
+    /** Long field to store how long a sender waits for room under the
+     * backpressure policy, set with <code>--backpressure-timeout=MS</code>. */
+    long backpressureTimeoutMs = 1000;
+
+    /** Boolean field set with <code>--coalesce</code> so that replies to a
+     * client are gathered and flushed once per tick instead of per line. */
+    boolean coalesceWrites = false;
+
+    /** Int field to store how many bytes of coalesced output are held
+     * before they are queued early, set with <code>--flush-bytes=N</code>. */
+    int flushThresholdBytes = 8192;
+
+    /** Long field to store how long a blocking session's writer waits for
+     * more output before writing when coalescing, set with
+     * <code>--flush-linger=MS</code>. */
+    long flushLingerMs = 0;
+
+    /** Int field to store the number of threads that room broadcasts are
+     * sharded across, set with <code>--room-shards=N</code>. */
+    int roomShards = Runtime.getRuntime().availableProcessors();
+
+    /** {@link ServerLog.Level Level} of the most detailed log messages
+     * written, set with <code>--log-level=error|warn|info|debug</code>. */
+    ServerLog.Level logLevel = ServerLog.Level.INFO;
+
+    /** Int field to store the loopback port of the HTTP metrics endpoint,
+     * set with <code>--metrics-port=N</code>. The endpoint is off when 0. */
+    int metricsPort = 0;
+
+    /** Long field to store how many seconds a client may send nothing
+     * before it is disconnected, set with <code>--idle-timeout=S</code>.
+     * Idle clients are kept when 0, unless a heartbeat is set. */
+    long idleTimeoutSec = 0;
+
+    /** Long field to store how many seconds a client may send nothing
+     * before it is pinged, set with <code>--heartbeat=S</code>. Clients
+     * are not pinged when 0. */
+    long heartbeatSec = 0;
+
+    /** Int field to store how many recent messages each room keeps, set
+     * with <code>--history=N</code>. Rooms keep no history when 0. */
+    int historySize = 100;
+
+    /** Int field to store how many recent messages are replayed to a
+     * client when it joins a room, set with <code>--history-on-join=N</code>. */
+    int historyOnJoin = 10;
+
+    /** {@link String String} field to store the directory of the
+     * {@link MessageJournal MessageJournal}, set with
+     * <code>--journal=DIR</code>. Messages are not journalled when null. */
+    String journalDir = null;
+
+    /** Int field to store the size of new journal segment files in bytes,
+     * set in megabytes with <code>--journal-segment-mb=N</code>. */
+    int journalSegmentBytes = 64 << 20;
+
+    /** Long field to store the longest time between journal syncs to
+     * disk, set with <code>--journal-sync=MS</code>. */
+    long journalSyncMs = 1000;
+
+    /** Long field to store the most bytes of journal segment files kept,
+     * set in megabytes with <code>--journal-retain-mb=N</code>. The oldest
+     * segments are deleted once over it. When 0 every segment is kept and
+     * the journal grows without limit. */
+    long journalRetainBytes = 0;
+
+    /** {@link ClusterMode ClusterMode} chosen with
+     * <code>--cluster=off|tcp|local</code>. */
+    ClusterMode clusterMode = ClusterMode.OFF;
+
+    /** Int field to store the port cluster nodes link on, set with
+     * <code>--cluster-port=N</code>. */
+    int clusterPort = 0;
+
+    /** {@link List List} of the cluster nodes to dial, set with
+     * <code>--cluster-peers=host:port,host:port</code>. */
+    List<InetSocketAddress> clusterPeers = new ArrayList<InetSocketAddress>();
+
+    /** {@link String String} field to store the hub name used by the
+     * {@link ClusterMode#LOCAL LOCAL} relay, set with
+     * <code>--cluster-hub=NAME</code>. */
+    String clusterHub = "default";
+
+    /** Double field to store how many messages a second each client may
+     * send, set with <code>--rate-msgs=N</code>. There is no limit when 0. */
+    double rateMsgs = 0;
+
+    /** Double field to store how many bytes a second each client may send,
+     * set with <code>--rate-bytes=N</code>. There is no limit when 0. */
+    double rateBytes = 0;
+
+    /** Double field to store how many messages a second all clients
+     * together may send, set with <code>--global-rate-msgs=N</code>. There
+     * is no limit when 0. */
+    double globalRateMsgs = 0;
+
+    /** Double field to store how many bytes a second all clients together
+     * may send, set with <code>--global-rate-bytes=N</code>. There is no
+     * limit when 0. */
+    double globalRateBytes = 0;
+
+    /** Double field to store how many seconds of a rate can be sent in one
+     * burst, set with <code>--rate-burst=S</code>. */
+    double rateBurstSec = 1;
+
+    /** {@link RateAction RateAction} taken on a message over a rate limit,
+     * set with <code>--rate-action=delay|drop|disconnect</code>. */
+    RateAction rateAction = RateAction.DROP;
+
+    /** Int field to store how many connections may wait to be accepted,
+     * set with <code>--backlog=N</code>. A large backlog lets a restarted
+     * Server take a storm of reconnects without refusing any. */
+    int acceptBacklog = 4096;
+
+    /** Long field to store how many seconds a shutdown waits for clients
+     * to be logged out and their output written, set with
+     * <code>--drain-timeout=S</code>. */
+    long drainTimeoutSec = 10;
+
+    /** {@link String String} field to store the PKCS12 key store holding
+     * the Server's TLS key and certificate, set with
+     * <code>--tls-keystore=FILE</code>. A missing file is created with a
+     * self-signed test certificate. Connections are not encrypted when
+     * null. */
+    String tlsKeyStore = null;
+
+    /** {@link String String} field to store the password of the TLS key
+     * store, set with <code>--tls-password=PASS</code>. */
+    String tlsPassword = "changeit";
+
+    /** Int field to store how many TLS sessions are kept for resumption,
+     * set with <code>--tls-session-cache=N</code>. */
+    int tlsSessionCache = 20000;
+
+    /** Int field to store how many seconds a TLS session may be resumed
+     * for, set with <code>--tls-session-timeout=S</code>. */
+    int tlsSessionTimeoutSec = 86400;
+
+    /** Boolean field that is true if binary protocol clients may ask for
+     * compressed frames, set with <code>--deflate</code>. A client with one
+     * deflate stream is disconnected, not sent fewer frames, when its
+     * outbound queue overflows. */
+    boolean deflate = false;
+
+    /** Int field to store the smallest frame that is compressed, set
+     * with <code>--deflate-min=BYTES</code>. Smaller frames, such as most
+     * chat lines, gain too little to be worth compressing. */
+    int deflateMinBytes = 256;
+
+    /** Method to build a ServerConfig from the command line arguments.
+     * @param args - command line arguments passed to the Server.
+     * @return The parsed config.
+     * @throws IllegalArgumentException if an option is not recognised. */
+    static ServerConfig parse(String[] args){
+        ServerConfig config = new ServerConfig();
+        config.portNum = Integer.parseInt(args[0]);
+
+        // --- for loop to read each option after the port number
+        for(int i = 1; i < args.length; i++){
+            String arg = args[i];
+            int eq = arg.indexOf('=');
+            String name = eq < 0 ? arg : arg.substring(0, eq);
+            String value = eq < 0 ? "" : arg.substring(eq + 1);
+
+            switch(name){
+                case "--io":
+                    config.ioMode = IoMode.valueOf(value.toUpperCase());
+                    break;
+                case "--reactors":
+                    config.reactorThreads = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "--executor":
+                    config.sessionExecutor = SessionExecutor.valueOf(value.toUpperCase());
+                    break;
+                case "--pool-size":
+                    config.poolSize = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "--outbound-capacity":
+                    config.outboundCapacity = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "--overflow":
+                    config.overflowPolicy = OutboundQueue.OverflowPolicy.valueOf(value.toUpperCase());
+                    break;
+                case "--backpressure-timeout":
+                    config.backpressureTimeoutMs = Long.parseLong(value);
+                    break;
+                case "--coalesce":
+                    config.coalesceWrites = value.isEmpty() || Boolean.parseBoolean(value);
+                    break;
+                case "--flush-bytes":
+                    config.flushThresholdBytes = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "--flush-linger":
+                    config.flushLingerMs = Long.parseLong(value);
+                    break;
+                case "--room-shards":
+                    config.roomShards = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "--log-level":
+                    config.logLevel = ServerLog.Level.valueOf(value.toUpperCase());
+                    break;
+                case "--metrics-port":
+                    config.metricsPort = Integer.parseInt(value);
+                    break;
+                case "--idle-timeout":
+                    config.idleTimeoutSec = Math.max(0, Long.parseLong(value));
+                    break;
+                case "--heartbeat":
+                    config.heartbeatSec = Math.max(0, Long.parseLong(value));
+                    break;
+                case "--history":
+                    config.historySize = Math.max(0, Integer.parseInt(value));
+                    break;
+                case "--history-on-join":
+                    config.historyOnJoin = Math.max(0, Integer.parseInt(value));
+                    break;
+                case "--journal":
+                    config.journalDir = value;
+                    break;
+                case "--journal-segment-mb":
+                    config.journalSegmentBytes = Math.min(1024, Math.max(1, Integer.parseInt(value))) << 20;
+                    break;
+                case "--journal-sync":
+                    config.journalSyncMs = Math.max(1, Long.parseLong(value));
+                    break;
+                case "--journal-retain-mb":
+                    config.journalRetainBytes = Math.max(0, Long.parseLong(value)) << 20;
+                    break;
+                case "--cluster":
+                    config.clusterMode = ClusterMode.valueOf(value.toUpperCase());
+                    break;
+                case "--cluster-port":
+                    config.clusterPort = Integer.parseInt(value);
+                    break;
+                case "--cluster-peers":
+                    // --- for loop to read each host:port pair
+                    for(String peer : value.split(",")){
+                        final int COLON = peer.lastIndexOf(':');
+                        if(COLON < 0){
+                            throw new IllegalArgumentException("cluster peer needs host:port: " + peer);
+                        } // end of if statement
+                        config.clusterPeers.add(new InetSocketAddress(peer.substring(0, COLON),
+                                Integer.parseInt(peer.substring(COLON + 1))));
+                    } // end of for loop
+                    break;
+                case "--cluster-hub":
+                    config.clusterHub = value;
+                    break;
+                case "--rate-msgs":
+                    config.rateMsgs = Math.max(0, Double.parseDouble(value));
+                    break;
+                case "--rate-bytes":
+                    config.rateBytes = Math.max(0, Double.parseDouble(value));
+                    break;
+                case "--global-rate-msgs":
+                    config.globalRateMsgs = Math.max(0, Double.parseDouble(value));
+                    break;
+                case "--global-rate-bytes":
+                    config.globalRateBytes = Math.max(0, Double.parseDouble(value));
+                    break;
+                case "--rate-burst":
+                    config.rateBurstSec = Math.max(0, Double.parseDouble(value));
+                    break;
+                case "--rate-action":
+                    config.rateAction = RateAction.valueOf(value.toUpperCase());
+                    break;
+                case "--backlog":
+                    config.acceptBacklog = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "--drain-timeout":
+                    config.drainTimeoutSec = Math.max(0, Long.parseLong(value));
+                    break;
+                case "--tls-keystore":
+                    config.tlsKeyStore = value;
+                    break;
+                case "--tls-password":
+                    config.tlsPassword = value;
+                    break;
+                case "--tls-session-cache":
+                    config.tlsSessionCache = Math.max(0, Integer.parseInt(value));
+                    break;
+                case "--tls-session-timeout":
+                    config.tlsSessionTimeoutSec = Math.max(0, Integer.parseInt(value));
+                    break;
+                case "--deflate":
+                    config.deflate = value.isEmpty() || Boolean.parseBoolean(value);
+                    break;
+                case "--deflate-min":
+                    config.deflateMinBytes = Math.max(0, Integer.parseInt(value));
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown option: " + arg);
+            } // end of switch statement
+        } // end of for loop
+
+        // a heartbeat with no idle timeout gives up after three missed pings
+        if(config.heartbeatSec > 0 && config.idleTimeoutSec == 0){
+            config.idleTimeoutSec = 3 * config.heartbeatSec;
+        } // end of if statement
+
+        if(config.clusterMode == ClusterMode.TCP && config.clusterPort <= 0){
+            throw new IllegalArgumentException("--cluster=tcp needs --cluster-port");
+        } // end of if statement
+
+        return config;
+    } // end of parse() method
+} // end of ServerConfig Class
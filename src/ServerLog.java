@@ -0,0 +1,212 @@
+// ----- IMPORT STATEMENTS -----
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Class that writes the {@link Server Server's} log on its own thread so
+ * that session threads never wait on the console. Messages below the
+ * chosen {@link Level Level} are skipped before anything is built or
+ * queued. If the writer falls behind, new messages are dropped and
+ * counted rather than holding up the caller. Errors and warnings go to
+ * standard error and the rest to standard output. */
+final class ServerLog {
+
+    /** Enum of the log levels, from most to least severe. */
+    enum Level {
+        /** Failures that stop part of the Server working. */
+        ERROR,
+        /** Problems the Server recovered from, such as slow consumers. */
+        WARN,
+        /** Connects, logins and logouts. */
+        INFO,
+        /** Per-message detail, such as every line read. */
+        DEBUG
+    } // end of Level enum
+
+    // ----- FIELDS ----- //
+    /** Int constant that stores the most messages waiting to be written. */
+    private static final int CAPACITY = 8192;
+
+    /** {@link DateTimeFormatter DateTimeFormatter} for the time at the
+     * start of each line. */
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("HH:mm:ss.SSS");
+
+    /** Queue of messages waiting to be written. */
+    private static final BlockingQueue<Entry> pending = new ArrayBlockingQueue<Entry>(CAPACITY);
+
+    /** Counter of messages dropped because the queue was full. */
+    private static final LongAdder dropped = new LongAdder();
+
+    /** The most detailed {@link Level Level} that is written. */
+    private static volatile Level level = Level.INFO;
+
+    /** Number of {@link #flush(long) flush} markers the writer thread has
+     * reached. */
+    private static volatile long flushes = 0;
+
+    /** Number of {@link #flush(long) flush} markers queued, guarded by the
+     * class lock. */
+    private static long markers = 0;
+
+    static {
+        Thread writer = new Thread(ServerLog::writeLoop, "server-log");
+        writer.setDaemon(true);
+        writer.start();
+    } // end of static block
+
+    /** Private Constructor as the class only has static members. */
+    private ServerLog(){
+
+    } // end of CONSTRUCTOR
+
+    /** Method to set the most detailed {@link Level Level} written.
+     * @param newLevel - the new level. */
+    static void setLevel(Level newLevel){
+        level = newLevel;
+    } // end of setLevel() method
+
+    /** Method to check if a {@link Level Level} is written, so callers can
+     * skip building a message that would be thrown away.
+     * @param check - the level to check.
+     * @return True if messages at that level are written. */
+    static boolean isEnabled(Level check){
+        return check.ordinal() <= level.ordinal();
+    } // end of isEnabled() method
+
+    /** Method to log a message at {@link Level#ERROR ERROR}.
+     * @param msg - the message. */
+    static void error(String msg){
+        log(Level.ERROR, msg);
+    } // end of error() method
+
+    /** Method to log a message at {@link Level#ERROR ERROR} followed by
+     * the stack trace of the exception that caused it.
+     * @param msg - the message.
+     * @param cause - the exception. */
+    static void error(String msg, Throwable cause){
+        if(isEnabled(Level.ERROR)){
+            StringWriter trace = new StringWriter();
+            cause.printStackTrace(new PrintWriter(trace));
+            log(Level.ERROR, msg + System.lineSeparator() + trace.toString().stripTrailing());
+        } // end of if statement
+    } // end of error() method
+
+    /** Method to log a message at {@link Level#WARN WARN}.
+     * @param msg - the message. */
+    static void warn(String msg){
+        log(Level.WARN, msg);
+    } // end of warn() method
+
+    /** Method to log a message at {@link Level#INFO INFO}.
+     * @param msg - the message. */
+    static void info(String msg){
+        log(Level.INFO, msg);
+    } // end of info() method
+
+    /** Method to log a message at {@link Level#DEBUG DEBUG}.
+     * @param msg - the message. */
+    static void debug(String msg){
+        log(Level.DEBUG, msg);
+    } // end of debug() method
+
+    /** Method to queue a message for the writer thread if its level is
+     * enabled. The caller never waits; a full queue drops the message.
+     * @param msgLevel - the level of the message.
+     * @param msg - the message. */
+    static void log(Level msgLevel, String msg){
+        if(isEnabled(msgLevel) && !pending.offer(new Entry(msgLevel, msg))){
+            dropped.increment();
+        } // end of if statement
+    } // end of log() method
+
+    /** Method to wait until every message queued so far has been
+     * written, such as before the JVM exits. A marker is queued behind
+     * them and the writer thread counts it when it gets there.
+     * @param timeoutMs - the longest time to wait in milliseconds. */
+    static void flush(long timeoutMs){
+        final long DEADLINE = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        final long TARGET;
+        synchronized(ServerLog.class){
+            try{
+                if(!pending.offer(new Entry(null, null), timeoutMs, TimeUnit.MILLISECONDS)){
+                    return;
+                } // end of if statement
+                TARGET = ++markers;
+            } catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+                return;
+            } // end of InterruptedException catch
+        } // end of synchronized block
+
+        // --- while loop to wait for the writer to reach the marker
+        while(flushes < TARGET && System.nanoTime() < DEADLINE){
+            try{
+                Thread.sleep(5);
+            } catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+                return;
+            } // end of InterruptedException catch
+        } // end of while loop
+    } // end of flush() method
+
+    /** Method to get the number of messages dropped because the writer
+     * fell behind.
+     * @return The number dropped. */
+    static long getDropped(){
+        return dropped.sum();
+    } // end of getDropped() method
+
+    /** Method run by the writer thread to write each queued message. The
+     * console stream is looked up for each message so that a program
+     * embedding the Server can redirect it. */
+    private static void writeLoop(){
+        // --- while loop to write messages as they arrive
+        while(true){
+            Entry entry;
+            try{
+                entry = pending.take();
+            } catch (InterruptedException e){
+                return;
+            } // end of InterruptedException catch
+
+            if(entry.LEVEL == null){
+                flushes++;
+                continue;
+            } // end of if statement
+
+            final String LINE = TIME.format(entry.TIME) + " " + entry.LEVEL + " " + entry.MSG;
+            if(entry.LEVEL.ordinal() <= Level.WARN.ordinal()){
+                System.err.println(LINE);
+            }else{
+                System.out.println(LINE);
+            } // end of if statement
+        } // end of while loop
+    } // end of writeLoop() method
+
+    /** Class that stores one message waiting to be written. */
+    private static final class Entry {
+
+        /** The level of the message. */
+        private final Level LEVEL;
+
+        /** The time the message was logged. */
+        private final LocalTime TIME;
+
+        /** The message. */
+        private final String MSG;
+
+        /** Constructor to create an Entry stamped with the current time.
+         * @param level - the level of the message.
+         * @param msg - the message. */
+        Entry(Level level, String msg){
+            this.LEVEL = level;
+            this.TIME = LocalTime.now();
+            this.MSG = msg;
+        } // end of CONSTRUCTOR
+    } // end of Entry Class
+} // end of ServerLog Class
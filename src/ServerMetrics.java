@@ -0,0 +1,152 @@
+// ----- IMPORT STATEMENTS -----
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/** Class that stores the live counters and latency histograms of the
+ * {@link Server Server}. Counters are {@link LongAdder LongAdders}, so
+ * session threads on many cores can update them without contending; they
+ * are only added up when the metrics are read. Values that are cheaper to
+ * read on demand, such as queue depths, are registered as gauges.
+ * <p>{@link #render() render} gives every metric as one
+ * <code>name value</code> line, which is what the <code>;stats</code>
+ * command and the <code>/metrics</code> endpoint show.</p> */
+class ServerMetrics {
+
+    // ----- FIELDS ----- //
+    /** Counter of connections accepted. */
+    final LongAdder connects = new LongAdder();
+
+    /** Counter of sessions removed after their connection ended. */
+    final LongAdder disconnects = new LongAdder();
+
+    /** Counter of clients disconnected as slow consumers. */
+    final LongAdder slowConsumers = new LongAdder();
+
+    /** Counter of clients disconnected for sending nothing for longer
+     * than the idle timeout. */
+    final LongAdder idleReaped = new LongAdder();
+
+    /** Counter of heartbeat pings sent to quiet clients. */
+    final LongAdder pingsSent = new LongAdder();
+
+    /** Counter of lines or frames read from clients after they entered
+     * the chatroom. */
+    final LongAdder messagesIn = new LongAdder();
+
+    /** Counter of messages queued to clients. */
+    final LongAdder messagesOut = new LongAdder();
+
+    /** Counter of bytes read from clients. */
+    final LongAdder bytesIn = new LongAdder();
+
+    /** Counter of bytes written to clients. */
+    final LongAdder bytesOut = new LongAdder();
+
+    /** Counter of write calls made on client channels. */
+    final LongAdder socketWrites = new LongAdder();
+
+    /** Counter of private messages delivered. */
+    final LongAdder directMessages = new LongAdder();
+
+    /** Counter of messages sent to other cluster nodes. */
+    final LongAdder clusterOut = new LongAdder();
+
+    /** Counter of messages received from other cluster nodes. */
+    final LongAdder clusterIn = new LongAdder();
+
+    /** Counter of copies of cluster messages dropped as already seen. */
+    final LongAdder clusterDuplicates = new LongAdder();
+
+    /** Counter of history messages replayed to clients. */
+    final LongAdder historyReplayed = new LongAdder();
+
+    /** Counter of client messages that were over a rate limit. */
+    final LongAdder rateLimited = new LongAdder();
+
+    /** Counter of chat broadcasts fanned out. */
+    final LongAdder broadcasts = new LongAdder();
+
+    /** Counter of broadcast forms encoded, one per protocol in use by the
+     * receivers of each broadcast. */
+    final LongAdder broadcastEncodes = new LongAdder();
+
+    /** Counter of encodes saved by sharing one encoded broadcast between
+     * every receiver instead of encoding it for each one. */
+    final LongAdder encodesAvoided = new LongAdder();
+
+    /** Counter of frame bytes given to compression for clients that
+     * asked for it. */
+    final LongAdder deflateIn = new LongAdder();
+
+    /** Counter of compressed bytes those frames became. */
+    final LongAdder deflateOut = new LongAdder();
+
+    /** {@link LatencyHistogram LatencyHistogram} of the time a room shard
+     * takes to queue a broadcast for every member. */
+    final LatencyHistogram fanOutTime = new LatencyHistogram();
+
+    /** Map of each gauge name to the function that reads it, in the order
+     * they were registered. It is never changed once set; registering a
+     * gauge sets a new copy, so rendering can read it without a lock. */
+    private volatile Map<String, LongSupplier> gauges = new LinkedHashMap<String, LongSupplier>();
+
+    /** Method to register a value that is read each time the metrics are
+     * rendered. A gauge may be registered while the metrics are being
+     * read; it appears from the next time they are rendered.
+     * @param name - the metric name.
+     * @param value - the function that reads the value. */
+    synchronized void gauge(String name, LongSupplier value){
+        Map<String, LongSupplier> copy = new LinkedHashMap<String, LongSupplier>(gauges);
+        copy.put(name, value);
+        gauges = copy;
+    } // end of gauge() method
+
+    /** Method to get every metric as <code>name value</code> lines.
+     * @return The metrics, one per line. */
+    String render(){
+        StringBuilder out = new StringBuilder(1024);
+        line(out, "connects_total", connects.sum());
+        line(out, "disconnects_total", disconnects.sum());
+        line(out, "slow_consumer_disconnects_total", slowConsumers.sum());
+        line(out, "idle_disconnects_total", idleReaped.sum());
+        line(out, "pings_sent_total", pingsSent.sum());
+        line(out, "messages_in_total", messagesIn.sum());
+        line(out, "messages_out_total", messagesOut.sum());
+        line(out, "bytes_in_total", bytesIn.sum());
+        line(out, "bytes_out_total", bytesOut.sum());
+        line(out, "socket_writes_total", socketWrites.sum());
+        line(out, "direct_messages_total", directMessages.sum());
+        line(out, "cluster_out_total", clusterOut.sum());
+        line(out, "cluster_in_total", clusterIn.sum());
+        line(out, "cluster_duplicates_total", clusterDuplicates.sum());
+        line(out, "history_replayed_total", historyReplayed.sum());
+        line(out, "rate_limited_total", rateLimited.sum());
+        line(out, "broadcasts_total", broadcasts.sum());
+        line(out, "broadcast_encodes_total", broadcastEncodes.sum());
+        line(out, "broadcast_encodes_avoided_total", encodesAvoided.sum());
+        line(out, "deflate_in_bytes_total", deflateIn.sum());
+        line(out, "deflate_out_bytes_total", deflateOut.sum());
+
+        // --- for loop to read each gauge
+        for(Map.Entry<String, LongSupplier> gauge : gauges.entrySet()){
+            line(out, gauge.getKey(), gauge.getValue().getAsLong());
+        } // end of for loop
+
+        line(out, "fanout_micros_count", fanOutTime.getCount());
+        line(out, "fanout_micros_p50", fanOutTime.getPercentile(0.50));
+        line(out, "fanout_micros_p99", fanOutTime.getPercentile(0.99));
+        line(out, "fanout_micros_p999", fanOutTime.getPercentile(0.999));
+        line(out, "fanout_micros_max", fanOutTime.getMax());
+        return out.toString();
+    } // end of render() method
+
+    /** Method to add one metric line.
+     * @param out - the text being built.
+     * @param name - the metric name.
+     * @param value - the metric value. */
+    private static void line(StringBuilder out, String name, long value){
+        out.append(name).append(' ').append(value).append('\n');
+    } // end of line() method
+} // end of ServerMetrics Class
@@ -0,0 +1,163 @@
+// ----- IMPORT STATEMENTS -----
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Class that stores the sessions connected to the {@link Server Server}
+ * and the usernames they have reserved. It is safe to use from the accept
+ * loop and from every session thread at once.
+ * Sessions are kept in a concurrent set so adding and removing is O(1).
+ * For broadcasting a copy-on-write snapshot of the sessions is kept,
+ * which is only rebuilt when the set has changed since it was last taken,
+ * so iterating it needs no lock.
+ * Usernames map straight to their session so one user can be found with
+ * a single hash lookup however many are online, and a sorted copy of the
+ * names lets them be listed a page at a time.
+ * @param <S> - the type of session stored. */
+class SessionRegistry<S> {
+
+    // ----- FIELDS ----- //
+    /** {@link Set Set} of every connected session. */
+    private final Set<S> sessions = ConcurrentHashMap.newKeySet();
+
+    /** {@link ConcurrentHashMap ConcurrentHashMap} of each reserved
+     * username to the session that owns it. */
+    private final ConcurrentHashMap<String, S> usrNames = new ConcurrentHashMap<String, S>();
+
+    /** {@link ConcurrentSkipListSet ConcurrentSkipListSet} of the reserved
+     * usernames in sorted order. It is only changed while
+     * {@link #usrNames usrNames} holds the lock for the name, so the two
+     * always agree. */
+    private final ConcurrentSkipListSet<String> sortedUsrNames = new ConcurrentSkipListSet<String>();
+
+    /** Counter increased on each change to {@link #sessions sessions}. */
+    private final AtomicLong version = new AtomicLong();
+
+    /** The last snapshot taken and the version it was taken at. */
+    private volatile Snapshot<S> current = new Snapshot<S>(0, List.of());
+
+    /** Method to add a newly connected session.
+     * @param session - the session to add. */
+    public void add(final S session){
+        sessions.add(session);
+        version.incrementAndGet();
+    } // end of add() method
+
+    /** Method to remove a session that has disconnected. Method does
+     * nothing if the session was already removed.
+     * @param session - the session to remove.
+     * @return True if the session was removed by this call. */
+    public boolean remove(final S session){
+        if(sessions.remove(session)){
+            version.incrementAndGet();
+            return true;
+        } // end of if statement
+        return false;
+    } // end of remove() method
+
+    /** Method to reserve a username for a session. The check and the
+     * reservation happen as one atomic step, so two sessions asking for
+     * the same name at once cannot both get it.
+     * @param usrName - the username asked for.
+     * @param session - the session asking for it.
+     * @return True if the username was free and is now reserved. */
+    public boolean reserveUsrName(final String usrName, final S session){
+        return usrNames.computeIfAbsent(usrName, name -> {
+            sortedUsrNames.add(name);
+            return session;
+        }) == session;
+    } // end of reserveUsrName() method
+
+    /** Method to release a username when its session logs out. The name
+     * is only released if it is still owned by the given session.
+     * @param usrName - the username to release, may be null.
+     * @param session - the session that owns the username. */
+    public void releaseUsrName(final String usrName, final S session){
+        if(usrName != null){
+            usrNames.computeIfPresent(usrName, (name, owner) -> {
+                if(owner != session){
+                    return owner;
+                } // end of if statement
+                sortedUsrNames.remove(name);
+                return null;
+            });
+        } // end of if statement
+    } // end of releaseUsrName() method
+
+    /** Method to find the session that owns a username.
+     * @param usrName - the username to look up.
+     * @return The session, or null if no one has the name. */
+    public S findUsr(final String usrName){
+        return usrNames.get(usrName);
+    } // end of findUsr() method
+
+    /** Method to list one page of usernames in sorted order.
+     * @param after - the name to start after, or null to start at the
+     * beginning.
+     * @param limit - the most names returned.
+     * @return Up to limit names that sort after the given name. */
+    public List<String> listUsrNames(final String after, final int limit){
+        List<String> page = new ArrayList<String>(Math.min(limit, 64));
+        // --- for loop to collect names until the page is full
+        for(String name : after == null ? sortedUsrNames : sortedUsrNames.tailSet(after, false)){
+            if(page.size() >= limit){
+                break;
+            } // end of if statement
+            page.add(name);
+        } // end of for loop
+        return page;
+    } // end of listUsrNames() method
+
+    /** Method to get the number of reserved usernames.
+     * @return The number of users online. */
+    public int usrCount(){
+        return usrNames.size();
+    } // end of usrCount() method
+
+    /** Method to get the number of connected sessions.
+     * @return The number of sessions. */
+    public int size(){
+        return sessions.size();
+    } // end of size() method
+
+    /** Method to get a read-only snapshot of the connected sessions.
+     * The snapshot is rebuilt only if a session has been added or removed
+     * since the last call; otherwise the same list is returned.
+     * @return The sessions connected when the snapshot was taken. */
+    public List<S> snapshot(){
+        Snapshot<S> snap = current;
+        long latest = version.get();
+
+        if(snap.VERSION != latest){
+            // read the version before copying so a change made during the
+            // copy leaves the snapshot stale and it is rebuilt next time
+            snap = new Snapshot<S>(latest, List.copyOf(sessions));
+            current = snap;
+        } // end of if statement
+
+        return snap.SESSIONS;
+    } // end of snapshot() method
+
+    /** Class that pairs a list of sessions with the version of the
+     * registry it was copied at.
+     * @param <S> - the type of session stored. */
+    private static class Snapshot<S> {
+
+        /** Version of the registry when the copy was taken. */
+        private final long VERSION;
+
+        /** Read-only copy of the sessions. */
+        private final List<S> SESSIONS;
+
+        /** Constructor to create a Snapshot.
+         * @param version - version of the registry when copied.
+         * @param sessions - read-only copy of the sessions. */
+        public Snapshot(long version, List<S> sessions){
+            this.VERSION = version;
+            this.SESSIONS = sessions;
+        } // end of CONSTRUCTOR
+    } // end of Snapshot Class
+} // end of SessionRegistry Class
@@ -0,0 +1,301 @@
+// ----- IMPORT STATEMENTS -----
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Class that implements the {@link ClusterRelay ClusterRelay} interface
+ * with a TCP link between every pair of nodes. Each node listens on its
+ * cluster port and dials the peers it was given, dialling again once a
+ * second while a peer is down, so only one side of each pair needs to
+ * list the other. If both do there are two links and every message is
+ * sent on both; the {@link ClusterNode ClusterNode} drops the copy.
+ * <p>Each link has its own queue and writer thread. The writer takes
+ * every message waiting, up to a batch, writes them into one buffer and
+ * sends the buffer with a single flush, so a burst of broadcasts costs a
+ * few large writes rather than one per message. A link whose queue fills
+ * drops new messages, and counts them, rather than holding up the
+ * sender. Delivery is at most once: messages queued on a link when it
+ * breaks are lost.</p> */
+class TcpMeshRelay implements ClusterRelay {
+
+    // ----- FIELDS ----- //
+    /** Int constant sent first on every link to check the other end is a
+     * cluster node. */
+    private static final int MAGIC = 0x43484154;
+
+    /** Int constant that stores the most messages written in one batch. */
+    private static final int BATCH_LIMIT = 256;
+
+    /** Int constant that stores the most messages waiting on one link. */
+    private static final int LINK_CAPACITY = 65536;
+
+    /** Long constant that stores how long to wait before dialling a peer
+     * again, in milliseconds. */
+    private static final long RETRY_MS = 1000;
+
+    /** Int constant that stores the port this node listens on. */
+    private final int PORT;
+
+    /** {@link List List} of the peers this node dials. */
+    private final List<InetSocketAddress> PEERS;
+
+    /** {@link List List} of the open links. */
+    private final List<Link> links = new CopyOnWriteArrayList<Link>();
+
+    /** {@link ConcurrentHashMap ConcurrentHashMap} of the number of open
+     * links to each peer node. */
+    private final ConcurrentHashMap<Long, Integer> linksByPeer = new ConcurrentHashMap<Long, Integer>();
+
+    /** Counter of batches written. */
+    private final LongAdder batches = new LongAdder();
+
+    /** Counter of messages dropped because a link's queue was full. */
+    private final LongAdder dropped = new LongAdder();
+
+    /** The id of this node. */
+    private long nodeId;
+
+    /** Where received messages are passed. */
+    private Listener listener;
+
+    /** The socket this node listens on. */
+    private ServerSocket serverSocket;
+
+    /** Boolean set once the relay is closed. */
+    private volatile boolean closed = false;
+
+    /** Constructor to create a TcpMeshRelay.
+     * @param port - the port to listen on for other nodes.
+     * @param peers - the nodes to dial. */
+    public TcpMeshRelay(int port, List<InetSocketAddress> peers){
+        this.PORT = port;
+        this.PEERS = new ArrayList<InetSocketAddress>(peers);
+    } // end of CONSTRUCTOR
+
+    public void start(long nodeId, Listener listener) throws IOException {
+        this.nodeId = nodeId;
+        this.listener = listener;
+        serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(PORT));
+        ServerLog.info("Cluster relay listening on port " + PORT + ", dialling " + PEERS);
+        daemon(this::acceptLoop, "cluster-accept");
+
+        // --- for loop to start dialling each peer
+        for(InetSocketAddress peer : PEERS){
+            daemon(() -> dialLoop(peer), "cluster-dial-" + peer.getPort());
+        } // end of for loop
+    } // end of start() method
+
+    public void publish(ClusterMessage msg){
+        // --- for loop to queue the message on every link
+        for(Link link : links){
+            if(!link.QUEUE.offer(msg)){
+                dropped.increment();
+            } // end of if statement
+        } // end of for loop
+    } // end of publish() method
+
+    public void close(){
+        closed = true;
+        try{
+            serverSocket.close();
+        } catch (IOException e){
+            // already closed
+        } // end of IOException catch
+        // --- for loop to close every link
+        for(Link link : links){
+            link.close();
+        } // end of for loop
+    } // end of close() method
+
+    /** Method to get the number of batches written over every link.
+     * @return The number of batches. */
+    public long getBatches(){
+        return batches.sum();
+    } // end of getBatches() method
+
+    /** Method to get the number of messages dropped because a link fell
+     * behind.
+     * @return The number dropped. */
+    public long getDropped(){
+        return dropped.sum();
+    } // end of getDropped() method
+
+    /** Method run by the accept thread to serve each node that dials in
+     * on its own thread. */
+    private void acceptLoop(){
+        // --- while loop to accept links until the relay is closed
+        while(!closed){
+            try{
+                final Socket SOCKET = serverSocket.accept();
+                daemon(() -> runLink(SOCKET), "cluster-link-in");
+            } catch (IOException e){
+                if(!closed){
+                    ServerLog.error("Cluster accept failed: " + e.getMessage());
+                } // end of if statement
+            } // end of IOException catch
+        } // end of while loop
+    } // end of acceptLoop() method
+
+    /** Method run by a dial thread to keep a link open to one peer,
+     * dialling again after it breaks or cannot be reached.
+     * @param peer - the node to dial. */
+    private void dialLoop(InetSocketAddress peer){
+        // --- while loop to dial until the relay is closed
+        while(!closed){
+            try{
+                runLink(new Socket(peer.getAddress(), peer.getPort()));
+            } catch (IOException e){
+                ServerLog.debug("Cluster peer " + peer + " unreachable: " + e.getMessage());
+            } // end of IOException catch
+
+            try{
+                Thread.sleep(RETRY_MS);
+            } catch (InterruptedException e){
+                return;
+            } // end of InterruptedException catch
+        } // end of while loop
+    } // end of dialLoop() method
+
+    /** Method to run one link on the calling thread. Both ends send the
+     * magic number and their node id, then the calling thread reads
+     * messages until the link breaks while the link's writer thread sends.
+     * A link to this node itself is closed straight away.
+     * @param socket - the connected socket. */
+    private void runLink(Socket socket){
+        Link link = null;
+        long peer = 0;
+        try{
+            socket.setTcpNoDelay(true);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+            out.writeInt(MAGIC);
+            out.writeLong(nodeId);
+            out.flush();
+            if(in.readInt() != MAGIC){
+                throw new IOException("Not a cluster node");
+            } // end of if statement
+            peer = in.readLong();
+            if(peer == nodeId){
+                return;
+            } // end of if statement
+
+            link = new Link(socket, out);
+            links.add(link);
+            final Link WRITING = link;
+            daemon(() -> writeLoop(WRITING), "cluster-link-out");
+            if(linksByPeer.merge(peer, 1, Integer::sum) == 1){
+                ServerLog.info("Cluster peer " + Long.toHexString(peer) + " up at " + socket.getRemoteSocketAddress());
+                listener.onPeerUp(peer);
+            } // end of if statement
+
+            // --- while loop to pass on each message until the link breaks
+            while(!closed){
+                listener.onMessage(ClusterMessage.read(in));
+            } // end of while loop
+        } catch (IOException e){
+            ServerLog.debug("Cluster link closed: " + e.getMessage());
+        } finally {
+            if(link != null){
+                links.remove(link);
+                link.close();
+                if(linksByPeer.merge(peer, -1, Integer::sum) == 0){
+                    linksByPeer.remove(peer, 0);
+                    ServerLog.info("Cluster peer " + Long.toHexString(peer) + " down");
+                    listener.onPeerDown(peer);
+                } // end of if statement
+            }else{
+                try{
+                    socket.close();
+                } catch (IOException e){
+                    // already closed
+                } // end of IOException catch
+            } // end of if statement
+        } // end of try-finally statement
+    } // end of runLink() method
+
+    /** Method run by a link's writer thread to send batches of queued
+     * messages until the link closes.
+     * @param link - the link to write to. */
+    private void writeLoop(Link link){
+        List<ClusterMessage> batch = new ArrayList<ClusterMessage>(BATCH_LIMIT);
+        try{
+            // --- while loop to write a batch whenever messages are waiting
+            while(link.open){
+                ClusterMessage first = link.QUEUE.poll(RETRY_MS, TimeUnit.MILLISECONDS);
+                if(first == null){
+                    continue;
+                } // end of if statement
+                batch.add(first);
+                link.QUEUE.drainTo(batch, BATCH_LIMIT - 1);
+                for(ClusterMessage msg : batch){
+                    msg.write(link.OUT);
+                } // end of for loop
+                link.OUT.flush();
+                batches.increment();
+                batch.clear();
+            } // end of while loop
+        } catch (IOException e){
+            link.close();
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        } // end of catch statements
+    } // end of writeLoop() method
+
+    /** Method to start a daemon thread.
+     * @param task - what the thread runs.
+     * @param name - the thread name. */
+    private static void daemon(Runnable task, String name){
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    } // end of daemon() method
+
+    /** Class that stores one open link to another node. */
+    private static final class Link {
+
+        /** The connected socket. */
+        private final Socket SOCKET;
+
+        /** The buffered stream messages are written to. */
+        private final DataOutputStream OUT;
+
+        /** Queue of messages waiting to be written. */
+        private final BlockingQueue<ClusterMessage> QUEUE = new ArrayBlockingQueue<ClusterMessage>(LINK_CAPACITY);
+
+        /** Boolean that is false once the link is closed. */
+        private volatile boolean open = true;
+
+        /** Constructor to create a Link.
+         * @param socket - the connected socket.
+         * @param out - the buffered stream to write to. */
+        Link(Socket socket, DataOutputStream out){
+            this.SOCKET = socket;
+            this.OUT = out;
+        } // end of CONSTRUCTOR
+
+        /** Method to close the link, which also ends its reader. */
+        void close(){
+            open = false;
+            try{
+                SOCKET.close();
+            } catch (IOException e){
+                // already closed
+            } // end of IOException catch
+        } // end of close() method
+    } // end of Link Class
+} // end of TcpMeshRelay Class
@@ -0,0 +1,139 @@
+// ----- IMPORT STATEMENTS -----
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/** Class that runs many delayed tasks from one thread using a hashed
+ * timer wheel. Time is split into ticks and each task is put in the slot
+ * of the tick it is due on, so scheduling is O(1) however many tasks are
+ * waiting and only the current slot is looked at on each tick. A task can
+ * run up to one tick late. Tasks are run on the wheel thread and must be
+ * quick; anything slow should be handed to another thread.
+ * <p>Tasks cannot be cancelled. A task that is no longer needed should
+ * check for that itself when it runs.</p> */
+class TimerWheel {
+
+    // ----- FIELDS ----- //
+    /** Long constant that stores the length of a tick in nanoseconds. */
+    private final long TICK_NANOS;
+
+    /** List of slots, each holding the tasks due on ticks that map to
+     * it. Only the wheel thread touches the slots. */
+    private final List<ArrayDeque<Timeout>> slots;
+
+    /** Queue of tasks scheduled from other threads that have not yet been
+     * put in a slot. */
+    private final ConcurrentLinkedQueue<Timeout> incoming = new ConcurrentLinkedQueue<Timeout>();
+
+    /** System time in nanoseconds that tick 0 started at. */
+    private final long START = System.nanoTime();
+
+    /** Number of the tick the wheel thread is on. */
+    private long tick = 0;
+
+    /** Constructor to create a TimerWheel and start its thread.
+     * @param tick - the length of a tick.
+     * @param unit - the unit of the tick length.
+     * @param slotCount - the number of slots in the wheel.
+     * @param name - the name of the wheel thread. */
+    public TimerWheel(long tick, TimeUnit unit, int slotCount, String name){
+        this.TICK_NANOS = Math.max(1, unit.toNanos(tick));
+        this.slots = new ArrayList<ArrayDeque<Timeout>>(slotCount);
+        // --- for loop to create each empty slot
+        for(int i = 0; i < slotCount; i++){
+            slots.add(new ArrayDeque<Timeout>());
+        } // end of for loop
+
+        Thread worker = new Thread(this::run, name);
+        worker.setDaemon(true);
+        worker.start();
+    } // end of CONSTRUCTOR
+
+    /** Method to run a task once after a delay. It may be called from
+     * any thread.
+     * @param task - the task to run.
+     * @param delay - how long to wait.
+     * @param unit - the unit of the delay. */
+    public void schedule(Runnable task, long delay, TimeUnit unit){
+        incoming.add(new Timeout(task, System.nanoTime() + unit.toNanos(Math.max(0, delay))));
+    } // end of schedule() method
+
+    /** Method run by the wheel thread. On each tick it puts newly
+     * scheduled tasks in their slots and then runs the tasks in the
+     * current slot that are due. */
+    private void run(){
+        // --- while loop to handle one tick at a time
+        while(true){
+            final long TICK_END = START + (tick + 1) * TICK_NANOS;
+            long sleep = TICK_END - System.nanoTime();
+            while(sleep > 0){
+                try{
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException e){
+                    return;
+                } // end of InterruptedException catch
+                sleep = TICK_END - System.nanoTime();
+            } // end of while loop
+
+            addIncoming();
+            runDue(slots.get((int) (tick % slots.size())));
+            tick++;
+        } // end of while loop
+    } // end of run() method
+
+    /** Method to put each newly scheduled task in the slot of the tick it
+     * is due on. Tasks already overdue go in the current slot. */
+    private void addIncoming(){
+        Timeout timeout;
+        while((timeout = incoming.poll()) != null){
+            long due = Math.max(tick, (timeout.DEADLINE - START) / TICK_NANOS);
+            timeout.rounds = (due - tick) / slots.size();
+            slots.get((int) (due % slots.size())).add(timeout);
+        } // end of while loop
+    } // end of addIncoming() method
+
+    /** Method to run the tasks in a slot that are due this time round,
+     * and count down the rest by one turn of the wheel.
+     * @param slot - the current slot. */
+    private void runDue(ArrayDeque<Timeout> slot){
+        Iterator<Timeout> timeouts = slot.iterator();
+        while(timeouts.hasNext()){
+            Timeout timeout = timeouts.next();
+            if(timeout.rounds > 0){
+                timeout.rounds--;
+                continue;
+            } // end of if statement
+
+            timeouts.remove();
+            try{
+                timeout.TASK.run();
+            } catch (RuntimeException e){
+                ServerLog.error("Timer task failed: " + e);
+            } // end of RuntimeException catch
+        } // end of while loop
+    } // end of runDue() method
+
+    /** Class that stores a scheduled task. */
+    private static final class Timeout {
+
+        /** The task to run. */
+        private final Runnable TASK;
+
+        /** System time in nanoseconds the task is due at. */
+        private final long DEADLINE;
+
+        /** Number of turns of the wheel left before the task is due. */
+        private long rounds;
+
+        /** Constructor to create a Timeout.
+         * @param task - the task to run.
+         * @param deadline - the time the task is due at. */
+        Timeout(Runnable task, long deadline){
+            this.TASK = task;
+            this.DEADLINE = deadline;
+        } // end of CONSTRUCTOR
+    } // end of Timeout Class
+} // end of TimerWheel Class
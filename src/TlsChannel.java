@@ -0,0 +1,390 @@
+// ----- IMPORT STATEMENTS -----
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+
+/** Class that runs TLS over a {@link SocketChannel SocketChannel} with an
+ * {@link SSLEngine SSLEngine}, so a session reads and writes plain bytes
+ * through it just as it would through the channel itself. It works on
+ * blocking and non-blocking channels; a {@link Server.Reactor Reactor}
+ * keeps a TLS connection on its selector like any other, with no thread
+ * of its own.
+ * <p>The handshake is driven by reads and writes as the engine asks, and
+ * its slow steps are run inline. On a non-blocking channel a read or write
+ * returns 0 when it cannot go on; {@link #isAwaitingPeer() isAwaitingPeer}
+ * tells a writer that waiting for the channel to become writable would
+ * not help, and {@link #flush() flush} finishes sending anything the
+ * engine has made. Reads and writes may be made from different threads at
+ * once, as by a blocking session and its writer task; a lock on each side
+ * keeps the records in order.</p>
+ * <p>Gathering writes wrap as many of the buffers as fit into one record,
+ * so a batch of small messages costs one record and one socket write.</p>
+ * <p>Each of the three buffers is borrowed from a {@link BufferPool
+ * BufferPool} shared by every connection when there are bytes to hold,
+ * and given back as soon as it is empty again, so an idle connection holds
+ * none of the 50 KB or so they would otherwise take.</p> */
+class TlsChannel implements ByteChannel, GatheringByteChannel {
+
+    // ----- FIELDS ----- //
+    /** Empty buffer wrapped when the engine only needs to send handshake
+     * records. */
+    private static final ByteBuffer[] NO_DATA = {ByteBuffer.allocate(0)};
+
+    /** {@link BufferPool BufferPool} that every connection borrows its
+     * buffers from. A buffer holds the largest record the engine makes or
+     * takes by default. */
+    private static final BufferPool POOL = new BufferPool(17 * 1024, 1024);
+
+    /** The connected channel. */
+    private final SocketChannel CHANNEL;
+
+    /** The engine of this connection. */
+    private final SSLEngine ENGINE;
+
+    /** Lock held while unwrapping. */
+    private final Object READ_LOCK = new Object();
+
+    /** Lock held while wrapping and writing to the channel. */
+    private final Object WRITE_LOCK = new Object();
+
+    /** Encrypted bytes read from the channel but not yet unwrapped, ready
+     * to be filled, or null if there are none. */
+    private ByteBuffer netIn;
+
+    /** Plain bytes unwrapped but not yet read, ready to be drained, or
+     * null if there are none. */
+    private ByteBuffer appIn;
+
+    /** Encrypted bytes wrapped but not yet written, ready to be drained,
+     * or null if there are none. */
+    private volatile ByteBuffer netOut;
+
+    /** Constructor to create a TlsChannel. The handshake starts on the
+     * first read or write.
+     * @param channel - the connected channel.
+     * @param engine - the engine, set to client or server mode. */
+    public TlsChannel(SocketChannel channel, SSLEngine engine){
+        this.CHANNEL = channel;
+        this.ENGINE = engine;
+    } // end of CONSTRUCTOR
+
+    /** Method to make the whole handshake before anything else is read or
+     * written. Only for a blocking channel.
+     * @throws IOException if the handshake fails or the peer goes away. */
+    public void handshake() throws IOException {
+        ENGINE.beginHandshake();
+        synchronized(READ_LOCK){
+            try{
+                HandshakeStatus status = ENGINE.getHandshakeStatus();
+                // --- while loop to take each step the engine asks for
+                while(status != HandshakeStatus.NOT_HANDSHAKING && status != HandshakeStatus.FINISHED){
+                    if(status == HandshakeStatus.NEED_UNWRAP || status == HandshakeStatus.NEED_UNWRAP_AGAIN){
+                        if(unwrapNext(true) < 0){
+                            throw new EOFException("Connection closed during TLS handshake");
+                        } // end of if statement
+                    }else{
+                        step(status);
+                    } // end of if statement
+                    status = ENGINE.getHandshakeStatus();
+                } // end of while loop
+            } finally {
+                releaseReadBuffers();
+            } // end of try-finally statement
+        } // end of synchronized block
+    } // end of handshake() method
+
+    /** Method to read plain bytes. Records already read are unwrapped
+     * until the buffer is full; the channel is only read if nothing at all
+     * was waiting, so a blocking read never waits while it has bytes to
+     * give.
+     * @param dst - the buffer to fill.
+     * @return The number of bytes read, 0 if none are waiting on a
+     * non-blocking channel, or -1 at the end of the connection.
+     * @throws IOException if the channel or engine fails. */
+    public int read(ByteBuffer dst) throws IOException {
+        synchronized(READ_LOCK){
+            int total = 0;
+            try{
+                // --- while loop to give plain bytes and unwrap more as needed
+                while(dst.hasRemaining()){
+                    if(appIn != null && appIn.hasRemaining()){
+                        final int COUNT = Math.min(appIn.remaining(), dst.remaining());
+                        final int LIMIT = appIn.limit();
+                        appIn.limit(appIn.position() + COUNT);
+                        dst.put(appIn);
+                        appIn.limit(LIMIT);
+                        total += COUNT;
+                        continue;
+                    } // end of if statement
+
+                    final int PROGRESS = unwrapNext(total == 0);
+                    if(PROGRESS <= 0){
+                        return total > 0 ? total : PROGRESS;
+                    } // end of if statement
+                } // end of while loop
+                return total;
+            } finally {
+                releaseReadBuffers();
+            } // end of try-finally statement
+        } // end of synchronized block
+    } // end of read() method
+
+    /** Method to check if bytes already read from the channel can be read
+     * without reading it again: plain bytes, or a whole record. A
+     * {@link Server.Reactor Reactor} uses this to carry on reading when the
+     * selector would not wake it.
+     * @return True if a read would return bytes without the channel. */
+    public boolean hasBufferedInput(){
+        synchronized(READ_LOCK){
+            if(appIn != null && appIn.hasRemaining()){
+                return true;
+            } // end of if statement
+            // a record is a 5 byte header, whose last 2 bytes are its length
+            final int FILLED = netIn == null ? 0 : netIn.position();
+            return FILLED >= 5 && FILLED >= 5 + ((netIn.get(3) & 0xff) << 8 | (netIn.get(4) & 0xff));
+        } // end of synchronized block
+    } // end of hasBufferedInput() method
+
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        synchronized(WRITE_LOCK){
+            if(!flush()){
+                return 0;
+            } // end of if statement
+
+            long consumed = 0;
+            // --- while loop to wrap and send records until the data is gone
+            // or the channel or handshake cannot go on
+            while(hasRemaining(srcs, offset, length)){
+                final SSLEngineResult RESULT = wrap(srcs, offset, length);
+                if(RESULT.getStatus() == SSLEngineResult.Status.CLOSED){
+                    throw new ClosedChannelException();
+                } // end of if statement
+                consumed += RESULT.bytesConsumed();
+                if(!flush() || !step(RESULT.getHandshakeStatus())
+                        || RESULT.bytesConsumed() == 0 && RESULT.bytesProduced() == 0){
+                    break;
+                } // end of if statement
+            } // end of while loop
+            return consumed;
+        } // end of synchronized block
+    } // end of write() method
+
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    } // end of write() method
+
+    public int write(ByteBuffer src) throws IOException {
+        return (int) write(new ByteBuffer[]{src}, 0, 1);
+    } // end of write() method
+
+    /** Method to write any records the engine has made that are still
+     * waiting for the channel.
+     * @return True if nothing is left waiting.
+     * @throws IOException if the channel cannot be written to. */
+    public boolean flush() throws IOException {
+        synchronized(WRITE_LOCK){
+            if(netOut == null){
+                return true;
+            } // end of if statement
+            // --- while loop to write until done or the channel is full
+            while(netOut.hasRemaining()){
+                if(CHANNEL.write(netOut) == 0){
+                    return false;
+                } // end of if statement
+            } // end of while loop
+            POOL.release(netOut);
+            netOut = null;
+            return true;
+        } // end of synchronized block
+    } // end of flush() method
+
+    /** Method to check if the handshake is waiting for the peer, so no
+     * data can be written until something has been read.
+     * @return True if writing must wait for a read. */
+    public boolean isAwaitingPeer(){
+        final HandshakeStatus STATUS = ENGINE.getHandshakeStatus();
+        return !hasPendingOutput() && (STATUS == HandshakeStatus.NEED_UNWRAP
+                || STATUS == HandshakeStatus.NEED_UNWRAP_AGAIN);
+    } // end of isAwaitingPeer() method
+
+    /** Method to check if records are waiting to be written.
+     * @return True if {@link #flush() flush} has work to do. */
+    public boolean hasPendingOutput(){
+        final ByteBuffer OUT = netOut;
+        return OUT != null && OUT.hasRemaining();
+    } // end of hasPendingOutput() method
+
+    public boolean isOpen(){
+        return CHANNEL.isOpen();
+    } // end of isOpen() method
+
+    /** Method to close the connection. On a non-blocking channel a close
+     * notice is sent first if the channel will take it; a blocking channel
+     * is closed without one, as the peer may have stopped reading and the
+     * caller must not be held up.
+     * @throws IOException if the channel cannot be closed. */
+    public void close() throws IOException {
+        ENGINE.closeOutbound();
+        try{
+            if(!CHANNEL.isBlocking()){
+                synchronized(WRITE_LOCK){
+                    if(flush()){
+                        wrap(NO_DATA, 0, 1);
+                        flush();
+                    } // end of if statement
+                } // end of synchronized block
+            } // end of if statement
+        } catch (IOException e){
+            // the peer has gone; close anyway
+        } finally {
+            CHANNEL.close();
+        } // end of try-finally statement
+    } // end of close() method
+
+    /** Method to unwrap the next record, reading more from the channel if
+     * a whole record has not arrived, and take any handshake step that
+     * follows. Only called under the read lock.
+     * @param mayRead - false to only unwrap records already read.
+     * @return 1 if progress was made, 0 if more bytes are needed and none
+     * are waiting, or -1 if the connection has ended. */
+    private int unwrapNext(boolean mayRead) throws IOException {
+        if(netIn == null){
+            netIn = POOL.acquire(ENGINE.getSession().getPacketBufferSize());
+        } // end of if statement
+        if(appIn == null){
+            appIn = POOL.acquire(ENGINE.getSession().getApplicationBufferSize()).flip();
+        } // end of if statement
+        netIn.flip();
+        appIn.compact();
+        final SSLEngineResult RESULT;
+        try{
+            RESULT = ENGINE.unwrap(netIn, appIn);
+        } finally {
+            appIn.flip();
+            netIn.compact();
+        } // end of try-finally statement
+
+        switch(RESULT.getStatus()){
+            case CLOSED:
+                return -1;
+            case BUFFER_UNDERFLOW:
+                if(!mayRead){
+                    return 0;
+                } // end of if statement
+                if(!netIn.hasRemaining()){
+                    netIn = grow(netIn, ENGINE.getSession().getPacketBufferSize());
+                } // end of if statement
+                final int READ = CHANNEL.read(netIn);
+                return READ < 0 ? -1 : READ == 0 ? 0 : 1;
+            case BUFFER_OVERFLOW:
+                appIn = grow(appIn.compact(), ENGINE.getSession().getApplicationBufferSize()).flip();
+                return 1;
+            default:
+                return step(RESULT.getHandshakeStatus()) ? 1 : 0;
+        } // end of switch statement
+    } // end of unwrapNext() method
+
+    /** Method to take the handshake steps that need no data from the
+     * peer: running the engine's slow tasks and sending its records.
+     * @param status - the status the engine last gave.
+     * @return False if a record could not be written because the channel
+     * is full.
+     * @throws IOException if the channel cannot be written to. */
+    private boolean step(HandshakeStatus status) throws IOException {
+        HandshakeStatus next = status;
+        // --- while loop to take steps until the engine needs the peer
+        while(true){
+            if(next == HandshakeStatus.NEED_TASK){
+                Runnable task;
+                while((task = ENGINE.getDelegatedTask()) != null){
+                    task.run();
+                } // end of while loop
+                next = ENGINE.getHandshakeStatus();
+            }else if(next == HandshakeStatus.NEED_WRAP){
+                synchronized(WRITE_LOCK){
+                    // records are gathered and only written when the next
+                    // one does not fit, so a flight goes out in one write
+                    final SSLEngineResult RESULT = wrap(NO_DATA, 0, 1);
+                    if(RESULT.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW){
+                        if(!flush()){
+                            return false;
+                        } // end of if statement
+                        continue;
+                    } // end of if statement
+                    next = RESULT.getHandshakeStatus();
+                } // end of synchronized block
+            }else{
+                return flush();
+            } // end of if statement
+        } // end of while loop
+    } // end of step() method
+
+    /** Method to wrap plain bytes into {@link #netOut netOut}. Only called
+     * under the write lock.
+     * @param srcs - the plain bytes.
+     * @param offset - the first buffer to wrap.
+     * @param length - the number of buffers.
+     * @return The engine's result.
+     * @throws IOException if the engine fails. */
+    private SSLEngineResult wrap(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        if(netOut == null){
+            netOut = POOL.acquire(ENGINE.getSession().getPacketBufferSize());
+        }else{
+            netOut.compact();
+        } // end of if statement
+        try{
+            return ENGINE.wrap(srcs, offset, length, netOut);
+        } finally {
+            netOut.flip();
+        } // end of try-finally statement
+    } // end of wrap() method
+
+    /** Method to give the read side's buffers back to the
+     * {@link #POOL POOL} once they are empty, or as soon as the channel is
+     * closed. Only called under the read lock. */
+    private void releaseReadBuffers(){
+        final boolean CLOSED = !CHANNEL.isOpen();
+        if(netIn != null && (CLOSED || netIn.position() == 0)){
+            POOL.release(netIn);
+            netIn = null;
+        } // end of if statement
+        if(appIn != null && (CLOSED || !appIn.hasRemaining())){
+            POOL.release(appIn);
+            appIn = null;
+        } // end of if statement
+    } // end of releaseReadBuffers() method
+
+    /** Method to check if any of a range of buffers has bytes left.
+     * @param srcs - the buffers.
+     * @param offset - the first buffer.
+     * @param length - the number of buffers.
+     * @return True if any bytes are left. */
+    private static boolean hasRemaining(ByteBuffer[] srcs, int offset, int length){
+        for(int i = offset; i < offset + length; i++){
+            if(srcs[i].hasRemaining()){
+                return true;
+            } // end of if statement
+        } // end of for loop
+        return false;
+    } // end of hasRemaining() method
+
+    /** Method to copy a buffer that is being filled into a larger one.
+     * The old buffer is given back to the {@link #POOL POOL}.
+     * @param buf - the buffer, ready to be filled.
+     * @param size - the size the engine now asks for.
+     * @return The new buffer, ready to be filled. */
+    private static ByteBuffer grow(ByteBuffer buf, int size){
+        ByteBuffer bigger = POOL.acquire(Math.max(size, buf.capacity() * 2));
+        buf.flip();
+        bigger.put(buf);
+        POOL.release(buf);
+        return bigger;
+    } // end of grow() method
+} // end of TlsChannel Class
@@ -0,0 +1,145 @@
+// ----- IMPORT STATEMENTS -----
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManagerFactory;
+
+/** Class that builds the {@link SSLContext SSLContexts} used for TLS by the
+ * {@link Server Server} and {@link ClientInstance ClientInstance}, from a
+ * PKCS12 key store.
+ * <p>A context keeps a cache of TLS sessions, and a client that connects
+ * again with the same context resumes its last session instead of making
+ * a full handshake. Under TLS 1.3 the server hands out stateless session
+ * tickets, so resumption does not need the server's cache; under TLS 1.2
+ * the server's cache is used, and its size and lifetime are set here.
+ * A context should therefore be built once and shared by every
+ * connection.</p> */
+final class TlsContexts {
+
+    // ----- FIELDS ----- //
+    /** {@link String String} constant that stores the alias of the key
+     * made by {@link #generateTestKeyStore(File, String)
+     * generateTestKeyStore}. */
+    private static final String TEST_ALIAS = "chat-test";
+
+    /** Private Constructor as the class only has static members. */
+    private TlsContexts(){
+
+    } // end of CONSTRUCTOR
+
+    /** Method to build a server context from the key and certificate in a
+     * key store.
+     * @param keyStore - the PKCS12 key store file.
+     * @param password - the password of the store and its key.
+     * @param cacheSize - the most sessions kept for resumption.
+     * @param cacheTimeoutSec - how long a session may be resumed for.
+     * @return The context.
+     * @throws IOException if the store cannot be read or used. */
+    static SSLContext forServer(File keyStore, String password, int cacheSize, int cacheTimeoutSec)
+            throws IOException {
+        try{
+            KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keys.init(load(keyStore, password), password.toCharArray());
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(keys.getKeyManagers(), null, null);
+
+            SSLSessionContext sessions = context.getServerSessionContext();
+            sessions.setSessionCacheSize(cacheSize);
+            sessions.setSessionTimeout(cacheTimeoutSec);
+            return context;
+        } catch (GeneralSecurityException e){
+            throw new IOException("Unable to use key store " + keyStore + ": " + e.getMessage(), e);
+        } // end of GeneralSecurityException catch
+    } // end of forServer() method
+
+    /** Method to build a client context that trusts the certificates in a
+     * key store, such as one made by {@link #generateTestKeyStore(File,
+     * String) generateTestKeyStore}, or the JVM's usual trusted
+     * certificates if no store is given.
+     * @param trustStore - the PKCS12 store to trust, or null.
+     * @param password - the password of the store.
+     * @return The context.
+     * @throws IOException if the store cannot be read or used. */
+    static SSLContext forClient(File trustStore, String password) throws IOException {
+        try{
+            if(trustStore == null){
+                return SSLContext.getDefault();
+            } // end of if statement
+            TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            trust.init(load(trustStore, password));
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, trust.getTrustManagers(), null);
+            return context;
+        } catch (GeneralSecurityException e){
+            throw new IOException("Unable to use trust store " + trustStore + ": " + e.getMessage(), e);
+        } // end of GeneralSecurityException catch
+    } // end of forClient() method
+
+    /** Method to open a client socket and make the TLS handshake. The
+     * server's certificate must name the host. Sockets from the same
+     * factory resume earlier sessions with the same host and port. Nagle's
+     * algorithm is turned off, as the handshake is several small writes.
+     * @param factory - the socket factory of a client context.
+     * @param host - the host name or address of the server.
+     * @param port - the port of the server.
+     * @return The connected socket.
+     * @throws IOException if the server cannot be reached or the
+     * handshake fails. */
+    static SSLSocket connect(SSLSocketFactory factory, String host, int port) throws IOException {
+        SSLSocket socket = (SSLSocket) factory.createSocket(host, port);
+        socket.setTcpNoDelay(true);
+        SSLParameters params = socket.getSSLParameters();
+        params.setEndpointIdentificationAlgorithm("HTTPS");
+        socket.setSSLParameters(params);
+        socket.startHandshake();
+        return socket;
+    } // end of connect() method
+
+    /** Method to make a key store holding a new self-signed certificate
+     * for <code>localhost</code> and <code>127.0.0.1</code>, for testing.
+     * The JDK's <code>keytool</code> is run to make it.
+     * @param file - the key store file to create.
+     * @param password - the password of the store and its key.
+     * @throws IOException if keytool fails. */
+    static void generateTestKeyStore(File file, String password) throws IOException {
+        final String KEYTOOL = System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool";
+        Process keytool = new ProcessBuilder(KEYTOOL, "-genkeypair", "-alias", TEST_ALIAS,
+                "-keyalg", "EC", "-groupname", "secp256r1", "-validity", "365",
+                "-dname", "CN=localhost", "-ext", "SAN=dns:localhost,ip:127.0.0.1",
+                "-storetype", "PKCS12", "-keystore", file.getPath(),
+                "-storepass", password, "-keypass", password)
+                .redirectErrorStream(true).start();
+        try{
+            final byte[] OUTPUT = keytool.getInputStream().readAllBytes();
+            if(keytool.waitFor() != 0){
+                throw new IOException("keytool failed: " + new String(OUTPUT).trim());
+            } // end of if statement
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while running keytool", e);
+        } // end of InterruptedException catch
+    } // end of generateTestKeyStore() method
+
+    /** Method to read a PKCS12 key store.
+     * @param file - the store file.
+     * @param password - the password of the store.
+     * @return The loaded store.
+     * @throws IOException if the file cannot be read.
+     * @throws GeneralSecurityException if the store cannot be opened. */
+    private static KeyStore load(File file, String password) throws IOException, GeneralSecurityException {
+        KeyStore store = KeyStore.getInstance("PKCS12");
+        try(InputStream in = new FileInputStream(file)){
+            store.load(in, password.toCharArray());
+        } // end of try-with-resources
+        return store;
+    } // end of load() method
+} // end of TlsContexts Class
@@ -0,0 +1,80 @@
+// ----- IMPORT STATEMENTS -----
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Class that limits a rate, such as messages or bytes a second, with a
+ * token bucket that holds up to a burst of tokens and refills at a steady
+ * rate. There is no refill thread: the bucket stores the time at which it
+ * would next be full (the theoretical arrival time of the generic cell
+ * rate algorithm), and each take works out the refill from the current
+ * time and moves that time on with a single compare-and-set. Taking is
+ * lock-free and safe from any number of threads.
+ * <p>A take larger than the whole burst is allowed when the bucket is
+ * full, so one large message cannot be locked out for ever.</p> */
+class TokenBucket {
+
+    // ----- FIELDS ----- //
+    /** Double constant that stores the nanoseconds it takes to refill one
+     * token. */
+    private final double NANOS_PER_TOKEN;
+
+    /** Long constant that stores how far ahead of the current time the
+     * bucket may run, which is the time to refill the whole burst. */
+    private final long BURST_NANOS;
+
+    /** System time in nanoseconds at which the bucket is full again. A
+     * time in the past means the bucket is full. */
+    private final AtomicLong fullAt = new AtomicLong(System.nanoTime());
+
+    /** Constructor to create a full TokenBucket.
+     * @param ratePerSec - tokens added a second.
+     * @param burst - the most tokens held, at least 1. */
+    public TokenBucket(double ratePerSec, double burst){
+        this.NANOS_PER_TOKEN = 1e9 / ratePerSec;
+        this.BURST_NANOS = (long) (Math.max(1, burst) * NANOS_PER_TOKEN);
+    } // end of CONSTRUCTOR
+
+    /** Method to take tokens if the bucket has enough.
+     * @param cost - the tokens to take.
+     * @return True if they were taken. */
+    public boolean tryAcquire(long cost){
+        final long COST_NANOS = (long) (cost * NANOS_PER_TOKEN);
+        // --- while loop to retry if another thread took tokens first
+        while(true){
+            final long NOW = System.nanoTime();
+            final long FULL_AT = fullAt.get();
+            final long NEXT = Math.max(FULL_AT, NOW) + COST_NANOS;
+            if(NEXT - NOW > BURST_NANOS && FULL_AT - NOW > 0){
+                return false;
+            } // end of if statement
+            if(fullAt.compareAndSet(FULL_AT, NEXT)){
+                return true;
+            } // end of if statement
+        } // end of while loop
+    } // end of tryAcquire() method
+
+    /** Method to give back tokens taken by
+     * {@link #tryAcquire(long) tryAcquire}, for a caller that took them
+     * but then could not use them.
+     * @param cost - the tokens to give back. */
+    public void refund(long cost){
+        fullAt.addAndGet(-(long) (cost * NANOS_PER_TOKEN));
+    } // end of refund() method
+
+    /** Method to take tokens whether or not the bucket has enough, going
+     * into debt if needed.
+     * @param cost - the tokens to take.
+     * @return How long in nanoseconds the caller should wait for the
+     * tokens to have been there, or 0 if they were. */
+    public long reserve(long cost){
+        final long COST_NANOS = (long) (cost * NANOS_PER_TOKEN);
+        // --- while loop to retry if another thread took tokens first
+        while(true){
+            final long NOW = System.nanoTime();
+            final long FULL_AT = fullAt.get();
+            final long NEXT = Math.max(FULL_AT, NOW) + COST_NANOS;
+            if(fullAt.compareAndSet(FULL_AT, NEXT)){
+                return Math.max(0, NEXT - NOW - BURST_NANOS);
+            } // end of if statement
+        } // end of while loop
+    } // end of reserve() method
+} // end of TokenBucket Class
@@ -0,0 +1,223 @@
+// ----- IMPORT STATEMENTS -----
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Inflater;
+
+/** Class that holds the constants and helpers of the length-prefixed
+ * binary protocol that can be used instead of the line-based text
+ * protocol.
+ * <p>A client asks for the binary protocol by sending the
+ * {@link #PREAMBLE PREAMBLE} line as its first line. The Server answers
+ * with the {@link #ACCEPT ACCEPT} line, after which both sides only send
+ * frames. The client must not send any frame before it has read the
+ * ACCEPT line.</p>
+ * <p>Each frame is a one byte type, a four byte big-endian payload length
+ * and the payload as UTF-8 bytes.</p>
+ * <p>A client may ask for the frames it is sent to be compressed by adding
+ * {@link #DEFLATE_STREAM DEFLATE_STREAM} or {@link #DEFLATE_SHARED
+ * DEFLATE_SHARED} to the PREAMBLE line. A Server that agrees adds the same
+ * option to its ACCEPT line, and may then send {@link #DEFLATED DEFLATED}
+ * frames as described in {@link FrameDeflater FrameDeflater}. Frames sent
+ * by the client are never compressed.</p> */
+final class WireProtocol {
+
+    // ----- FIELDS ----- //
+    /** {@link String String} constant sent by a client to ask for the
+     * binary protocol. It starts with a control character so it cannot be
+     * mistaken for a username typed at a terminal. */
+    static final String PREAMBLE = "\u0001BINARY/1";
+
+    /** {@link String String} constant sent by the Server as its last text
+     * line once it has switched to the binary protocol. */
+    static final String ACCEPT = "\u0001BINARY/1 OK";
+
+    /** {@link String String} constant added to the PREAMBLE and ACCEPT
+     * lines for compression with one deflate stream per connection. */
+    static final String DEFLATE_STREAM = " deflate";
+
+    /** {@link String String} constant added to the PREAMBLE and ACCEPT
+     * lines for compression of each frame on its own, which lets the
+     * Server compress a broadcast once for every receiver. */
+    static final String DEFLATE_SHARED = " deflate-shared";
+
+    /** {@link String String} constant sent as a line by the Server to a
+     * text protocol client that has been quiet, to check it is still
+     * there. The client answers with {@link #PONG_LINE PONG_LINE}. */
+    static final String PING_LINE = "\u0001PING";
+
+    /** {@link String String} constant sent as a line by a text protocol
+     * client in answer to {@link #PING_LINE PING_LINE}. */
+    static final String PONG_LINE = "\u0001PONG";
+
+    /** Frame type of a chat message, or a username while logging in,
+     * sent by the client. */
+    static final byte CHAT = 0x01;
+
+    /** Frame type of a command, such as <code>;help</code>, sent by the
+     * client. */
+    static final byte CMD = 0x02;
+
+    /** Frame type sent by the client in answer to a
+     * {@link #PING PING} frame. It has no payload. */
+    static final byte PONG = 0x03;
+
+    /** Frame type of text sent by the Server, such as command replies. */
+    static final byte TEXT = 0x10;
+
+    /** Frame type of a broadcast in the form <code>user: message</code>
+     * sent by the Server. */
+    static final byte BROADCAST = 0x11;
+
+    /** Frame type sent by the Server once a chat message has been
+     * handed off for broadcast. It has no payload. */
+    static final byte ACK = 0x12;
+
+    /** Frame type sent by the Server to a client that has been quiet, to
+     * check it is still there. It has no payload. */
+    static final byte PING = 0x13;
+
+    /** Frame type sent by the Server to a client that asked for
+     * compression. The payload is another whole frame compressed by a
+     * {@link FrameDeflater FrameDeflater}. */
+    static final byte DEFLATED = 0x14;
+
+    /** Int constant that stores the size of a frame header. */
+    static final int HEADER_BYTES = 5;
+
+    /** Int constant that stores the largest payload accepted. */
+    static final int MAX_PAYLOAD = 1 << 20;
+
+    /** Private Constructor as the class only has static members. */
+    private WireProtocol(){
+
+    } // end of CONSTRUCTOR
+
+    /** Interface implemented by code that handles decoded frames. */
+    interface FrameHandler {
+        /** Method called once for each frame.
+         * @param type - the frame type.
+         * @param payload - the decoded payload. */
+        void onFrame(byte type, String payload);
+    } // end of FrameHandler interface
+
+    /** Class that stores a single frame read from a blocking stream. */
+    static final class Frame {
+
+        /** The frame type. */
+        final byte TYPE;
+
+        /** The decoded payload. */
+        final String PAYLOAD;
+
+        /** Constructor to create a Frame.
+         * @param type - the frame type.
+         * @param payload - the decoded payload. */
+        Frame(byte type, String payload){
+            this.TYPE = type;
+            this.PAYLOAD = payload;
+        } // end of CONSTRUCTOR
+    } // end of Frame Class
+
+    /** Method to build a frame from bytes that are already encoded.
+     * @param type - the frame type.
+     * @param body - array holding the payload.
+     * @param off - offset of the payload in the array.
+     * @param len - length of the payload.
+     * @return A buffer in read mode holding the whole frame. */
+    static ByteBuffer frame(byte type, byte[] body, int off, int len){
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_BYTES + len);
+        buf.put(type).putInt(len).put(body, off, len);
+        buf.flip();
+        return buf;
+    } // end of frame() method
+
+    /** Method to build a frame holding text.
+     * @param type - the frame type.
+     * @param text - the payload.
+     * @return A buffer in read mode holding the whole frame. */
+    static ByteBuffer frame(byte type, String text){
+        byte[] body = text.getBytes(StandardCharsets.UTF_8);
+        return frame(type, body, 0, body.length);
+    } // end of frame() method
+
+    /** Method to write a frame to a blocking stream. The stream is not
+     * flushed.
+     * @param out - the stream to write to.
+     * @param type - the frame type.
+     * @param text - the payload.
+     * @throws IOException if the stream cannot be written to. */
+    static void writeFrame(DataOutputStream out, byte type, String text) throws IOException {
+        byte[] body = text.getBytes(StandardCharsets.UTF_8);
+        out.writeByte(type);
+        out.writeInt(body.length);
+        out.write(body);
+    } // end of writeFrame() method
+
+    /** Method to read one frame from a blocking stream.
+     * @param in - the stream to read from.
+     * @return The frame, or null if the stream ended between frames.
+     * @throws IOException if the stream fails, ends inside a frame or
+     * the payload is larger than {@link #MAX_PAYLOAD MAX_PAYLOAD}. */
+    static Frame readFrame(DataInputStream in) throws IOException {
+        return readFrame(in, null);
+    } // end of readFrame() method
+
+    /** Method to read one frame from a blocking stream, decompressing a
+     * {@link #DEFLATED DEFLATED} frame into the frame it holds.
+     * @param in - the stream to read from.
+     * @param inflater - the connection's inflater, or null if compression
+     * was not agreed.
+     * @return The frame, or null if the stream ended between frames.
+     * @throws IOException if the stream fails, ends inside a frame, the
+     * payload is larger than {@link #MAX_PAYLOAD MAX_PAYLOAD} or a
+     * compressed frame cannot be read. */
+    static Frame readFrame(DataInputStream in, Inflater inflater) throws IOException {
+        int type = in.read();
+        if(type < 0){
+            return null;
+        } // end of if statement
+
+        int len = in.readInt();
+        if(len < 0 || len > MAX_PAYLOAD){
+            throw new IOException("Frame too large: " + len);
+        } // end of if statement
+
+        byte[] body = new byte[len];
+        in.readFully(body);
+        if(type == DEFLATED){
+            if(inflater == null){
+                throw new IOException("Compressed frame without compression agreed");
+            } // end of if statement
+            return FrameDeflater.inflate(inflater, body);
+        } // end of if statement
+        return new Frame((byte) type, new String(body, StandardCharsets.UTF_8));
+    } // end of readFrame() method
+
+    /** Method to read a line of text from a blocking stream one byte at a
+     * time, so that no bytes after the line are consumed. Used while a
+     * connection may still switch from text to frames.
+     * @param in - the stream to read from.
+     * @return The line without its terminator, or null at end of stream.
+     * @throws IOException if the stream fails. */
+    static String readTextLine(DataInputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        int b;
+        while((b = in.read()) != '\n'){
+            if(b < 0){
+                if(line.size() == 0){
+                    return null;
+                } // end of if statement
+                throw new EOFException("Stream ended inside a line");
+            } // end of if statement
+            line.write(b);
+        } // end of while loop
+
+        String text = line.toString(StandardCharsets.UTF_8);
+        return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+    } // end of readTextLine() method
+} // end of WireProtocol Class
@@ -0,0 +1,76 @@
+// ----- IMPORT STATEMENTS -----
+import java.net.ServerSocket;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/** Class containing a main method that checks an idle {@link NioClient
+ * NioClient} answers the {@link Server Server's} heartbeat pings and so
+ * stays connected. The replies are queued from the client's own event
+ * loop thread, which must still send them without waiting for some other
+ * event. A text and a binary client log in to a non-blocking Server that
+ * pings every second, then sit idle for longer than the Server waits
+ * before disconnecting a client that does not answer.
+ * <p>Run with <code>java NioClientHeartbeatTest</code> with the Server
+ * classes on the class path. It exits with status 1 if the check
+ * fails.</p> */
+class NioClientHeartbeatTest {
+
+    /** Main method that runs the check.
+     * @param args - not used.
+     * @throws Exception if the Server or clients cannot be started. */
+    public static void main(String[] args) throws Exception {
+        final int PORT;
+        try(ServerSocket probe = new ServerSocket(0)){
+            PORT = probe.getLocalPort();
+        } // end of try-with-resources
+        Thread server = new Thread(() -> Server.main(new String[]{String.valueOf(PORT), "--io=nio",
+                "--heartbeat=1", "--log-level=error"}), "test-server");
+        server.setDaemon(true);
+        server.start();
+        Thread.sleep(1000);
+
+        NioClient.EventLoop loop = new NioClient.EventLoop("test-client-loop");
+        final AtomicBoolean TEXT_CLOSED = new AtomicBoolean();
+        final AtomicBoolean BINARY_CLOSED = new AtomicBoolean();
+        NioClient text = new NioClient("127.0.0.1", String.valueOf(PORT), false, listener(TEXT_CLOSED), loop);
+        NioClient binary = new NioClient("127.0.0.1", String.valueOf(PORT), true, listener(BINARY_CLOSED), loop);
+        text.connect();
+        binary.connect();
+        text.send("heartbeat-text");
+        binary.send("heartbeat-binary");
+
+        // idle for longer than three missed pings
+        Thread.sleep(5000);
+
+        if(TEXT_CLOSED.get()){
+            fail("the idle text client was disconnected");
+        } // end of if statement
+        if(BINARY_CLOSED.get()){
+            fail("the idle binary client was disconnected");
+        } // end of if statement
+        System.out.println("ok: idle clients stayed connected");
+        System.exit(0);
+    } // end of main() method
+
+    /** Method to make a Listener that ignores output and records the
+     * connection closing.
+     * @param closed - set when the connection ends.
+     * @return The Listener. */
+    private static ClientInstance.Listener listener(final AtomicBoolean closed){
+        return new ClientInstance.Listener(){
+            public void onLine(String line){
+                // output is not checked
+            } // end of onLine() method
+
+            public void onClose(){
+                closed.set(true);
+            } // end of onClose() method
+        };
+    } // end of listener() method
+
+    /** Method to report a failed check and exit.
+     * @param reason - what went wrong. */
+    private static void fail(String reason){
+        System.err.println("FAILED: " + reason);
+        System.exit(1);
+    } // end of fail() method
+} // end of NioClientHeartbeatTest Class
@@ -0,0 +1,159 @@
+// ----- IMPORT STATEMENTS -----
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Inflater;
+
+/** Class containing a main method that checks a binary protocol client
+ * with one deflate stream can always inflate what it is sent, even when
+ * its outbound queue overflows under the default
+ * {@link OutboundQueue.OverflowPolicy#DROP_OLDEST DROP_OLDEST} policy.
+ * An in-memory session is sent a few frames, then its writer is held up
+ * while far more output is queued than the queue holds, then let go;
+ * every frame that reached the client must inflate, and the session must
+ * have been disconnected rather than had frames dropped.
+ * <p>Run with <code>java StreamDeflateOverflowTest</code> with the Server
+ * classes on the class path. It exits with status 1 if the check
+ * fails.</p> */
+class StreamDeflateOverflowTest {
+
+    /** Main method that runs the check.
+     * @param args - not used.
+     * @throws Exception if the session cannot be driven. */
+    public static void main(String[] args) throws Exception {
+        Server.startInMemory(ServerConfig.parse(new String[]{"0", "--deflate", "--deflate-min=16",
+                "--outbound-capacity=4", "--overflow=drop_oldest", "--log-level=error"}));
+
+        final GatedChannel SINK = new GatedChannel();
+        Server.MultipleServer session = new Server().new MultipleServer(SINK);
+        session.claimUsrName(WireProtocol.PREAMBLE + WireProtocol.DEFLATE_STREAM);
+        session.claimUsrName("deflate-overflow-test");
+        final long SLOW_BEFORE = Server.metrics.slowConsumers.sum();
+
+        // --- for loop to send a few one-line frames while the client keeps up
+        for(int i = 0; i < 3; i++){
+            session.parseClientCommand(";ut");
+            Thread.sleep(50);
+        } // end of for loop
+
+        SINK.stalled = true;
+        // --- for loop to queue far more output than the queue holds
+        for(int i = 0; i < 40; i++){
+            session.parseClientCommand(";h");
+        } // end of for loop
+        SINK.GATE.countDown();
+        Thread.sleep(500);
+
+        final int FRAMES = inflateAll(SINK.received.toByteArray());
+        if(Server.metrics.slowConsumers.sum() == SLOW_BEFORE){
+            fail("the overflowing session was not disconnected");
+        } // end of if statement
+        System.out.println("ok: " + FRAMES + " frames inflated");
+        System.exit(0);
+    } // end of main() method
+
+    /** Method to read the bytes a client was sent: the ACCEPT line and
+     * then frames, inflating every compressed one with one
+     * {@link Inflater Inflater} as a client would.
+     * @param bytes - everything written to the client.
+     * @return The number of frames read. */
+    private static int inflateAll(byte[] bytes){
+        final ByteBuffer IN = ByteBuffer.wrap(bytes);
+        // skip the ACCEPT line sent before the switch to frames
+        while(IN.hasRemaining() && IN.get() != '\n'){
+            // skipped
+        } // end of while loop
+
+        final Inflater INFLATER = new Inflater(true);
+        int frames = 0;
+        // --- while loop to read each whole frame
+        while(IN.remaining() >= WireProtocol.HEADER_BYTES){
+            final byte TYPE = IN.get();
+            final byte[] PAYLOAD = new byte[IN.getInt()];
+            if(PAYLOAD.length > IN.remaining()){
+                break;
+            } // end of if statement
+            IN.get(PAYLOAD);
+            if(TYPE == WireProtocol.DEFLATED){
+                try{
+                    FrameDeflater.inflate(INFLATER, PAYLOAD);
+                } catch (IOException e){
+                    fail("frame " + frames + " did not inflate: " + e.getMessage());
+                } // end of IOException catch
+            } // end of if statement
+            frames++;
+        } // end of while loop
+        if(frames == 0){
+            fail("no frames were sent");
+        } // end of if statement
+        return frames;
+    } // end of inflateAll() method
+
+    /** Method to report a failed check and exit.
+     * @param reason - what went wrong. */
+    private static void fail(String reason){
+        System.err.println("FAILED: " + reason);
+        System.exit(1);
+    } // end of fail() method
+
+    /** Class that stands in for a slow client's socket. Once stalled, a
+     * write waits until the {@link #GATE GATE} is opened, and every byte
+     * written is kept. Like a socket, it refuses writes once closed. */
+    private static class GatedChannel implements GatheringByteChannel {
+
+        /** Latch that holds up writes once stalled until counted down. */
+        private final CountDownLatch GATE = new CountDownLatch(1);
+
+        /** Boolean set to hold up writes at the {@link #GATE GATE}. */
+        private volatile boolean stalled = false;
+
+        /** Boolean set once the channel is closed. */
+        private volatile boolean open = true;
+
+        /** Every byte written, in order. */
+        private final ByteArrayOutputStream received = new ByteArrayOutputStream();
+
+        public synchronized long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            try{
+                if(stalled){
+                    GATE.await(10, TimeUnit.SECONDS);
+                } // end of if statement
+            } catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted");
+            } // end of InterruptedException catch
+            if(!open){
+                throw new ClosedChannelException();
+            } // end of if statement
+            long total = 0;
+            // --- for loop to keep every byte of each buffer
+            for(int i = offset; i < offset + length; i++){
+                final byte[] BYTES = new byte[srcs[i].remaining()];
+                srcs[i].get(BYTES);
+                received.write(BYTES, 0, BYTES.length);
+                total += BYTES.length;
+            } // end of for loop
+            return total;
+        } // end of write() method
+
+        public long write(ByteBuffer[] srcs) throws IOException {
+            return write(srcs, 0, srcs.length);
+        } // end of write() method
+
+        public int write(ByteBuffer src) throws IOException {
+            return (int) write(new ByteBuffer[]{src}, 0, 1);
+        } // end of write() method
+
+        public boolean isOpen(){
+            return open;
+        } // end of isOpen() method
+
+        public void close(){
+            open = false;
+        } // end of close() method
+    } // end of GatedChannel Class
+} // end of StreamDeflateOverflowTest Class